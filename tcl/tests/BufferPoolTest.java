@@ -0,0 +1,65 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import tcl.tm.torrent.file.util.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests size classes, reuse and leak tracking in the BufferPool.
+ **/
+public class BufferPoolTest {
+	
+	@Test
+	public void sizeClasses() {
+		BufferPool pool = new BufferPool(1024 * 1024,false);
+		ByteBuffer block = pool.acquire(16 * 1024 + 8);
+		assertTrue(block.isDirect());
+		assertEquals(16 * 1024 + 8,block.remaining());
+		assertEquals(20 * 1024,block.capacity());
+		assertEquals(256 * 1024,pool.acquire(200 * 1024).capacity());
+	}
+	
+	@Test
+	public void reuse() {
+		BufferPool pool = new BufferPool(1024 * 1024,false);
+		ByteBuffer b = pool.acquire(1000);
+		pool.release(b);
+		ByteBuffer c = pool.acquire(2000);
+		assertSame(b,c);
+		assertEquals(2000,c.limit());
+		assertEquals(0,c.position());
+		assertEquals(1,pool.getAllocations());
+		assertEquals(1,pool.getReuses());
+	}
+	
+	@Test
+	public void capacityBound() {
+		BufferPool pool = new BufferPool(4096,false);
+		ByteBuffer a = pool.acquire(4096);
+		ByteBuffer b = pool.acquire(4096);
+		pool.release(a);
+		pool.release(b);
+		assertSame(a,pool.acquire(4096));
+		assertNotSame(b,pool.acquire(4096));
+	}
+	
+	@Test
+	public void wrappedBuffersIgnored() {
+		BufferPool pool = new BufferPool(1024 * 1024,true);
+		pool.release(ByteBuffer.wrap(new byte[4096]));
+		assertEquals(0,pool.getOutstanding());
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void doubleRelease() {
+		BufferPool pool = new BufferPool(1024 * 1024,true);
+		ByteBuffer b = pool.acquire(100);
+		assertEquals(1,pool.getOutstanding());
+		pool.release(b);
+		assertEquals(0,pool.getOutstanding());
+		pool.release(b);
+	}
+}
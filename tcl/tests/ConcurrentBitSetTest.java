@@ -0,0 +1,109 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
+
+/**
+ * Tests setting, counting and encoding bits in a ConcurrentBitSet.
+ **/
+public class ConcurrentBitSetTest {
+	
+	@Test
+	public void setAndClear() {
+		ConcurrentBitSet bits = new ConcurrentBitSet(130);
+		bits.set(0,true);
+		bits.set(64,true);
+		bits.set(129,true);
+		assertTrue(bits.get(0));
+		assertTrue(bits.get(64));
+		assertTrue(bits.get(129));
+		assertFalse(bits.get(1));
+		assertEquals(3,bits.cardinality());
+		bits.set(64,false);
+		assertFalse(bits.get(64));
+		assertEquals(2,bits.cardinality());
+	}
+	
+	@Test
+	public void bitfieldOrder() {
+		ConcurrentBitSet bits = new ConcurrentBitSet(new boolean[] {true,false,false,false,false,false,false,true,true,true});
+		byte[] b = bits.toBitfield();
+		assertEquals(2,b.length);
+		assertEquals((byte) 0x81,b[0]);
+		assertEquals((byte) 0xC0,b[1]);
+	}
+	
+	@Test
+	public void bitfieldRoundTrip() {
+		java.util.Random r = new java.util.Random(5);
+		ConcurrentBitSet bits = new ConcurrentBitSet(203);
+		for(int i = 0; i < 203; i++) {
+			bits.set(i,r.nextBoolean());
+		}
+		ConcurrentBitSet copy = new ConcurrentBitSet(203);
+		byte[] wire = bits.toBitfield();
+		// Spare bits set by a careless peer are ignored.
+		wire[wire.length - 1] |= 0x1F;
+		copy.setBitfield(wire);
+		for(int i = 0; i < 203; i++) {
+			assertEquals(bits.get(i),copy.get(i));
+		}
+		assertEquals(bits.cardinality(),copy.cardinality());
+	}
+	
+	@Test
+	public void setAllAndScan() {
+		ConcurrentBitSet bits = new ConcurrentBitSet(70);
+		bits.setAll();
+		assertEquals(70,bits.cardinality());
+		assertEquals((byte) 0xFC,bits.toBitfield()[8]);
+		bits.clearAll();
+		assertEquals(-1,bits.nextSetBit(0));
+		bits.set(3,true);
+		bits.set(66,true);
+		assertEquals(3,bits.nextSetBit(0));
+		assertEquals(66,bits.nextSetBit(4));
+		assertEquals(-1,bits.nextSetBit(67));
+		assertTrue(bits.change(66,false));
+		assertFalse(bits.change(66,false));
+	}
+	
+	@Test
+	public void wordOperations() {
+		ConcurrentBitSet a = new ConcurrentBitSet(130);
+		ConcurrentBitSet b = new ConcurrentBitSet(130);
+		a.set(1,true);
+		a.set(129,true);
+		b.set(2,true);
+		assertFalse(a.intersects(b));
+		assertEquals(2,a.andNotCardinality(b));
+		b.set(129,true);
+		assertTrue(a.intersects(b));
+		assertEquals(1,a.andNotCardinality(b));
+		assertEquals(a.cardinality(),new ConcurrentBitSet(a).cardinality());
+	}
+	
+	@Test
+	public void nextCommonBit() {
+		ConcurrentBitSet a = new ConcurrentBitSet(200);
+		ConcurrentBitSet b = new ConcurrentBitSet(200);
+		a.set(3,true);
+		a.set(70,true);
+		a.set(199,true);
+		b.set(70,true);
+		b.set(199,true);
+		assertEquals(70,a.nextCommonBit(b,0));
+		assertEquals(70,a.nextCommonBit(b,70));
+		assertEquals(199,a.nextCommonBit(b,71));
+		assertEquals(-1,a.nextCommonBit(b,200));
+		b.set(199,false);
+		assertEquals(-1,a.nextCommonBit(b,71));
+	}
+	
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void outOfRange() {
+		new ConcurrentBitSet(8).get(8);
+	}
+}
@@ -0,0 +1,64 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import tcl.tm.torrent.info.util.ExtentTable;
+import tcl.tm.torrent.info.util.FileExtent;
+
+/**
+ * Tests mapping torrent byte ranges onto files with the ExtentTable.
+ **/
+public class ExtentTableTest {
+	
+	private ExtentTable table;
+	
+	@Before
+	public void setup() {
+		// Files: 0 [0,10) 1 empty 2 [10,15) 3 empty 4 [15,40)
+		table = new ExtentTable(new long[] {10, 0, 5, 0, 25});
+	}
+	
+	@Test
+	public void findFile() {
+		assertEquals(0,table.findFile(0));
+		assertEquals(0,table.findFile(9));
+		assertEquals(2,table.findFile(10));
+		assertEquals(2,table.findFile(14));
+		assertEquals(4,table.findFile(15));
+		assertEquals(4,table.findFile(39));
+		assertEquals(40,table.getTotalLength());
+	}
+	
+	@Test
+	public void singleFile() {
+		FileExtent[] x = table.getExtents(2,5);
+		assertEquals(1,x.length);
+		assertEquals(0,x[0].getFile());
+		assertEquals(2,x[0].getFileOffset());
+		assertEquals(0,x[0].getPieceOffset());
+		assertEquals(5,x[0].getLength());
+	}
+	
+	@Test
+	public void spanSkipsEmptyFiles() {
+		FileExtent[] x = table.getExtents(8,20);
+		assertEquals(3,x.length);
+		assertEquals(0,x[0].getFile());
+		assertEquals(8,x[0].getFileOffset());
+		assertEquals(2,x[0].getLength());
+		assertEquals(2,x[1].getFile());
+		assertEquals(0,x[1].getFileOffset());
+		assertEquals(2,x[1].getPieceOffset());
+		assertEquals(5,x[1].getLength());
+		assertEquals(4,x[2].getFile());
+		assertEquals(7,x[2].getPieceOffset());
+		assertEquals(13,x[2].getLength());
+	}
+	
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void outOfRange() {
+		table.getExtents(35,10);
+	}
+}
@@ -0,0 +1,101 @@
+package tcl.tests;
+
+import tcl.tm.torrent.file.FileAccessFuture;
+import tcl.tm.torrent.file.FileAccessManager;
+import tcl.tm.torrent.file.PieceLossListener;
+import tcl.tm.torrent.file.impl.FileAccessFutureImpl;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A FileAccessManager for tests which stores nothing, and holds no pieces.
+ * It records the offsets of the blocks given to saveBlock() and the partial pieces saved,
+ * and answers the other requests with null.
+ **/
+public class FakeAccessManager implements FileAccessManager {
+
+	private List<Integer> savedBlocks = new ArrayList<Integer>();
+	private Map<Integer,boolean[]> partial = new HashMap<Integer,boolean[]>();
+	private Map<Integer,boolean[]> savedPartial;
+
+	/**
+	 * The offsets of the blocks given to saveBlock(), in the order they were given.
+	 *
+	 * @return The offsets of the saved blocks.
+	 **/
+	public List<Integer> getSavedBlocks() {
+		return savedBlocks;
+	}
+
+	/**
+	 * Sets the partial pieces handed out by getPartialPieces(), as if saved by an earlier run.
+	 *
+	 * @param partial A map from piece id to which of its blocks are on disk.
+	 **/
+	public void setPartialPieces(Map<Integer,boolean[]> partial) {
+		this.partial = partial;
+	}
+
+	/**
+	 * The partial pieces last given to savePartialPieces().
+	 *
+	 * @return The saved partial pieces, or null if none have been saved.
+	 **/
+	public Map<Integer,boolean[]> getSavedPartialPieces() {
+		return savedPartial;
+	}
+
+	public FileAccessFuture getPiece(int id) {
+		return null;
+	}
+
+	public FileAccessFuture savePiece(int id, byte[] data) {
+		return null;
+	}
+
+	public FileAccessFuture savePiece(int id, byte[] data, byte[] hash) {
+		return null;
+	}
+
+	public FileAccessFuture saveBlock(int id, int offset, ByteBuffer block) {
+		savedBlocks.add(offset);
+		return null;
+	}
+
+	public FileAccessFuture commitPiece(int id) {
+		return null;
+	}
+
+	public Map<Integer,boolean[]> getPartialPieces() {
+		return partial;
+	}
+
+	public boolean savePartialPieces(Map<Integer,boolean[]> partial) {
+		savedPartial = partial;
+		return true;
+	}
+
+	public FileAccessFuture havePiece(int id) {
+		return null;
+	}
+
+	public FileAccessFuture getBitfield() {
+		return FileAccessFutureImpl.completed(0,FileAccessFuture.Type.GET_BITFIELD,true,new byte[0]);
+	}
+
+	public boolean canTransfer(int id, int offset, int length) {
+		return false;
+	}
+
+	public void transferBlock(int id, int offset, int length, WritableByteChannel target) {}
+
+	public void setPieceLossListener(PieceLossListener listener) {}
+
+	public void close() {}
+}
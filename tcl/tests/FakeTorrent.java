@@ -0,0 +1,85 @@
+package tcl.tests;
+
+import tcl.tm.torrent.Torrent;
+import tcl.tm.torrent.communication.CommunicationManager;
+import tcl.tm.torrent.file.FileAccessManager;
+import tcl.tm.torrent.info.AnnounceInfo;
+import tcl.tm.torrent.info.InformationManager;
+import tcl.tm.torrent.info.StatsInfo;
+import tcl.tm.torrent.info.TorrentInfo;
+
+import java.net.Socket;
+
+/**
+ * A Torrent for tests, which is also its own InformationManager.
+ * It only hands out the TorrentInfo and FileAccessManager it was given.
+ **/
+public class FakeTorrent implements Torrent, InformationManager {
+
+	private TorrentInfo info;
+	private FileAccessManager fam;
+
+	/**
+	 * Creates a FakeTorrent with no FileAccessManager.
+	 *
+	 * @param info The TorrentInfo to hand out.
+	 **/
+	public FakeTorrent(TorrentInfo info) {
+		this(info,null);
+	}
+
+	/**
+	 * Creates a FakeTorrent.
+	 *
+	 * @param info The TorrentInfo to hand out.
+	 * @param fam The FileAccessManager to hand out.
+	 **/
+	public FakeTorrent(TorrentInfo info, FileAccessManager fam) {
+		this.info = info;
+		this.fam = fam;
+	}
+
+	public CommunicationManager getCommunicationManager() {
+		return null;
+	}
+
+	public FileAccessManager getFileAccessManager() {
+		return fam;
+	}
+
+	public InformationManager getInformationManager() {
+		return this;
+	}
+
+	public boolean relocate(String newFilePath) {
+		return false;
+	}
+
+	public boolean remove() {
+		return false;
+	}
+
+	public void addPeer(Socket peer, byte[] reserved) {}
+
+	public boolean isChecking() {
+		return false;
+	}
+
+	public int getNumPiecesChecked() {
+		return 0;
+	}
+
+	public AnnounceInfo getAnnounceInfo() {
+		return null;
+	}
+
+	public TorrentInfo getTorrentInfo() {
+		return info;
+	}
+
+	public StatsInfo getStatsInfo() {
+		return null;
+	}
+
+	public void close() {}
+}
@@ -0,0 +1,179 @@
+package tcl.tests;
+
+import tcl.tm.torrent.info.TorrentInfo;
+import tcl.tm.torrent.info.util.ExtentTable;
+import tcl.tm.torrent.info.util.FileExtent;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TorrentInfo for tests, laid out from a piece length and the lengths of its files,
+ * rather than read from a .torrent file.
+ * Piece hashes are all zero until hashPieces() is given the torrent's contents.
+ **/
+public class FakeTorrentInfo implements TorrentInfo {
+
+	private static final AtomicInteger count = new AtomicInteger(0);
+
+	private String name;
+	private int pieceLength;
+	private long[] fileLengths;
+	private ExtentTable extents;
+	private String[] hashes;
+
+	/**
+	 * Creates a FakeTorrentInfo with files of the given lengths.
+	 *
+	 * @param pieceLength The length of every piece but the last.
+	 * @param fileLengths The length of each file, in torrent order.
+	 **/
+	public FakeTorrentInfo(int pieceLength, long... fileLengths) {
+		this.name = "fake" + count.getAndIncrement();
+		this.pieceLength = pieceLength;
+		this.fileLengths = fileLengths;
+		this.extents = new ExtentTable(fileLengths);
+		this.hashes = new String[(int) ((extents.getTotalLength() + pieceLength - 1) / pieceLength)];
+		Arrays.fill(hashes,new String(new char[20]));
+	}
+
+	/**
+	 * Sets the piece hashes to match the given contents.
+	 *
+	 * @param data The contents of the whole torrent.
+	 *
+	 * @return This FakeTorrentInfo.
+	 **/
+	public FakeTorrentInfo hashPieces(byte[] data) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA");
+			for(int i = 0; i < hashes.length; i++) {
+				md.update(data,i * pieceLength,getPieceLength(i));
+				byte[] h = md.digest();
+				char[] c = new char[h.length];
+				for(int j = 0; j < h.length; j++) {
+					c[j] = (char) (h[j] & 0xFF);
+				}
+				hashes[i] = new String(c);
+			}
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		return this;
+	}
+
+	private int getPieceLength(int id) {
+		return (id + 1 < getPieceCount()) ? pieceLength : getFinalPieceLength();
+	}
+
+	public String getAnnounceURL() {
+		return "";
+	}
+
+	public String[] getAnnounceList() {
+		return new String[0];
+	}
+
+	public String getTorrentName() {
+		return name;
+	}
+
+	public String getCreatedBy() {
+		return "";
+	}
+
+	public byte[] getInfoHash() {
+		return new byte[20];
+	}
+
+	public String getEscapedInfoHash() {
+		return name;
+	}
+
+	public String getComment() {
+		return "";
+	}
+
+	public Date getCreationDate() {
+		return new Date(0);
+	}
+
+	public String[] getPieceHashes() {
+		return hashes;
+	}
+
+	public String getPieceHash(int id) {
+		return hashes[id];
+	}
+
+	public String[] getFileNames() {
+		String[] names = new String[fileLengths.length];
+		for(int i = 0; i < names.length; i++) {
+			names[i] = "file" + i;
+		}
+		return names;
+	}
+
+	public int getFileCount() {
+		return fileLengths.length;
+	}
+
+	public int[] getFileStartLocation(int id) {
+		long start = extents.getStartByte(id);
+		return new int[] {(int) (start / pieceLength), (int) (start % pieceLength)};
+	}
+
+	public int[] getFileEndLocation(int id) {
+		long end = extents.getStartByte(id) + fileLengths[id] - 1;
+		return new int[] {(int) (end / pieceLength), (int) (end % pieceLength)};
+	}
+
+	public long getFileLength(int id) {
+		return extents.getLength(id);
+	}
+
+	public long getFileStartByte(int id) {
+		return extents.getStartByte(id);
+	}
+
+	public String[] getFilePath(int id) {
+		return new String[] {"file" + id};
+	}
+
+	public int getPieceLength() {
+		return pieceLength;
+	}
+
+	public int getFinalPieceLength() {
+		return (int) (extents.getTotalLength() - (long) pieceLength * (getPieceCount() - 1));
+	}
+
+	public int getPieceCount() {
+		return hashes.length;
+	}
+
+	public String getEncoding() {
+		return "";
+	}
+
+	public long[] getPieceStartLocation(int id) {
+		long start = (long) id * pieceLength;
+		int file = extents.findFile(start);
+		return new long[] {file, start - extents.getStartByte(file)};
+	}
+
+	public long[] getPieceEndLocation(int id) {
+		long end = (long) id * pieceLength + getPieceLength(id) - 1;
+		int file = extents.findFile(end);
+		return new long[] {file, end - extents.getStartByte(file)};
+	}
+
+	public FileExtent[] getPieceExtents(int id) {
+		return extents.getExtents((long) id * pieceLength,getPieceLength(id));
+	}
+}
@@ -0,0 +1,95 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import tcl.tm.torrent.file.util.FileHandlePool;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+
+/**
+ * Tests the lazy opening, pinning and eviction of the FileHandlePool.
+ **/
+public class FileHandlePoolTest {
+	
+	private FileHandlePool pool;
+	private File[] files;
+	
+	@Before
+	public void setup() throws Exception {
+		pool = new FileHandlePool(2);
+		files = new File[3];
+		for(int i = 0; i < files.length; i++) {
+			files[i] = File.createTempFile("pool",".dat");
+			files[i].deleteOnExit();
+		}
+	}
+	
+	@Test
+	public void hitAndMiss() throws Exception {
+		pool.acquire(files[0]);
+		pool.release(files[0]);
+		pool.acquire(files[0]);
+		pool.release(files[0]);
+		assertEquals(1,pool.getMisses());
+		assertEquals(1,pool.getHits());
+	}
+	
+	@Test
+	public void evictLeastRecentlyUsed() throws Exception {
+		for(File f : files) {
+			pool.acquire(f);
+			pool.release(f);
+		}
+		assertEquals(2,pool.getOpenCount());
+		pool.acquire(files[0]);
+		pool.release(files[0]);
+		assertEquals(4,pool.getMisses());
+	}
+	
+	@Test
+	public void pinnedFilesStayOpen() throws Exception {
+		FileChannel first = pool.acquire(files[0]);
+		pool.acquire(files[1]);
+		pool.release(files[1]);
+		pool.acquire(files[2]);
+		pool.release(files[2]);
+		assertTrue(first.isOpen());
+		pool.release(files[0]);
+	}
+	
+	@Test
+	public void close() throws Exception {
+		FileChannel c = pool.acquire(files[0]);
+		pool.release(files[0]);
+		pool.close(files[0]);
+		assertFalse(c.isOpen());
+		assertEquals(0,pool.getOpenCount());
+	}
+	
+	@Test
+	public void newFileNotEvicted() throws Exception {
+		FileChannel first = pool.acquire(files[0]);
+		FileChannel second = pool.acquire(files[1]);
+		FileChannel third = pool.acquire(files[2]);
+		assertTrue(first.isOpen());
+		assertTrue(second.isOpen());
+		assertTrue(third.isOpen());
+		pool.release(files[0]);
+		pool.release(files[1]);
+		pool.release(files[2]);
+		assertEquals(2,pool.getOpenCount());
+	}
+	
+	@Test
+	public void closeWaitsForRelease() throws Exception {
+		FileChannel c = pool.acquire(files[0]);
+		pool.close(files[0]);
+		assertTrue(c.isOpen());
+		pool.release(files[0]);
+		assertFalse(c.isOpen());
+		assertEquals(0,pool.getOpenCount());
+	}
+}
@@ -0,0 +1,117 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import tcl.tm.torrent.file.PieceLossListener;
+import tcl.tm.torrent.file.impl.FileAccessManagerImpl;
+import tcl.tm.torrent.file.util.FlushPolicy;
+import tcl.tm.torrent.file.util.impl.StatusLoaderImpl;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tests which pieces a FileAccessManager gives up when writing or syncing a file fails.
+ * Pieces are 40 bytes over files of 100 and 60 bytes, so piece 2 lies in both files,
+ * and everything is flushed when the FileAccessManager is closed.
+ **/
+public class FlushFailureTest {
+
+	private FakeTorrentInfo info;
+	private byte[] data;
+	private String dir;
+	private Set<Integer> lost;
+
+	@Before
+	public void setup() throws Exception {
+		data = new byte[160];
+		for(int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 7);
+		}
+		info = new FakeTorrentInfo(40,100,60).hashPieces(data);
+		File d = File.createTempFile("flush","");
+		d.delete();
+		d.mkdir();
+		d.deleteOnExit();
+		dir = d.getPath() + "/";
+		lost = new TreeSet<Integer>();
+	}
+
+	/**
+	 * Creates a FileAccessManager whose writes or syncs of one file fail.
+	 **/
+	private FileAccessManagerImpl open(final int badWrite, final int badSync) {
+		FileAccessManagerImpl fam = new FileAccessManagerImpl(info,new StatusLoaderImpl(info,dir),dir,new FlushPolicy(60000,Long.MAX_VALUE,true)) {
+			protected void writeSpans(int fileId, long position, ByteBuffer[] d) throws IOException {
+				if(fileId == badWrite) {
+					throw new IOException("write");
+				}
+				super.writeSpans(fileId,position,d);
+			}
+
+			protected void syncFiles(Set<Integer> fileIds) throws IOException {
+				if(fileIds.contains(badSync)) {
+					throw new IOException("sync");
+				}
+				super.syncFiles(fileIds);
+			}
+		};
+		fam.setPieceLossListener(new PieceLossListener() {
+			public void pieceLost(int id) {
+				lost.add(id);
+			}
+		});
+		return fam;
+	}
+
+	private byte[] piece(int id) {
+		return Arrays.copyOfRange(data,id * 40,id * 40 + 40);
+	}
+
+	private boolean[] reloadStatus() {
+		return new StatusLoaderImpl(info,dir).getStatus();
+	}
+
+	@Test
+	public void writeFailureLosesOnlyItsPieces() {
+		FileAccessManagerImpl fam = open(1,-1);
+		for(int i = 0; i < 4; i++) {
+			assertTrue(fam.savePiece(i,piece(i)).getSuccess());
+		}
+		fam.close();
+		assertEquals(new TreeSet<Integer>(Arrays.asList(2,3)),lost);
+		assertTrue(Arrays.equals(new boolean[] {true,true,false,false},reloadStatus()));
+	}
+
+	@Test
+	public void syncFailureLosesCommittedPieces() {
+		FileAccessManagerImpl fam = open(-1,1);
+		assertTrue(fam.savePiece(0,piece(0)).getSuccess());
+		for(int id : new int[] {1,3}) {
+			assertTrue(fam.saveBlock(id,0,ByteBuffer.wrap(piece(id))).getSuccess());
+			assertTrue(fam.commitPiece(id).getSuccess());
+		}
+		fam.close();
+		assertEquals(new TreeSet<Integer>(Arrays.asList(3)),lost);
+		assertTrue(Arrays.equals(new boolean[] {true,true,false,false},reloadStatus()));
+	}
+
+	@Test
+	public void lostPiecesNoLongerHeld() {
+		FileAccessManagerImpl fam = open(0,-1);
+		assertTrue(fam.savePiece(0,piece(0)).getSuccess());
+		assertTrue(fam.havePiece(0).getSuccess());
+		fam.close();
+		assertEquals(new TreeSet<Integer>(Arrays.asList(0)),lost);
+		assertFalse(fam.havePiece(0).getSuccess());
+		assertFalse(fam.canTransfer(0,0,40));
+	}
+}
@@ -0,0 +1,195 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import tcl.tm.torrent.file.FileAccessFuture;
+import tcl.tm.torrent.file.impl.FileAccessManagerImpl;
+import tcl.tm.torrent.file.util.FlushPolicy;
+import tcl.tm.torrent.file.util.impl.StatusLoaderImpl;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.security.MessageDigest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the order in which the IOScheduler serves the requests of a FileAccessManager.
+ * The torrent is a single file of 64 pieces of 16 bytes, of which pieces 0 to 59 are already saved.
+ * Reads and writes are recorded rather than performed, and the read of one chosen piece
+ * holds up the device until it is released, so that the requests behind it queue up.
+ **/
+public class IOSchedulerTest {
+
+	private static final int PIECES = 64;
+	private static final int SAVED = 60;
+
+	private FakeTorrentInfo info;
+	private byte[] data;
+	private String dir;
+	private StatusLoaderImpl status;
+	private Recording fam;
+
+	/**
+	 * A FileAccessManager which records the pieces read and written, in the order the device handles them.
+	 **/
+	private static class Recording extends FileAccessManagerImpl {
+
+		private List<String> events;
+		private int blockOn;
+		private CountDownLatch entered;
+		private CountDownLatch release;
+
+		private Recording(FakeTorrentInfo info, StatusLoaderImpl status, String dir, int blockOn) {
+			super(info,status,dir,FlushPolicy.WRITE_THROUGH);
+			this.events = Collections.synchronizedList(new ArrayList<String>());
+			this.blockOn = blockOn;
+			this.entered = new CountDownLatch(1);
+			this.release = new CountDownLatch(1);
+		}
+
+		protected void readSpan(int fileId, long position, byte[] b, int offset, int length) throws IOException {
+			int id = (int) (position / 16);
+			events.add("r" + id);
+			if(id == blockOn) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException e) {
+					throw new IOException(e.getMessage());
+				}
+			}
+		}
+
+		protected void writeSpans(int fileId, long position, ByteBuffer[] d) throws IOException {
+			events.add("w" + (position / 16));
+		}
+	}
+
+	@Before
+	public void setup() throws Exception {
+		data = new byte[PIECES * 16];
+		for(int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 3);
+		}
+		info = new FakeTorrentInfo(16,data.length).hashPieces(data);
+		// Devices are keyed by directory, so each test gets a device of its own.
+		File d = File.createTempFile("scheduler","");
+		d.delete();
+		d.mkdir();
+		d.deleteOnExit();
+		dir = d.getPath() + "/";
+		status = new StatusLoaderImpl(info,dir);
+		for(int i = 0; i < SAVED; i++) {
+			status.setStatus(i,true);
+		}
+		status.flush();
+	}
+
+	@After
+	public void teardown() throws Exception {
+		if(fam != null) {
+			fam.release.countDown();
+			fam.close();
+		}
+		status.close();
+	}
+
+	/**
+	 * Opens the FileAccessManager, and starts a read of the given piece which holds up the device.
+	 **/
+	private void openBlocked(int blockOn) throws Exception {
+		fam = new Recording(info,status,dir,blockOn);
+		fam.getPiece(blockOn);
+		assertTrue(fam.entered.await(5,TimeUnit.SECONDS));
+	}
+
+	private List<FileAccessFuture> read(int... ids) {
+		List<FileAccessFuture> futures = new ArrayList<FileAccessFuture>();
+		for(int id : ids) {
+			futures.add(fam.getPiece(id));
+		}
+		return futures;
+	}
+
+	private static void awaitAll(List<FileAccessFuture> futures) {
+		for(FileAccessFuture f : futures) {
+			assertTrue(f.getSuccess());
+		}
+	}
+
+	private byte[] hash(int id) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA");
+		md.update(data,id * 16,16);
+		return md.digest();
+	}
+
+	@Test
+	public void readsFollowSweep() throws Exception {
+		openBlocked(5);
+		List<FileAccessFuture> futures = read(9,2,7);
+		fam.release.countDown();
+		awaitAll(futures);
+		// Upwards from piece 5, then around to the start.
+		assertEquals(Arrays.asList("r5","r7","r9","r2"),fam.events);
+	}
+
+	@Test
+	public void lateReadServedFirst() throws Exception {
+		openBlocked(5);
+		List<FileAccessFuture> futures = read(2);
+		Thread.sleep(600);
+		futures.addAll(read(7,9));
+		fam.release.countDown();
+		awaitAll(futures);
+		assertEquals(Arrays.asList("r5","r2","r7","r9"),fam.events);
+	}
+
+	@Test
+	public void writeNotStarvedByReads() throws Exception {
+		openBlocked(0);
+		int[] ids = new int[40];
+		for(int i = 0; i < ids.length; i++) {
+			ids[i] = i + 1;
+		}
+		List<FileAccessFuture> futures = read(ids);
+		FileAccessFuture save = fam.savePiece(SAVED,Arrays.copyOfRange(data,SAVED * 16,SAVED * 16 + 16),hash(SAVED));
+		fam.release.countDown();
+		awaitAll(futures);
+		assertTrue(save.getSuccess());
+		int write = fam.events.indexOf("w" + SAVED);
+		assertTrue(write >= 0);
+		assertTrue(write < fam.events.indexOf("r40"));
+	}
+
+	@Test
+	public void queuedReadsServedOnClose() throws Exception {
+		openBlocked(5);
+		List<FileAccessFuture> futures = read(9,2);
+		Thread closer = new Thread(new Runnable() {
+			public void run() {
+				fam.close();
+			}
+		});
+		closer.start();
+		fam.release.countDown();
+		closer.join(5000);
+		assertFalse(closer.isAlive());
+		awaitAll(futures);
+		assertFalse(fam.getPiece(3).getSuccess());
+		assertFalse(fam.savePiece(SAVED,Arrays.copyOfRange(data,SAVED * 16,SAVED * 16 + 16),hash(SAVED)).getSuccess());
+		assertFalse(fam.events.contains("r3"));
+	}
+}
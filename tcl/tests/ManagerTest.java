@@ -19,12 +19,6 @@ public class ManagerTest {
 		FileAccessManagerImpl f = new FileAccessManagerImpl(t,new StatusLoaderImpl(t,"/home/war1025/Desktop/"),"/home/war1025/Desktop/");
 		FileAccessManagerImpl f2 = new FileAccessManagerImpl(t,new StatusLoaderImpl(t,"/home/war1025/"),"/home/war1025/");
 
-		Thread t1 = new Thread(f,"Secretary");
-		Thread t2 = new Thread(f2,"Secretary2");
-
-		t1.start();
-		t2.start();
-
 		int pieces = t.getPieceCount();
 		for(int i = 0; i < pieces; i++ ) {
 			new Thread(new Requester(i,f,f2)).start();
@@ -0,0 +1,42 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import tcl.tm.torrent.communication.peer.util.PeerUtils;
+
+import java.net.InetAddress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Tests generating Allowed Fast sets against the example in the Fast extension.
+ **/
+public class PeerUtilsTest {
+	
+	private static byte[] infoHash() {
+		byte[] hash = new byte[20];
+		Arrays.fill(hash,(byte) 0xaa);
+		return hash;
+	}
+	
+	@Test
+	public void allowedFastExample() throws Exception {
+		InetAddress ip = InetAddress.getByName("80.4.4.200");
+		Set<Integer> seven = PeerUtils.allowedFastSet(7,1313,infoHash(),ip);
+		assertEquals(Arrays.asList(1059,431,808,1217,287,376,1188),new ArrayList<Integer>(seven));
+		Set<Integer> nine = PeerUtils.allowedFastSet(9,1313,infoHash(),ip);
+		assertEquals(Arrays.asList(1059,431,808,1217,287,376,1188,353,508),new ArrayList<Integer>(nine));
+	}
+	
+	@Test
+	public void sameNetworkSameSet() throws Exception {
+		Set<Integer> a = PeerUtils.allowedFastSet(10,1313,infoHash(),InetAddress.getByName("80.4.4.1"));
+		Set<Integer> b = PeerUtils.allowedFastSet(10,1313,infoHash(),InetAddress.getByName("80.4.4.254"));
+		assertEquals(a,b);
+		assertEquals(3,PeerUtils.allowedFastSet(10,3,infoHash(),InetAddress.getByName("80.4.4.1")).size());
+		assertTrue(PeerUtils.allowedFastSet(10,1313,infoHash(),InetAddress.getByName("::1")).isEmpty());
+	}
+}
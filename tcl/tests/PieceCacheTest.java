@@ -0,0 +1,86 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import tcl.tm.torrent.file.util.PieceCache;
+
+/**
+ * Tests the eviction and accounting behaviour of the PieceCache.
+ **/
+public class PieceCacheTest {
+	
+	private PieceCache cache;
+	private Object owner;
+	private Object other;
+	
+	@Before
+	public void setup() {
+		cache = new PieceCache(30);
+		owner = new Object();
+		other = new Object();
+	}
+	
+	@Test
+	public void hitAndMiss() {
+		cache.put(owner,1,new byte[10]);
+		assertNotNull(cache.get(owner,1));
+		assertNull(cache.get(owner,2));
+		assertNull(cache.get(other,1));
+		assertEquals(cache.getHits(),1);
+		assertEquals(cache.getMisses(),2);
+	}
+	
+	@Test
+	public void evictLeastRecentlyUsed() {
+		cache.put(owner,1,new byte[10]);
+		cache.put(owner,2,new byte[10]);
+		cache.put(owner,3,new byte[10]);
+		cache.get(owner,1);
+		cache.put(owner,4,new byte[10]);
+		assertTrue(cache.contains(owner,1));
+		assertFalse(cache.contains(owner,2));
+		assertEquals(cache.getSize(),30);
+	}
+	
+	@Test
+	public void oversizedPiece() {
+		cache.put(owner,1,new byte[31]);
+		assertFalse(cache.contains(owner,1));
+		assertEquals(cache.getSize(),0);
+	}
+	
+	@Test
+	public void invalidate() {
+		cache.put(owner,1,new byte[10]);
+		cache.put(other,1,new byte[10]);
+		cache.invalidate(owner);
+		assertFalse(cache.contains(owner,1));
+		assertTrue(cache.contains(other,1));
+		assertEquals(cache.getSize(),10);
+	}
+	
+	@Test
+	public void invalidatePiece() {
+		cache.put(owner,1,new byte[10]);
+		cache.put(owner,2,new byte[10]);
+		cache.put(other,1,new byte[10]);
+		cache.invalidate(owner,1);
+		cache.invalidate(owner,5);
+		assertFalse(cache.contains(owner,1));
+		assertTrue(cache.contains(owner,2));
+		assertTrue(cache.contains(other,1));
+		assertEquals(cache.getSize(),20);
+	}
+	
+	@Test
+	public void pieceIdsMostRecentFirst() {
+		cache.put(owner,1,new byte[5]);
+		cache.put(other,2,new byte[5]);
+		cache.put(owner,3,new byte[5]);
+		cache.get(owner,1);
+		assertEquals(java.util.Arrays.asList(1,3),cache.getPieceIds(owner));
+		assertEquals(java.util.Arrays.asList(2),cache.getPieceIds(other));
+	}
+}
@@ -0,0 +1,203 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import tcl.tm.torrent.communication.util.PiecePicker;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
+
+/**
+ * Tests choosing the rarest wanted piece with a PiecePicker.
+ **/
+public class PiecePickerTest {
+
+	private static ConcurrentBitSet all(int n) {
+		ConcurrentBitSet b = new ConcurrentBitSet(n);
+		b.setAll();
+		return b;
+	}
+
+	private static ConcurrentBitSet bits(boolean... b) {
+		return new ConcurrentBitSet(b);
+	}
+
+	@Test
+	public void picksRarest() {
+		PiecePicker picker = new PiecePicker(4);
+		picker.peerBitfield(all(4));
+		picker.peerBitfield(bits(true, false, true, true));
+		picker.peerBitfield(bits(true, false, false, true));
+		assertEquals(1,picker.getAvailability(1));
+		assertEquals(3,picker.getAvailability(3));
+		assertEquals(1,picker.pick(all(4)));
+		assertEquals(2,picker.pick(bits(true, false, true, true)));
+		assertEquals(-1,picker.pick(new ConcurrentBitSet(4)));
+	}
+
+	@Test
+	public void unavailableNotPicked() {
+		PiecePicker picker = new PiecePicker(3);
+		assertEquals(-1,picker.pick(all(3)));
+		picker.peerHave(2);
+		assertEquals(2,picker.pick(all(3)));
+		picker.peerLost(2);
+		assertEquals(-1,picker.pick(all(3)));
+	}
+
+	@Test
+	public void busyAndHave() {
+		PiecePicker picker = new PiecePicker(3);
+		picker.peerBitfield(all(3));
+		picker.peerHave(1);
+		picker.peerHave(2);
+		picker.peerHave(2);
+		assertEquals(0,picker.pick(all(3)));
+		picker.setBusy(0,true);
+		assertEquals(1,picker.pick(all(3)));
+		assertEquals(0,picker.pick(all(3),true));
+		picker.have(1);
+		assertFalse(picker.isWanted(1));
+		assertEquals(2,picker.getWantedCount());
+		assertEquals(2,picker.pick(all(3)));
+		assertFalse(picker.allBusy());
+		picker.setBusy(2,true);
+		assertTrue(picker.allBusy());
+		picker.have(0);
+		picker.have(2);
+		assertTrue(picker.allBusy());
+		assertEquals(-1,picker.pick(all(3),true));
+	}
+
+	@Test
+	public void seedsCountEverywhere() {
+		PiecePicker picker = new PiecePicker(3);
+		picker.peerHave(1);
+		picker.peerHave(2);
+		picker.peerHave(2);
+		assertEquals(-1,picker.pick(bits(true, false, false)));
+		picker.addSeed();
+		assertEquals(1,picker.getSeedCount());
+		assertEquals(1,picker.getAvailability(0));
+		assertEquals(3,picker.getAvailability(2));
+		assertEquals(0,picker.pick(all(3)));
+		assertEquals(1,picker.pick(bits(false, true, true)));
+		picker.removeSeed();
+		assertEquals(-1,picker.pick(bits(true, false, false)));
+		assertEquals(2,picker.getAvailability(2));
+	}
+
+	@Test
+	public void interesting() {
+		PiecePicker picker = new PiecePicker(70);
+		ConcurrentBitSet peer = new ConcurrentBitSet(70);
+		assertFalse(picker.isInteresting(peer));
+		peer.set(66,true);
+		assertTrue(picker.isInteresting(peer));
+		// A piece being downloaded is still wanted, so endgame keeps the peer interesting.
+		picker.setBusy(66,true);
+		assertTrue(picker.isInteresting(peer));
+		picker.setBusy(66,false);
+		picker.have(66);
+		assertFalse(picker.isInteresting(peer));
+		picker.setBusy(66,false);
+		assertFalse(picker.isInteresting(peer));
+	}
+
+	@Test
+	public void wantedAgain() {
+		PiecePicker picker = new PiecePicker(3);
+		picker.peerBitfield(all(3));
+		picker.setBusy(1,true);
+		picker.have(1);
+		picker.setBusy(1,false);
+		picker.peerHave(1);
+		picker.peerHave(1);
+		picker.peerHave(1);
+		picker.have(0);
+		picker.have(2);
+		assertEquals(0,picker.getWantedCount());
+		assertFalse(picker.isInteresting(all(3)));
+		picker.want(1);
+		assertTrue(picker.isWanted(1));
+		assertEquals(1,picker.getWantedCount());
+		assertEquals(4,picker.getAvailability(1));
+		assertTrue(picker.isInteresting(all(3)));
+		assertEquals(1,picker.pick(all(3)));
+		picker.want(1);
+		assertEquals(1,picker.getWantedCount());
+		assertTrue(picker.isInteresting(all(3)));
+	}
+
+	@Test
+	public void resumable() {
+		PiecePicker picker = new PiecePicker(130);
+		assertEquals(-1,picker.pickResumable(all(130)));
+		picker.setResumable(5,true);
+		picker.setResumable(128,true);
+		ConcurrentBitSet peer = new ConcurrentBitSet(130);
+		assertEquals(-1,picker.pickResumable(peer));
+		peer.set(128,true);
+		for(int i = 0; i < 20; i++) {
+			assertEquals(128,picker.pickResumable(peer));
+		}
+		peer.set(5,true);
+		picker.setResumable(128,false);
+		for(int i = 0; i < 20; i++) {
+			assertEquals(5,picker.pickResumable(peer));
+		}
+	}
+
+	@Test
+	public void matchesScan() {
+		// Random updates must always leave the picked piece among the rarest the peer has.
+		java.util.Random r = new java.util.Random(7);
+		int n = 200;
+		PiecePicker picker = new PiecePicker(n);
+		int[] count = new int[n];
+		boolean[] done = new boolean[n];
+		for(int step = 0; step < 20000; step++) {
+			int id = r.nextInt(n);
+			switch(r.nextInt(5)) {
+				case 0:
+				case 1:
+					picker.peerHave(id);
+					count[id]++;
+					break;
+				case 2:
+					picker.peerLost(id);
+					count[id] = Math.max(0,count[id] - 1);
+					break;
+				case 3:
+					if(done[id] && r.nextInt(4) == 0) {
+						picker.want(id);
+						done[id] = false;
+					} else if(r.nextInt(20) == 0) {
+						picker.have(id);
+						done[id] = true;
+					}
+					break;
+				default:
+					boolean[] peer = new boolean[n];
+					int lowest = Integer.MAX_VALUE;
+					boolean wanted = false;
+					for(int i = 0; i < n; i++) {
+						peer[i] = r.nextBoolean();
+						wanted |= peer[i] && !done[i];
+						if(peer[i] && !done[i] && count[i] > 0) {
+							lowest = Math.min(lowest,count[i]);
+						}
+					}
+					assertEquals(wanted,picker.isInteresting(bits(peer)));
+					int p = picker.pick(bits(peer));
+					if(lowest == Integer.MAX_VALUE) {
+						assertEquals(-1,p);
+					} else {
+						assertTrue(peer[p]);
+						assertFalse(done[p]);
+						assertEquals(lowest,count[p]);
+					}
+			}
+			assertEquals(count[id],picker.getAvailability(id));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import tcl.tm.torrent.communication.registry.impl.PieceRegistryImpl;
+import tcl.tm.torrent.communication.util.Piece;
+import tcl.tm.torrent.communication.util.ThroughputMonitor;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests assigning, returning and closing with a PieceRegistry.
+ * Pieces are 4 blocks of 10 bytes each.
+ **/
+public class PieceRegistryTest {
+
+	private FakeAccessManager fam;
+	private FakeTorrent torrent;
+	private Piece template;
+
+	@Before
+	public void setup() {
+		fam = new FakeAccessManager();
+		torrent = new FakeTorrent(new FakeTorrentInfo(40,8 * 40),fam);
+		template = new Piece(10,torrent,new ThroughputMonitor());
+	}
+
+	private static ConcurrentBitSet all(int n) {
+		ConcurrentBitSet b = new ConcurrentBitSet(n);
+		b.setAll();
+		return b;
+	}
+
+	@Test
+	public void closeWaitsForReturns() throws Exception {
+		final PieceRegistryImpl registry = new PieceRegistryImpl(torrent,null,template,4);
+		registry.peerBitfield(all(8));
+		Piece p = registry.requestPiece(all(8),0,false);
+		assertNotNull(p);
+		assertTrue(p.saveBlock(1,ByteBuffer.wrap(new byte[10])));
+
+		Thread closer = new Thread(new Runnable() {
+			public void run() {
+				registry.close();
+			}
+		});
+		closer.start();
+		closer.join(300);
+		assertTrue(closer.isAlive());
+		assertNull(fam.getSavedPartialPieces());
+		assertNull(registry.requestPiece(all(8),0,false));
+
+		registry.returnPiece(p);
+		closer.join(5000);
+		assertFalse(closer.isAlive());
+		Map<Integer,boolean[]> saved = fam.getSavedPartialPieces();
+		assertEquals(1,saved.size());
+		assertTrue(Arrays.equals(new boolean[] {false,true,false,false},saved.get(p.getPieceId())));
+		assertEquals(Arrays.asList(10),fam.getSavedBlocks());
+	}
+
+	@Test
+	public void resumesPartialPieceFirst() {
+		Map<Integer,boolean[]> partial = new HashMap<Integer,boolean[]>();
+		partial.put(6,new boolean[] {true,true,false,false});
+		fam.setPartialPieces(partial);
+		PieceRegistryImpl registry = new PieceRegistryImpl(torrent,null,template,4);
+		registry.peerBitfield(all(8));
+		ConcurrentBitSet peer = new ConcurrentBitSet(8);
+		peer.set(2,true);
+		Piece p = registry.requestPiece(peer,0,false);
+		assertEquals(2,p.getPieceId());
+		Piece resumed = registry.requestPiece(all(8),0,false);
+		assertEquals(6,resumed.getPieceId());
+		assertTrue(resumed.isStreaming());
+		Piece fresh = registry.requestPiece(all(8),0,false);
+		assertTrue(fresh.getPieceId() != 6);
+		registry.returnPiece(resumed);
+		assertEquals(6,registry.requestPiece(all(8),0,false).getPieceId());
+	}
+}
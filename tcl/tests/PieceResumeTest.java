@@ -0,0 +1,67 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import tcl.tm.torrent.communication.util.Piece;
+import tcl.tm.torrent.communication.util.ThroughputMonitor;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+/**
+ * Tests resuming a Piece from blocks saved earlier, for a template which holds its data in memory.
+ **/
+public class PieceResumeTest {
+
+	private Piece template;
+	private FakeAccessManager fam;
+
+	@Before
+	public void setup() {
+		fam = new FakeAccessManager();
+		FakeTorrent torrent = new FakeTorrent(new FakeTorrentInfo(40,80),fam);
+		template = new Piece(10,torrent,new ThroughputMonitor());
+	}
+
+	private static ByteBuffer block() {
+		return ByteBuffer.wrap(new byte[] {1,2,3,4,5,6,7,8,9,10});
+	}
+
+	private static void resumeRemaining(Piece p) {
+		assertTrue(p.isStreaming());
+		assertNull(p.getData());
+		assertTrue(p.saveBlock(1,block()));
+		assertTrue(p.saveBlock(3,block()));
+		assertFalse(p.saveBlock(0,block()));
+		assertTrue(p.isComplete());
+		assertNull(p.getHash());
+	}
+
+	@Test
+	public void freshPiece() {
+		Piece p = template.newInstance();
+		p.reset(0,new boolean[] {true,false,true,false});
+		resumeRemaining(p);
+		assertEquals(Arrays.asList(10,30),fam.getSavedBlocks());
+	}
+
+	@Test
+	public void recycledPiece() {
+		Piece p = template.newInstance();
+		p.reset(1);
+		for(int i = 0; i < 4; i++) {
+			assertTrue(p.saveBlock(i,block()));
+		}
+		assertNotNull(p.getHash());
+		assertTrue(fam.getSavedBlocks().isEmpty());
+		p.reset(0,new boolean[] {true,false,true,false});
+		resumeRemaining(p);
+		assertEquals(Arrays.asList(10,30),fam.getSavedBlocks());
+		p.reset(1);
+		assertFalse(p.isStreaming());
+		assertNotNull(p.getData());
+	}
+}
@@ -0,0 +1,123 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import tcl.tm.torrent.communication.util.Piece;
+import tcl.tm.torrent.communication.util.ThroughputMonitor;
+import tcl.tm.torrent.communication.peer.util.PendingRequest;
+import tcl.tm.torrent.communication.peer.util.RequestPipeline;
+import tcl.tm.torrent.file.util.BufferPool;
+
+import java.nio.ByteBuffer;
+
+import java.util.List;
+
+/**
+ * Tests the queue depth, timeouts and cancels of a RequestPipeline.
+ * Pieces are 4 blocks of 10 bytes each.
+ **/
+public class RequestPipelineTest {
+
+	private Piece template;
+	private RequestPipeline pipeline;
+
+	@Before
+	public void setup() {
+		FakeTorrent torrent = new FakeTorrent(new FakeTorrentInfo(40,64 * 40));
+		template = new Piece(10,torrent,new ThroughputMonitor());
+		pipeline = new RequestPipeline();
+	}
+
+	private Piece piece(int id) {
+		return template.newInstance().reset(id);
+	}
+
+	private static void deliver(RequestPipeline p, PendingRequest r) {
+		ByteBuffer b = BufferPool.getShared().acquire(r.getLength());
+		b.limit(r.getLength());
+		p.blockReceived(r.getIndex(),r.getOffset(),b,1);
+	}
+
+	@Test
+	public void fillStopsAtDepth() {
+		for(int i = 0; i < RequestPipeline.MAX_PIECES; i++) {
+			pipeline.addPiece(piece(i));
+		}
+		assertEquals(RequestPipeline.INITIAL_DEPTH,pipeline.fill(0).size());
+		assertEquals(RequestPipeline.INITIAL_DEPTH,pipeline.getOutstanding());
+		assertTrue(pipeline.fill(0).isEmpty());
+		assertFalse(pipeline.wantsPiece());
+	}
+
+	@Test
+	public void timedOutRequestsReissued() {
+		pipeline.addPiece(piece(0));
+		List<PendingRequest> first = pipeline.fill(0);
+		assertEquals(4,first.size());
+		assertTrue(pipeline.fill(1000).isEmpty());
+		assertEquals(first,pipeline.fill(60000));
+		assertEquals(4,pipeline.getOutstanding());
+	}
+
+	@Test
+	public void takeFinishedCancelsOutstanding() {
+		Piece rejected = piece(0);
+		Piece complete = piece(1);
+		pipeline.addPiece(rejected);
+		pipeline.addPiece(complete);
+		List<PendingRequest> sent = pipeline.fill(0);
+		assertEquals(8,sent.size());
+		for(PendingRequest r : sent) {
+			if(r.getIndex() == 1) {
+				deliver(pipeline,r);
+			}
+		}
+		pipeline.requestRejected(0,0,10);
+		List<Piece> done = pipeline.takeFinished();
+		assertEquals(2,done.size());
+		assertTrue(done.contains(rejected));
+		assertTrue(done.contains(complete));
+		assertEquals(0,pipeline.getPieceCount());
+		assertEquals(0,pipeline.getOutstanding());
+		List<PendingRequest> cancels = pipeline.takeCancels();
+		assertEquals(3,cancels.size());
+		for(PendingRequest r : cancels) {
+			assertEquals(0,r.getIndex());
+			assertTrue(r.getOffset() > 0);
+		}
+		assertTrue(pipeline.takeCancels().isEmpty());
+	}
+
+	@Test
+	public void blockSavedElsewhereCancelled() {
+		Piece shared = piece(0);
+		RequestPipeline other = new RequestPipeline();
+		pipeline.addPiece(shared);
+		other.addPiece(shared);
+		List<PendingRequest> mine = pipeline.fill(0);
+		other.fill(0);
+		deliver(other,mine.get(0));
+		List<PendingRequest> cancels = pipeline.takeCancels();
+		assertEquals(1,cancels.size());
+		assertEquals(mine.get(0),cancels.get(0));
+		assertEquals(3,pipeline.getOutstanding());
+		assertTrue(other.takeCancels().isEmpty());
+	}
+
+	@Test
+	public void wantsPieceOnceEveryBlockRequested() {
+		assertTrue(pipeline.wantsPiece());
+		pipeline.addPiece(piece(0));
+		assertFalse(pipeline.wantsPiece());
+		pipeline.fill(0);
+		assertTrue(pipeline.wantsPiece());
+		pipeline.clear();
+		for(int i = 0; i < RequestPipeline.MAX_PIECES; i++) {
+			pipeline.addPiece(piece(i));
+			pipeline.fill(0);
+		}
+		assertFalse(pipeline.wantsPiece());
+	}
+}
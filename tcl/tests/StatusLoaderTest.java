@@ -0,0 +1,169 @@
+package tcl.tests;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import tcl.tm.torrent.file.util.impl.StatusLoaderImpl;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests which state a StatusLoader loads after the slots of its status file are damaged.
+ * The torrent has 12 pieces, so each slot is a 24 byte header and a 2 byte bitmap.
+ **/
+public class StatusLoaderTest {
+
+	private static final int PIECES = 12;
+	private static final int SLOT = 24 + 2;
+	private static final int GENERATION_OFFSET = 16;
+
+	private FakeTorrentInfo info;
+	private String dir;
+	private File status;
+
+	@Before
+	public void setup() throws Exception {
+		info = new FakeTorrentInfo(10,PIECES * 10);
+		File d = File.createTempFile("status","");
+		d.delete();
+		d.mkdir();
+		d.deleteOnExit();
+		dir = d.getPath() + "/";
+		status = new File(dir + "." + info.getEscapedInfoHash());
+	}
+
+	private static boolean[] pieces(int... ids) {
+		boolean[] b = new boolean[PIECES];
+		for(int id : ids) {
+			b[id] = true;
+		}
+		return b;
+	}
+
+	private boolean[] load() throws Exception {
+		StatusLoaderImpl sl = new StatusLoaderImpl(info,dir);
+		boolean[] b = sl.getStatus();
+		sl.close();
+		return b;
+	}
+
+	/**
+	 * Saves piece 0 and then piece 1, leaving the older state in one slot and the newer in the other.
+	 **/
+	private void saveTwoStates() throws Exception {
+		StatusLoaderImpl sl = new StatusLoaderImpl(info,dir);
+		sl.setStatus(0,true);
+		assertTrue(sl.flush());
+		sl.setStatus(1,true);
+		sl.close();
+	}
+
+	private long generation(int slot) throws Exception {
+		RandomAccessFile f = new RandomAccessFile(status,"r");
+		try {
+			f.seek(slot * SLOT + GENERATION_OFFSET);
+			return f.readLong();
+		} finally {
+			f.close();
+		}
+	}
+
+	private int newestSlot() throws Exception {
+		return (generation(0) > generation(1)) ? 0 : 1;
+	}
+
+	private void corrupt(long position) throws Exception {
+		RandomAccessFile f = new RandomAccessFile(status,"rw");
+		try {
+			f.seek(position);
+			int b = f.read();
+			f.seek(position);
+			f.write(b ^ 0x01);
+		} finally {
+			f.close();
+		}
+	}
+
+	@Test
+	public void newerGenerationWins() throws Exception {
+		saveTwoStates();
+		assertEquals(1,Math.abs(generation(0) - generation(1)));
+		assertTrue(Arrays.equals(pieces(0,1),load()));
+	}
+
+	@Test
+	public void tornNewestSlotFallsBack() throws Exception {
+		saveTwoStates();
+		// A bitmap byte that no longer matches the checksum, as if only part of the slot reached the disk.
+		corrupt(newestSlot() * SLOT + 24 + 1);
+		assertTrue(Arrays.equals(pieces(0),load()));
+	}
+
+	@Test
+	public void tornOlderSlotIgnored() throws Exception {
+		saveTwoStates();
+		corrupt((1 - newestSlot()) * SLOT + 24);
+		assertTrue(Arrays.equals(pieces(0,1),load()));
+	}
+
+	@Test
+	public void corruptGenerationRejected() throws Exception {
+		saveTwoStates();
+		// The checksum covers the generation, so a damaged generation cannot make a slot look newer.
+		corrupt(newestSlot() * SLOT + GENERATION_OFFSET + 7);
+		assertTrue(Arrays.equals(pieces(0),load()));
+	}
+
+	@Test
+	public void bothSlotsCorruptStartsOver() throws Exception {
+		saveTwoStates();
+		corrupt(24);
+		corrupt(SLOT + 24);
+		assertTrue(Arrays.equals(pieces(),load()));
+		assertEquals(2 * SLOT,status.length());
+
+		StatusLoaderImpl sl = new StatusLoaderImpl(info,dir);
+		sl.setStatus(5,true);
+		sl.close();
+		assertTrue(Arrays.equals(pieces(5),load()));
+	}
+
+	@Test
+	public void legacyStatusMigrated() throws Exception {
+		byte[] legacy = new byte[PIECES];
+		legacy[2] = 1;
+		legacy[11] = 1;
+		RandomAccessFile f = new RandomAccessFile(status,"rw");
+		f.write(legacy);
+		f.close();
+
+		assertTrue(Arrays.equals(pieces(2,11),load()));
+		assertEquals(2 * SLOT,status.length());
+		assertTrue(Arrays.equals(pieces(2,11),load()));
+	}
+
+	@Test
+	public void corruptPartialPiecesRejected() throws Exception {
+		Map<Integer,boolean[]> partial = new HashMap<Integer,boolean[]>();
+		partial.put(3,new boolean[] {true,false,true});
+		StatusLoaderImpl sl = new StatusLoaderImpl(info,dir);
+		assertTrue(sl.setPartialPieces(partial));
+		Map<Integer,boolean[]> loaded = sl.getPartialPieces();
+		assertEquals(1,loaded.size());
+		assertTrue(Arrays.equals(new boolean[] {true,false,true},loaded.get(3)));
+
+		File side = new File(status.getPath() + StatusLoaderImpl.PARTIAL_SUFFIX);
+		RandomAccessFile f = new RandomAccessFile(side,"rw");
+		f.seek(24);
+		f.write(0x40);
+		f.close();
+		assertTrue(sl.getPartialPieces().isEmpty());
+		sl.close();
+	}
+}
@@ -23,6 +23,17 @@ public interface TorrentManager extends Closeable {
 	 * @return ture if it has started downloading false otherwise
 	 */
 	public boolean start(String filePath);
+
+	/**
+	 * Starts the torrent download, choosing how its files are accessed.
+	 * This will resume a download if it has already been downloaded before.
+	 * 
+	 * @param filePath the path to the .torrent file that you will be downloading
+	 * @param memoryMapped Whether the torrent's files should be accessed through memory mapped
+	 * regions rather than individual reads and writes
+	 * @return true if it has started downloading false otherwise
+	 */
+	public boolean start(String filePath, boolean memoryMapped);
 	
 	/**
 	 * This method will stop the torrent downlaod.
@@ -53,6 +64,28 @@ public interface TorrentManager extends Closeable {
 	 * @return true if sucessful false otherwise
 	 */
 	public boolean remove(String filePath);
+
+	/**
+	 * Verifies the data already on disk for the given torrent, then starts it.
+	 * If the torrent is running it is stopped first.
+	 * 
+	 * @param filePath The path to the .torrent file
+	 * 
+	 * @return true if the recheck was started, false otherwise
+	 **/
+	public boolean recheck(String filePath);
+
+	/**
+	 * Verifies the data already on disk for the given torrent, then starts it,
+	 * reading from disk no faster than the given rate.
+	 * If the torrent is running it is stopped first.
+	 * 
+	 * @param filePath The path to the .torrent file
+	 * @param rateLimit The most bytes per second to read while verifying, or 0 for no limit
+	 * 
+	 * @return true if the recheck was started, false otherwise
+	 **/
+	public boolean recheck(String filePath, long rateLimit);
 	
 
 	/**
@@ -4,8 +4,10 @@ import tcl.tm.connection.ConnectionManager;
 import tcl.tm.torrent.info.util.Bencode;
 import tcl.tm.TorrentManager;
 import tcl.tm.torrent.Torrent;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -46,7 +48,9 @@ public class ConnectionManagerImpl implements ConnectionManager {
 		this.port = port;
 		this.running = true;
 		try {
-			this.socket = new ServerSocket(port);
+			// Opened through a channel, so accepted sockets have channels to send piece data with.
+			this.socket = ServerSocketChannel.open().socket();
+			this.socket.bind(new InetSocketAddress(port));
 		} catch(IOException e) {
 			throw new IllegalStateException(e.getMessage());
 		}
@@ -0,0 +1,75 @@
+package tcl.tm.connection.impl;
+
+import tcl.tm.connection.ConnectionManager;
+import tcl.tm.connection.util.Handshake;
+import tcl.tm.TorrentManager;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.io.IOException;
+
+/**
+ * A ConnectionManager for the selector engine.
+ * Connections are accepted on this ConnectionManager's thread, and each is then
+ * handshaken on one of the shared SelectorLoops rather than on a thread of its own.
+ * 
+ * @author Wayne Rowcliffe
+ **/
+public class SelectorConnectionManager implements ConnectionManager {
+	
+	private TorrentManager tm;
+	private boolean running;
+	private ServerSocketChannel server;
+	
+	/**
+	 * Constructs a SelectorConnectionManager for the given TorrentManager, which listens on the given port.
+	 *
+	 * @param tm The TorrentManager this ConnectionManager is managing connections for.
+	 * @param port The port this ConnectionManager should listen on.
+	 **/
+	public SelectorConnectionManager(TorrentManager tm, int port) {
+		this.tm = tm;
+		this.running = true;
+		try {
+			this.server = ServerSocketChannel.open();
+			this.server.socket().bind(new InetSocketAddress(port));
+		} catch(IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+	
+	private synchronized boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * Accepts incoming connections and hands them to a SelectorLoop to be handshaken.
+	 **/
+	public void run() {
+		while(isRunning()) {
+			try {
+				SocketChannel channel = server.accept();
+				Handshake.accept(channel,tm);
+			} catch(IOException e) {
+				if(isRunning()) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Stops this ConnectionManager, meaning it will no longer listen for new connections.
+	 **/
+	public void close() {
+		synchronized(this) {
+			running = false;
+		}
+		try {
+			server.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
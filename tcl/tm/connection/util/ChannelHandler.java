@@ -0,0 +1,34 @@
+package tcl.tm.connection.util;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * A ChannelHandler drives one channel registered with a SelectorLoop.
+ * Every call is made on the loop's thread, so a handler needs no locking
+ * for state which only the loop touches, and must never block.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public interface ChannelHandler {
+
+	/**
+	 * Called once the channel has been registered with the loop, before it is first selected.
+	 *
+	 * @param key The key registering the channel with the loop.
+	 **/
+	public void registered(SelectionKey key);
+
+	/**
+	 * Called when the channel is ready for some of the operations the key is interested in.
+	 *
+	 * @param key The key registering the channel with the loop.
+	 **/
+	public void ready(SelectionKey key);
+
+	/**
+	 * Called if the channel could not be registered, or the loop is shutting down.
+	 * The handler should release whatever it holds.
+	 **/
+	public void close();
+
+}
@@ -0,0 +1,219 @@
+package tcl.tm.connection.util;
+
+import tcl.tm.TorrentManager;
+import tcl.tm.torrent.Torrent;
+import tcl.tm.torrent.info.util.Bencode;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A Handshake performs the BitTorrent handshake over a non-blocking channel on a SelectorLoop.
+ *
+ * For a connection we accepted, the Peer's handshake is read first, and ours is only sent
+ * back if it names a torrent we are serving. For a connection we made, ours is sent first
+ * and the Peer's must name the same torrent. Once both are exchanged the channel is handed
+ * to the Torrent, still non-blocking, to be driven by a SelectorPeer. Connections which fail,
+ * or which take too long, are closed.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public class Handshake implements ChannelHandler {
+
+	// This is the standard form of a BitTorrent handshake.
+	private static final byte[] HANDSHAKE_TEMPLATE = {
+		19, 66, 105, 116, 84, 111, 114, 114, 101, 110, 116, 32, 112, 114, 111, 116, 111, 99, 111, 108,
+		0, 0, 0, 0, 0, 0, 0, 4,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		45, 65, 90, 50, 48, 54, 48, 45, 49, 50, 51, 52, 53, 54, 55, 56, 57, 48, 49, 50};
+
+	// How long the connect and the handshake may take altogether.
+	private static final long TIMEOUT = 18000;
+
+	private TorrentManager tm;
+	private Torrent torrent;
+	private SocketChannel channel;
+	private SelectionKey key;
+
+	private ByteBuffer in;
+	private ByteBuffer out;
+	private byte[] reserved;
+	private boolean done;
+
+	private Handshake(SocketChannel channel, TorrentManager tm, Torrent torrent) {
+		this.channel = channel;
+		this.tm = tm;
+		this.torrent = torrent;
+		this.in = ByteBuffer.allocate(HANDSHAKE_TEMPLATE.length);
+		this.reserved = new byte[8];
+	}
+
+	/**
+	 * Handshakes with a Peer which has connected to us, on behalf of whichever torrent it asks for.
+	 *
+	 * @param channel The accepted connection.
+	 * @param tm The TorrentManager serving the torrents.
+	 **/
+	public static void accept(SocketChannel channel, TorrentManager tm) {
+		new Handshake(channel,tm,null).start(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Connects to a Peer and handshakes with it on behalf of the given torrent.
+	 *
+	 * @param address The Peer's address.
+	 * @param torrent The torrent to share with the Peer.
+	 **/
+	public static void connect(InetSocketAddress address, Torrent torrent) {
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			Handshake h = new Handshake(channel,null,torrent);
+			h.out = h.handshake(torrent.getInformationManager().getTorrentInfo().getInfoHash());
+			boolean connected = channel.connect(address);
+			h.start(connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT);
+		} catch(IOException e) {
+			close(channel);
+		}
+	}
+
+	/**
+	 * Registers the channel with the next loop, and closes it if the handshake is not done in time.
+	 *
+	 * @param ops The operations to select for first.
+	 **/
+	private void start(int ops) {
+		SelectorLoop loop = SelectorPool.getShared().next();
+		loop.register(channel,ops,this);
+		loop.schedule(new Runnable() {
+			public void run() {
+				if(!done) {
+					fail();
+				}
+			}
+		},TIMEOUT);
+	}
+
+	public void registered(SelectionKey key) {
+		this.key = key;
+	}
+
+	public void ready(SelectionKey key) {
+		try {
+			if(key.isConnectable()) {
+				if(channel.finishConnect()) {
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+				return;
+			}
+			if(key.isWritable()) {
+				channel.write(out);
+				if(!out.hasRemaining()) {
+					if(in.hasRemaining()) {
+						key.interestOps(SelectionKey.OP_READ);
+					} else {
+						finish();
+					}
+				}
+				return;
+			}
+			if(key.isReadable()) {
+				if(channel.read(in) < 0) {
+					fail();
+				} else if(!in.hasRemaining()) {
+					handshakeRead();
+				}
+			}
+		} catch(IOException e) {
+			fail();
+		}
+	}
+
+	public void close() {
+		fail();
+	}
+
+	/**
+	 * Checks the Peer's handshake once it has all arrived.
+	 * An accepted Peer is answered with our handshake, while a Peer we contacted is added straight away.
+	 **/
+	private void handshakeRead() {
+		byte[] theirs = in.array();
+		for(int i = 0; i < 20; i++) {
+			if(theirs[i] != HANDSHAKE_TEMPLATE[i]) {
+				fail();
+				return;
+			}
+		}
+		System.arraycopy(theirs,20,reserved,0,8);
+		byte[] hash = new byte[20];
+		System.arraycopy(theirs,28,hash,0,20);
+		if(torrent == null) {
+			torrent = tm.getTorrentByHash(Bencode.escapeBytes(hash));
+			if(torrent == null) {
+				fail();
+				return;
+			}
+			out = handshake(hash);
+			key.interestOps(SelectionKey.OP_WRITE);
+		} else {
+			byte[] ours = out.array();
+			for(int i = 0; i < 20; i++) {
+				if(hash[i] != ours[28 + i]) {
+					fail();
+					return;
+				}
+			}
+			finish();
+		}
+	}
+
+	/**
+	 * Builds our handshake for the given info hash.
+	 *
+	 * @param hash The info hash.
+	 *
+	 * @return The handshake, ready to be written.
+	 **/
+	private ByteBuffer handshake(byte[] hash) {
+		byte[] handShake = HANDSHAKE_TEMPLATE.clone();
+		System.arraycopy(hash,0,handShake,28,20);
+		return ByteBuffer.wrap(handShake);
+	}
+
+	/**
+	 * Hands the connection over to the torrent.
+	 **/
+	private void finish() {
+		done = true;
+		key.cancel();
+		torrent.addPeer(channel.socket(),reserved);
+	}
+
+	/**
+	 * Gives up on the connection.
+	 **/
+	private void fail() {
+		if(!done) {
+			done = true;
+			if(key != null) {
+				key.cancel();
+			}
+			close(channel);
+		}
+	}
+
+	private static void close(SocketChannel channel) {
+		try {
+			if(channel != null) {
+				channel.close();
+			}
+		} catch(IOException e) {}
+	}
+}
@@ -0,0 +1,192 @@
+package tcl.tm.connection.util;
+
+import java.io.IOException;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A SelectorLoop drives many non-blocking channels from a single thread.
+ *
+ * Channels are registered with a ChannelHandler, which is called whenever its channel is ready.
+ * Other threads hand work to the loop with execute, or schedule it for later with schedule,
+ * and the work is run on the loop's thread between selects. Tasks scheduled for the same
+ * time run in the order they were scheduled.
+ *
+ * Registrations are run as tasks after the select which follows them, so a channel whose
+ * key was just cancelled on this loop can be registered again straight away.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public class SelectorLoop implements Runnable {
+
+	private Selector selector;
+	private Thread thread;
+
+	private List<Runnable> tasks;
+	private PriorityQueue<Timer> timers;
+	private long sequence;
+
+	/**
+	 * Creates a SelectorLoop and starts its thread.
+	 *
+	 * @param name The name of the loop's thread.
+	 **/
+	public SelectorLoop(String name) {
+		try {
+			this.selector = Selector.open();
+		} catch(IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+		this.tasks = new ArrayList<Runnable>();
+		this.timers = new PriorityQueue<Timer>();
+		this.thread = new Thread(this,name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Whether the calling thread is this loop's thread.
+	 *
+	 * @return Whether we are on the loop.
+	 **/
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs the given task on the loop's thread as soon as possible.
+	 *
+	 * @param task The task to run.
+	 **/
+	public void execute(Runnable task) {
+		synchronized(tasks) {
+			tasks.add(task);
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs the given task on the loop's thread once the delay has passed.
+	 *
+	 * @param task The task to run.
+	 * @param delay How long to wait, in milliseconds.
+	 **/
+	public void schedule(Runnable task, long delay) {
+		synchronized(tasks) {
+			timers.add(new Timer(System.currentTimeMillis() + Math.max(0,delay),sequence++,task));
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * Registers a channel with this loop. The channel is made non-blocking.
+	 * If it cannot be registered, the channel is closed and so is the handler.
+	 *
+	 * @param channel The channel to register.
+	 * @param ops The operations to select for.
+	 * @param handler The handler to call when the channel is ready.
+	 **/
+	public void register(final SelectableChannel channel, final int ops, final ChannelHandler handler) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					channel.configureBlocking(false);
+					handler.registered(channel.register(selector,ops,handler));
+				} catch(IOException e) {
+					try {
+						channel.close();
+					} catch(IOException io) {}
+					handler.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Selects and dispatches ready channels, tasks and timers until the process exits.
+	 **/
+	public void run() {
+		List<Runnable> run = new ArrayList<Runnable>();
+		while(true) {
+			try {
+				long timeout = 0;
+				synchronized(tasks) {
+					if(!tasks.isEmpty()) {
+						timeout = -1;
+					} else if(!timers.isEmpty()) {
+						timeout = Math.max(1,timers.peek().when - System.currentTimeMillis());
+					}
+				}
+				if(timeout < 0) {
+					selector.selectNow();
+				} else {
+					selector.select(timeout);
+				}
+
+				long now = System.currentTimeMillis();
+				synchronized(tasks) {
+					run.addAll(tasks);
+					tasks.clear();
+					while(!timers.isEmpty() && timers.peek().when <= now) {
+						run.add(timers.poll().task);
+					}
+				}
+				for(Runnable r : run) {
+					try {
+						r.run();
+					} catch(RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+				run.clear();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if(key.isValid()) {
+						try {
+							((ChannelHandler) key.attachment()).ready(key);
+						} catch(RuntimeException e) {
+							e.printStackTrace();
+							key.cancel();
+							((ChannelHandler) key.attachment()).close();
+						}
+					}
+				}
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A task waiting for its time to run.
+	 **/
+	private static class Timer implements Comparable<Timer> {
+
+		private long when;
+		private long sequence;
+		private Runnable task;
+
+		private Timer(long when, long sequence, Runnable task) {
+			this.when = when;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		public int compareTo(Timer t) {
+			if(when != t.when) {
+				return when < t.when ? -1 : 1;
+			}
+			return sequence < t.sequence ? -1 : (sequence == t.sequence ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package tcl.tm.connection.util;
+
+/**
+ * The SelectorLoops shared by every torrent in the process, one per processor.
+ * Connections are spread over the loops in turn.
+ *
+ * The selector engine is used in place of a thread per connection when the
+ * tcl.net.nio system property is set to true.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public class SelectorPool {
+
+	private static final boolean enabled = Boolean.getBoolean("tcl.net.nio");
+
+	private static SelectorPool shared;
+
+	private SelectorLoop[] loops;
+	private int next;
+
+	/**
+	 * Creates a SelectorPool with the given number of loops.
+	 *
+	 * @param count The number of loops, and so of threads.
+	 **/
+	public SelectorPool(int count) {
+		this.loops = new SelectorLoop[Math.max(1,count)];
+		for(int i = 0; i < loops.length; i++) {
+			loops[i] = new SelectorLoop("Selector Loop " + i);
+		}
+	}
+
+	/**
+	 * The SelectorPool shared by all torrents in this process, started the first time it is needed.
+	 *
+	 * @return The shared SelectorPool.
+	 **/
+	public static synchronized SelectorPool getShared() {
+		if(shared == null) {
+			shared = new SelectorPool(Runtime.getRuntime().availableProcessors());
+		}
+		return shared;
+	}
+
+	/**
+	 * Whether connections should be driven by the selector engine.
+	 *
+	 * @return Whether the selector engine is enabled.
+	 **/
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * The loop the next connection should be registered with.
+	 *
+	 * @return A SelectorLoop.
+	 **/
+	public synchronized SelectorLoop next() {
+		SelectorLoop loop = loops[next];
+		next = (next + 1) % loops.length;
+		return loop;
+	}
+}
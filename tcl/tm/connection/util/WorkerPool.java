@@ -0,0 +1,49 @@
+package tcl.tm.connection.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A process wide pool of threads for the work of connections driven by a SelectorLoop
+ * which may block, such as handing pieces to a FileAccessManager.
+ *
+ * The backlog is unbounded, since the loops submitting work must never run it themselves.
+ * Connections limit their own backlog instead, by no longer reading while too much is waiting.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public class WorkerPool {
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors() * 2;
+
+	private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS,
+													60, TimeUnit.SECONDS,
+													new LinkedBlockingQueue<Runnable>(),
+													new WorkerThreadFactory());
+
+	/**
+	 * Runs the given task on the pool.
+	 *
+	 * @param task The task to run.
+	 **/
+	public static void execute(Runnable task) {
+		pool.execute(task);
+	}
+
+	/**
+	 * Creates the daemon threads used by the pool, so that waiting work
+	 * never keeps the client from shutting down.
+	 **/
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		private int count = 0;
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r,"Selector Worker " + count++);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
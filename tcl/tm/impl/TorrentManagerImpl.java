@@ -3,8 +3,12 @@ package tcl.tm.impl;
 import tcl.tm.TorrentManager;
 import tcl.tm.torrent.Torrent;
 import tcl.tm.torrent.impl.TorrentImpl;
+import tcl.tm.torrent.file.impl.MappedFileAccessManagerImpl;
+import tcl.tm.torrent.file.util.Rechecker;
 import tcl.tm.connection.ConnectionManager;
 import tcl.tm.connection.impl.ConnectionManagerImpl;
+import tcl.tm.connection.impl.SelectorConnectionManager;
+import tcl.tm.connection.util.SelectorPool;
 
 import java.util.Hashtable;
 import java.io.IOException;
@@ -26,6 +30,7 @@ public class TorrentManagerImpl implements TorrentManager
 	private String baseDirectory;
 	private Hashtable<String,Torrent> fileMap;
 	private Hashtable<String,Torrent> hashMap;
+	private Hashtable<String,Boolean> mappedMap;
 	private ConnectionManager cm;
 
 	/**
@@ -40,7 +45,12 @@ public class TorrentManagerImpl implements TorrentManager
 		this.baseDirectory = baseDirectory;
 		this.fileMap = new Hashtable<String,Torrent>();
 		this.hashMap = new Hashtable<String,Torrent>();
-		this.cm = new ConnectionManagerImpl(this,1630);
+		this.mappedMap = new Hashtable<String,Boolean>();
+		if(SelectorPool.isEnabled()) {
+			this.cm = new SelectorConnectionManager(this,1630);
+		} else {
+			this.cm = new ConnectionManagerImpl(this,1630);
+		}
 		new Thread(cm,"ConnectionManager").start();
 	}
 	
@@ -52,16 +62,73 @@ public class TorrentManagerImpl implements TorrentManager
 	 * @return ture if it has started downloading false otherwise
 	 */
 	public boolean start(String filePath) {
+		return start(filePath,MappedFileAccessManagerImpl.isEnabled());
+	}
+
+	/**
+	 * This method will start the torrent download, choosing how its files are accessed.
+	 * This will resume a download if it has already been downloaded before.
+	 * 
+	 * @param filePath the path to the .torrent file that you will be downloading
+	 * @param memoryMapped whether the torrent's files should be accessed through memory mapped
+	 * regions rather than individual reads and writes
+	 * @return true if it has started downloading false otherwise
+	 */
+	public boolean start(String filePath, boolean memoryMapped) {
+		return start(filePath,memoryMapped,false,0);
+	}
+
+	/**
+	 * This method will verify the data already on disk for a torrent, and then start it.
+	 * A running torrent is stopped first, so that the recheck has the files to itself.
+	 * The recheck reads no faster than the tcl.recheck.rate property allows.
+	 * 
+	 * @param filePath the path to the .torrent file to recheck
+	 * @return true if the recheck has started, false otherwise
+	 */
+	public boolean recheck(String filePath) {
+		return recheck(filePath,Rechecker.DEFAULT_RATE_LIMIT);
+	}
+
+	/**
+	 * This method will verify the data already on disk for a torrent, and then start it.
+	 * A running torrent is stopped first, so that the recheck has the files to itself,
+	 * and is then started with the same kind of file access it had before.
+	 * 
+	 * @param filePath the path to the .torrent file to recheck
+	 * @param rateLimit the most bytes per second to read while verifying, or 0 for no limit
+	 * @return true if the recheck has started, false otherwise
+	 */
+	public boolean recheck(String filePath, long rateLimit) {
+		Boolean memoryMapped = mappedMap.get(filePath);
+		stop(filePath);
+		if(memoryMapped == null) {
+			memoryMapped = MappedFileAccessManagerImpl.isEnabled();
+		}
+		return start(filePath,memoryMapped,true,rateLimit);
+	}
+
+	/**
+	 * Starts the given torrent if it is not already running.
+	 * 
+	 * @param filePath the path to the .torrent file
+	 * @param memoryMapped Whether the torrent's files should be accessed through memory mapped regions
+	 * @param recheck Whether the data on disk should be verified before transferring
+	 * @param rateLimit The most bytes per second a recheck may read, or 0 for no limit
+	 * @return true if the torrent is running, false otherwise
+	 */
+	private boolean start(String filePath, boolean memoryMapped, boolean recheck, long rateLimit) {
 		boolean success = true;
 		if(fileMap.get(filePath) == null) {
 			Torrent t = null;
 			try {
-				t = new TorrentImpl(filePath,baseDirectory);
+				t = new TorrentImpl(filePath,baseDirectory,memoryMapped,recheck,rateLimit);
 			} catch(IllegalArgumentException e) {
 				success = false;
 			}
 			if(t != null) {
 				fileMap.put(filePath,t);
+				mappedMap.put(filePath,memoryMapped);
 				hashMap.put(t.getInformationManager().getTorrentInfo().getEscapedInfoHash(),t);
 			}
 		}
@@ -79,6 +146,7 @@ public class TorrentManagerImpl implements TorrentManager
 		Torrent t = fileMap.get(filePath);
 		if(t != null) {
 			fileMap.remove(filePath);
+			mappedMap.remove(filePath);
 			hashMap.remove(t.getInformationManager().getTorrentInfo().getEscapedInfoHash());
 			try {
 				t.close();
@@ -105,6 +173,7 @@ public class TorrentManagerImpl implements TorrentManager
 		Torrent t = fileMap.get(filePath);
 		if(t != null) {
 			fileMap.remove(filePath);
+			mappedMap.remove(filePath);
 			hashMap.remove(t.getInformationManager().getTorrentInfo().getEscapedInfoHash());
 			t.relocate(newFilePath);
 		}
@@ -124,6 +193,7 @@ public class TorrentManagerImpl implements TorrentManager
 		Torrent t = fileMap.get(filePath);
 		if(t != null) {
 			fileMap.remove(filePath);
+			mappedMap.remove(filePath);
 			hashMap.remove(t.getInformationManager().getTorrentInfo().getEscapedInfoHash());
 			t.remove();
 		}
@@ -142,7 +212,7 @@ public class TorrentManagerImpl implements TorrentManager
 	public boolean isComplete(String filePath) {
 		boolean success = true;
 		Torrent t = fileMap.get(filePath);
-		if(t != null) {
+		if(t != null && t.getFileAccessManager() != null) {
 			byte[] bitfield = t.getFileAccessManager().getBitfield().getData();
 			int pieceCount = t.getInformationManager().getTorrentInfo().getPieceCount();
 			int count = pieceCount / 8;
@@ -68,4 +68,19 @@ public interface Torrent extends Closeable {
 	 * @param peer The Socket representing the connection to an interested peer.
 	 **/ 
 	public void addPeer(Socket peer, byte[] reserved);
+
+	/**
+	 * Whether this Torrent is verifying the data already on disk before it starts transferring.
+	 * While checking, getCommunicationManager() and getFileAccessManager() return null.
+	 * 
+	 * @return true if a recheck is in progress, false otherwise
+	 **/
+	public boolean isChecking();
+
+	/**
+	 * The number of pieces verified so far by the current recheck.
+	 * 
+	 * @return The number of pieces checked, or 0 if no recheck is in progress.
+	 **/
+	public int getNumPiecesChecked();
 }
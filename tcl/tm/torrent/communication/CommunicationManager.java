@@ -4,6 +4,8 @@ import java.io.Closeable;
 import java.net.Socket;
 
 import tcl.tm.torrent.communication.util.Piece;
+import tcl.tm.torrent.file.FileAccessFuture;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
 
 /**
  * The CommunicationManager is responsible for all logic regarding
@@ -63,10 +65,12 @@ public interface CommunicationManager extends Closeable {
 	 * by a Peer with this bitfield.
 	 *
 	 * @param bitfield The list of pieces which the given Peer has available for downloading.
+	 * @param completeTime The amount of time the Peer took to download the last piece.
+	 * @param wait Whether to wait for a free Piece if all are in use, rather than returning null.
 	 *
 	 * @return A piece which can be downloaded by the Peer, given the bitfield they have provided.
 	 **/
-	public Piece assignPiece(boolean[] bitfield, long completeTime);
+	public Piece assignPiece(ConcurrentBitSet bitfield, long completeTime, boolean wait);
 
 	/**
 	 * Called by a Peer to return a Piece it has been assigned.
@@ -78,8 +82,10 @@ public interface CommunicationManager extends Closeable {
 	 * In this case, Pieces will be saved so that any data recieved previously will not be lost.
 	 *
 	 * @param p The Piece which is being returned.
+	 *
+	 * @return The request saving the Piece, which fails if the Piece was incomplete or could not be saved.
 	 **/
-	public boolean returnPiece(Piece p);
+	public FileAccessFuture returnPiece(Piece p);
 
 	/**
 	 * Called by a Peer to indicate to this CommunicationManager that it now has a new piece which can be downloaded from it.
@@ -94,7 +100,7 @@ public interface CommunicationManager extends Closeable {
 	 *
 	 * @param bitfield The bitfield of the calling peer.
 	 **/
-	public void peerBitfield(boolean[] bitfield);
+	public void peerBitfield(ConcurrentBitSet bitfield);
 
 	/**
 	 * Called by a Peer to decide whether it has pieces which are still needed for this Torrent.
@@ -103,7 +109,7 @@ public interface CommunicationManager extends Closeable {
 	 *
 	 * @return Whether the calling peer has pieces which are still needed for this Torrent.
 	 **/
-	public boolean peerInteresting(boolean[] bitfield);
+	public boolean peerInteresting(ConcurrentBitSet bitfield);
 
 	/**
 	 * Called by a Peer to indicate that it will no longer be sharing pieces. Probably because of
@@ -111,6 +117,17 @@ public interface CommunicationManager extends Closeable {
 	 *
 	 * @param bitfield The bitfield of the calling peer.
 	 **/
-	public void removeBitfield(boolean[] bitfield);
+	public void removeBitfield(ConcurrentBitSet bitfield);
+
+	/**
+	 * Called by a Peer which has every piece, in place of peerBitfield.
+	 * Seeds are counted rather than added piece by piece.
+	 **/
+	public void peerSeed();
 
+	/**
+	 * Called by a Peer which was counted as a seed when it will no longer be sharing pieces,
+	 * in place of removeBitfield.
+	 **/
+	public void removeSeed();
 }
@@ -15,6 +15,8 @@ import tcl.tm.torrent.communication.peer.Peer;
 import tcl.tm.torrent.communication.peer.impl.StandardPeer;
 import tcl.tm.torrent.communication.peer.impl.FastPeerImpl;
 import tcl.tm.torrent.communication.util.ConnectionSeeker;
+import tcl.tm.torrent.file.FileAccessFuture;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
 import tcl.tm.torrent.communication.util.Piece;
 import tcl.tm.torrent.communication.util.ThroughputMonitor;
 
@@ -48,6 +50,15 @@ public class CommunicationManagerImpl implements CommunicationManager {
 
 	private ThroughputMonitor speed;
 
+	// Pieces at least this large are streamed to disk block by block rather than held on the heap.
+	private static final int STREAMING_PIECE_LENGTH = 4 * 1024 * 1024;
+
+	// Each Peer may download several pieces at once, so the pool holds as many Pieces
+	// as fit in this much memory, within these bounds. Streaming Pieces hold no data.
+	private static final int PIECE_MEMORY = 64 * 1024 * 1024;
+	private static final int MIN_POOL_SIZE = 15;
+	private static final int MAX_POOL_SIZE = 256;
+
 	public CommunicationManagerImpl(Torrent torrent) {
 
 		this.running = true;
@@ -55,10 +66,13 @@ public class CommunicationManagerImpl implements CommunicationManager {
 		this.speed = new ThroughputMonitor();
 		this.speed.start();
 
-		Piece template = new Piece(16 * 1024, torrent, speed);
+		int pieceLength = torrent.getInformationManager().getTorrentInfo().getPieceLength();
+		boolean streaming = pieceLength >= STREAMING_PIECE_LENGTH;
+		Piece template = new Piece(16 * 1024, torrent, speed, streaming);
+		int poolSize = streaming ? MAX_POOL_SIZE : Math.max(MIN_POOL_SIZE,Math.min(MAX_POOL_SIZE,PIECE_MEMORY / pieceLength));
 
 		this.peerRegistry = new PeerRegistryImpl(torrent);
-		this.pieceRegistry = new PieceRegistryImpl(torrent, peerRegistry, template, 15);
+		this.pieceRegistry = new PieceRegistryImpl(torrent, peerRegistry, template, poolSize);
 
 		this.runLock = new Object();
 
@@ -133,8 +147,9 @@ public class CommunicationManagerImpl implements CommunicationManager {
 			running = false;
 		}
 		seeker.close();
-		pieceRegistry.close();
+		// The Peers return their pieces as they close, and only then are the partial pieces saved.
 		peerRegistry.close();
+		pieceRegistry.close();
 		speed.close();
 	}
 
@@ -144,11 +159,13 @@ public class CommunicationManagerImpl implements CommunicationManager {
 	 * by a Peer with this bitfield.
 	 *
 	 * @param bitfield The list of pieces which the given Peer has available for downloading.
+	 * @param completeTime The amount of time the Peer took to download the last piece.
+	 * @param wait Whether to wait for a free Piece if all are in use, rather than returning null.
 	 *
 	 * @return A piece which can be downloaded by the Peer, given the bitfield they have provided.
 	 **/
-	public Piece assignPiece(boolean[] bitfield, long completeTime) {
-		return pieceRegistry.requestPiece(bitfield, completeTime);
+	public Piece assignPiece(ConcurrentBitSet bitfield, long completeTime, boolean wait) {
+		return pieceRegistry.requestPiece(bitfield, completeTime, wait);
 	}
 
 	/**
@@ -161,8 +178,10 @@ public class CommunicationManagerImpl implements CommunicationManager {
 	 * In this case, Pieces will be saved so that any data recieved previously will not be lost.
 	 *
 	 * @param p The Piece which is being returned.
+	 *
+	 * @return The request saving the Piece, which fails if the Piece was incomplete or could not be saved.
 	 **/
-	public boolean returnPiece(Piece p) {
+	public FileAccessFuture returnPiece(Piece p) {
 		return pieceRegistry.returnPiece(p);
 	}
 
@@ -181,7 +200,7 @@ public class CommunicationManagerImpl implements CommunicationManager {
 	 *
 	 * @param bitfield The bitfield of the calling peer.
 	 **/
-	public void peerBitfield(boolean[] bitfield) {
+	public void peerBitfield(ConcurrentBitSet bitfield) {
 		pieceRegistry.peerBitfield(bitfield);
 	}
 
@@ -192,7 +211,7 @@ public class CommunicationManagerImpl implements CommunicationManager {
 	 *
 	 * @return Whether the calling peer has pieces which are still needed for this Torrent.
 	 **/
-	public boolean peerInteresting(boolean[] bitfield) {
+	public boolean peerInteresting(ConcurrentBitSet bitfield) {
 		return pieceRegistry.peerInteresting(bitfield);
 	}
 
@@ -202,7 +221,23 @@ public class CommunicationManagerImpl implements CommunicationManager {
 	 *
 	 * @param bitfield The bitfield of the calling peer.
 	 **/
-	public void removeBitfield(boolean[] bitfield) {
+	public void removeBitfield(ConcurrentBitSet bitfield) {
 		pieceRegistry.removeBitfield(bitfield);
 	}
+
+	/**
+	 * Called by a Peer which has every piece, in place of peerBitfield.
+	 * Seeds are counted rather than added piece by piece.
+	 **/
+	public void peerSeed() {
+		pieceRegistry.peerSeed();
+	}
+
+	/**
+	 * Called by a Peer which was counted as a seed when it will no longer be sharing pieces,
+	 * in place of removeBitfield.
+	 **/
+	public void removeSeed() {
+		pieceRegistry.removeSeed();
+	}
 }
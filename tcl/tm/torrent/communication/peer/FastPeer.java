@@ -1,7 +1,6 @@
 package tcl.tm.torrent.communication.peer;
 
 import tcl.tm.torrent.communication.peer.Peer;
-import tcl.tm.torrent.communication.peer.util.PendingRequest;
 
 import java.util.Set;
 
@@ -11,8 +10,6 @@ public interface FastPeer extends Peer {
 	
 	public Set<Integer> getSuggested();
 	
-	public Set<PendingRequest> getPendingRequests();
-	
 	public Object getFastLock();
 	
 }
@@ -1,6 +1,7 @@
 package tcl.tm.torrent.communication.peer;
 
-import tcl.tm.torrent.communication.util.Piece;
+import tcl.tm.torrent.communication.peer.util.RequestPipeline;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
 
 import java.io.Closeable;
 
@@ -23,7 +24,7 @@ public interface Peer extends Closeable {
 	
 	public boolean getAmChoking();
 	
-	public boolean[] getBitfield();
+	public ConcurrentBitSet getBitfield();
 	
 	public void bitfieldUpdated();
 	
@@ -33,11 +34,7 @@ public interface Peer extends Closeable {
 	
 	public void close();
 	
-	public Piece getCurrentPiece();
-	
-	public void setCurrentPiece(Piece piece);
-
-	public void notifyPieceComplete();
+	public RequestPipeline getPipeline();
 	
 	public void issueHave(int id);
 	
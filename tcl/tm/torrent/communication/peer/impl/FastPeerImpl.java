@@ -3,22 +3,22 @@ package tcl.tm.torrent.communication.peer.impl;
 import tcl.tm.torrent.communication.peer.FastPeer;
 import tcl.tm.torrent.communication.peer.listener.PeerListener;
 import tcl.tm.torrent.communication.peer.listener.impl.FastPeerListener;
-import tcl.tm.torrent.communication.peer.sender.PeerSender;
+import tcl.tm.torrent.communication.peer.sender.FastSender;
 import tcl.tm.torrent.communication.peer.sender.impl.FastSenderImpl;
 import tcl.tm.torrent.communication.peer.retriever.PeerRetriever;
 import tcl.tm.torrent.communication.peer.retriever.impl.FastRetriever;
 import tcl.tm.torrent.communication.peer.util.PeerEvent;
-import tcl.tm.torrent.communication.peer.util.PendingRequest;
+import tcl.tm.torrent.communication.peer.util.PeerUtils;
+import tcl.tm.torrent.communication.peer.util.RequestPipeline;
 
 import tcl.tm.torrent.Torrent;
 import tcl.tm.torrent.communication.CommunicationManager;
 import tcl.tm.torrent.file.FileAccessManager;
 import tcl.tm.torrent.file.FileAccessFuture;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
 import tcl.tm.torrent.info.TorrentInfo;
 import tcl.tm.torrent.info.StatsInfo;
 
-import tcl.tm.torrent.communication.util.Piece;
-
 import java.net.Socket;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -38,6 +38,9 @@ import java.util.HashSet;
  **/
 public class FastPeerImpl implements FastPeer {
 
+	// The number of pieces a Peer may download from us while we choke it.
+	private static final int ALLOWED_FAST = 10;
+
 	private String name;
 
 	private boolean peerInterested;
@@ -54,23 +57,23 @@ public class FastPeerImpl implements FastPeer {
 	private TorrentInfo ti;
 	private StatsInfo si;
 
-	private boolean[] peerBitfield;
+	private ConcurrentBitSet peerBitfield;
+	// Whether the Peer was counted as a seed rather than by its bitfield.
+	private volatile boolean seed;
 
 	private Set<Integer> peerSuggested;
 	private Set<Integer> peerAllowedFast;
-	private Set<PendingRequest> pendingRequests;
 
 	private boolean running;
 
-	private Piece currentPiece;
+	private RequestPipeline pipeline;
 
 	private Object chokeLock;
-	private Object pieceLock;
 	private Object runLock;
 	private Object fastLock;
 
 	private PeerListener peerListener;
-	private PeerSender peerSender;
+	private FastSender peerSender;
 	private PeerRetriever pieceRetriever;
 
 	/**
@@ -96,20 +99,20 @@ public class FastPeerImpl implements FastPeer {
 		this.ti = torrent.getInformationManager().getTorrentInfo();
 		this.si = torrent.getInformationManager().getStatsInfo();
 
-		this.peerBitfield = new boolean[ti.getPieceCount()];
+		this.peerBitfield = new ConcurrentBitSet(ti.getPieceCount());
 
 		this.peerSuggested = new HashSet<Integer>();
 		this.peerAllowedFast = new HashSet<Integer>();
-		this.pendingRequests = new HashSet<PendingRequest>();
 
 		this.chokeLock = new Object();
-		this.pieceLock = new Object();
+		this.pipeline = new RequestPipeline();
 		this.runLock = new Object();
 		this.fastLock = new Object();
 
-		this.peerSender = new FastSenderImpl(this, fam, cm, peerOutput);
-		this.peerListener = new FastPeerListener(this, peerSender, peerInput);
-		this.pieceRetriever = new FastRetriever(this, peerSender, cm, si, chokeLock, pieceLock);
+		Set<Integer> allowedFast = PeerUtils.allowedFastSet(ALLOWED_FAST, ti.getPieceCount(), ti.getInfoHash(), peerConnection.getInetAddress());
+		this.peerSender = new FastSenderImpl(this, fam, cm, peerOutput, peerConnection.getChannel(), allowedFast);
+		this.peerListener = new FastPeerListener(this, peerSender, peerInput, peerConnection.getChannel());
+		this.pieceRetriever = new FastRetriever(this, peerSender, cm, si, chokeLock, pipeline);
 
 		this.running = true;
 
@@ -129,9 +132,19 @@ public class FastPeerImpl implements FastPeer {
 	 * Closes the connection with this Peer
 	 **/
 	public void close() {
+		boolean wasRunning = false;
 		synchronized(runLock) {
+			wasRunning = running;
 			running = false;
 		}
+		if(wasRunning) {
+			// The pieces this Peer had no longer count towards their availability.
+			if(seed) {
+				cm.removeSeed();
+			} else {
+				cm.removeBitfield(peerBitfield);
+			}
+		}
 		try{ peerInput.close(); } catch(IOException e) {}
 		try{ peerOutput.close(); } catch(IOException e) {}
 		try{ peerConnection.close(); } catch(IOException e) {}
@@ -141,9 +154,7 @@ public class FastPeerImpl implements FastPeer {
 
 		setChoked(false);
 
-		synchronized(pieceLock) {
-			pieceLock.notifyAll();
-		}
+		pipeline.signal();
 	}
 
 	/**
@@ -158,7 +169,11 @@ public class FastPeerImpl implements FastPeer {
 	}
 
 	public void setInterested(boolean interested) {
+		boolean wasInterested = peerInterested;
 		peerInterested = interested;
+		if(interested && !wasInterested) {
+			peerSender.suggestCached();
+		}
 
 	}
 
@@ -199,12 +214,21 @@ public class FastPeerImpl implements FastPeer {
 		return amChoking;
 	}
 
-	public boolean[] getBitfield() {
+	public ConcurrentBitSet getBitfield() {
 		return peerBitfield;
 	}
 
 	public void bitfieldUpdated() {
-		cm.peerBitfield(peerBitfield);
+		int count = peerBitfield.cardinality();
+		if(count == 0) {
+			return;
+		}
+		if(count == peerBitfield.length()) {
+			seed = true;
+			cm.peerSeed();
+		} else {
+			cm.peerBitfield(peerBitfield);
+		}
 		if(!amInterested) {
 			if(cm.peerInteresting(peerBitfield)) {
 				peerSender.issueInterested();
@@ -213,23 +237,13 @@ public class FastPeerImpl implements FastPeer {
 	}
 
 	public void hasPiece(int id) {
-		if(id > 0 && id < peerBitfield.length) {
-			peerBitfield[id] = true;
+		if(id >= 0 && id < peerBitfield.length() && peerBitfield.change(id,true)) {
+			cm.peerHave(id);
 		}
 	}
 
-	public Piece getCurrentPiece() {
-		return currentPiece;
-	}
-
-	public void setCurrentPiece(Piece piece) {
-		currentPiece = piece;
-	}
-
-	public void notifyPieceComplete() {
-		synchronized(pieceLock) {
-			pieceLock.notifyAll();
-		}
+	public RequestPipeline getPipeline() {
+		return pipeline;
 	}
 
 	public void issueHave(int id) {
@@ -240,10 +254,6 @@ public class FastPeerImpl implements FastPeer {
 		return fastLock;
 	}
 
-	public Set<PendingRequest> getPendingRequests() {
-		return pendingRequests;
-	}
-
 	public Set<Integer> getSuggested() {
 		return peerSuggested;
 	}
@@ -0,0 +1,697 @@
+package tcl.tm.torrent.communication.peer.impl;
+
+import tcl.tm.connection.util.ChannelHandler;
+import tcl.tm.connection.util.SelectorLoop;
+import tcl.tm.connection.util.SelectorPool;
+import tcl.tm.connection.util.WorkerPool;
+
+import tcl.tm.torrent.communication.peer.FastPeer;
+import tcl.tm.torrent.communication.peer.listener.handler.PeerEventHandler;
+import tcl.tm.torrent.communication.peer.listener.impl.FastPeerListener;
+import tcl.tm.torrent.communication.peer.listener.impl.PeerListenerImpl;
+import tcl.tm.torrent.communication.peer.sender.FastSender;
+import tcl.tm.torrent.communication.peer.sender.PeerSender;
+import tcl.tm.torrent.communication.peer.sender.impl.FastSenderImpl;
+import tcl.tm.torrent.communication.peer.sender.impl.StandardSender;
+import tcl.tm.torrent.communication.peer.retriever.impl.FastRetriever;
+import tcl.tm.torrent.communication.peer.retriever.impl.StandardRetriever;
+import tcl.tm.torrent.communication.peer.util.BlockTransfer;
+import tcl.tm.torrent.communication.peer.util.PeerEvent;
+import tcl.tm.torrent.communication.peer.util.PeerUtils;
+import tcl.tm.torrent.communication.peer.util.RequestPipeline;
+
+import tcl.tm.torrent.Torrent;
+import tcl.tm.torrent.communication.CommunicationManager;
+import tcl.tm.torrent.file.FileAccessManager;
+import tcl.tm.torrent.file.util.BufferPool;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
+import tcl.tm.torrent.info.TorrentInfo;
+import tcl.tm.torrent.info.StatsInfo;
+
+import java.net.Socket;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A Peer driven by one of the shared SelectorLoops, rather than by threads of its own.
+ *
+ * Incoming messages are framed as bytes arrive and passed to the same PeerEventHandlers
+ * the threaded Peers use. Outgoing messages are queued by the usual sender and written
+ * whenever the connection can take them. The retriever is polled whenever a block arrives,
+ * the Peer chokes or unchokes us, or its bitfield changes, and otherwise when it asks to be.
+ *
+ * Handlers and the retriever may wait on the FileAccessManager, so they run on the shared
+ * WorkerPool rather than on the loop, one task at a time for each Peer in the order they
+ * were queued. While too many tasks are waiting the loop stops reading from the Peer.
+ * Reading and writing the connection happens on the loop's thread.
+ *
+ * Both standard Peers and those supporting the Fast extension are handled, depending on
+ * the reserved bytes of the handshake.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public class SelectorPeer implements FastPeer, ChannelHandler {
+
+	// The number of pieces a Peer may download from us while we choke it.
+	private static final int ALLOWED_FAST = 10;
+	// The message code for a piece, whose contents are read into a pooled buffer.
+	private static final int PIECE = 7;
+	// The largest piece message we accept, a 128KiB block plus its 8 byte header.
+	private static final int MAX_PIECE_MESSAGE = 128 * 1024 + 8;
+	// How long the Peer may send nothing before it is dropped.
+	private static final long IDLE_TIMEOUT = 180000;
+	// The most messages gathered into a single write.
+	private static final int WRITE_BATCH = 16;
+	// The most reads made each time the connection is ready, so one Peer cannot hog the loop.
+	private static final int READ_BATCH = 4;
+	// The most tasks waiting for a worker before we stop reading, and the number to resume at.
+	private static final int MAX_BACKLOG = 64;
+	private static final int RESUME_BACKLOG = 16;
+
+	// Bytes are read into a buffer belonging to the loop, and copied out into each message.
+	private static final ThreadLocal<ByteBuffer> readBuffers = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(64 * 1024);
+		}
+	};
+
+	private String name;
+
+	private volatile boolean peerInterested;
+	private volatile boolean peerChoking;
+	private volatile boolean amInterested;
+	private volatile boolean amChoking;
+
+	private SocketChannel channel;
+	private SelectorLoop loop;
+	// Set on the loop, but read by whichever thread queues a message.
+	private volatile SelectionKey key;
+
+	private CommunicationManager cm;
+	private TorrentInfo ti;
+
+	private ConcurrentBitSet peerBitfield;
+	// Whether the Peer was counted as a seed rather than by its bitfield.
+	private volatile boolean seed;
+
+	private Set<Integer> peerSuggested;
+	private Set<Integer> peerAllowedFast;
+
+	private boolean running;
+
+	private RequestPipeline pipeline;
+
+	private Object runLock;
+	private Object fastLock;
+
+	private Map<Integer, PeerEventHandler> handlers;
+	private PeerSender peerSender;
+	private FastSender fastSender;
+	private StandardRetriever pieceRetriever;
+
+	// The message being read. Content is null until the length and code have both arrived.
+	private ByteBuffer lengthBuffer;
+	private int length;
+	private int code;
+	private ByteBuffer content;
+	private boolean pooled;
+	private int maxMessage;
+	private long lastRead;
+
+	// The messages waiting to be written, and the one being written.
+	private BlockingQueue<PeerEvent> outbound;
+	private ByteBuffer[] writing;
+	private AtomicBoolean writeRequested;
+
+	// The tasks waiting for a worker, and whether one is running them.
+	private LinkedList<Runnable> work;
+	private boolean working;
+	private AtomicBoolean readPaused;
+
+	// When the earliest timer set to poll the retriever goes off. Only touched by the worker.
+	private long timerAt;
+	private AtomicBoolean pollQueued;
+	private boolean retrieverDone;
+
+	/**
+	 * Creates a SelectorPeer for the given Torrent using the given connection,
+	 * which must have come from a non-blocking SocketChannel which has been handshaken.
+	 *
+	 * @param torrent The Torrent this Peer is sharing / downloading.
+	 * @param peerConnection The Socket representing the connection to this Peer.
+	 * @param fast Whether the Peer supports the Fast extension.
+	 **/
+	public SelectorPeer(Torrent torrent, Socket peerConnection, boolean fast) {
+
+		this.channel = peerConnection.getChannel();
+		this.name = peerConnection.getInetAddress().toString();
+		this.loop = SelectorPool.getShared().next();
+
+		this.cm = torrent.getCommunicationManager();
+		FileAccessManager fam = torrent.getFileAccessManager();
+		this.ti = torrent.getInformationManager().getTorrentInfo();
+		StatsInfo si = torrent.getInformationManager().getStatsInfo();
+
+		this.peerBitfield = new ConcurrentBitSet(ti.getPieceCount());
+
+		this.peerSuggested = new HashSet<Integer>();
+		this.peerAllowedFast = new HashSet<Integer>();
+
+		this.pipeline = new RequestPipeline();
+		this.runLock = new Object();
+		this.fastLock = new Object();
+
+		this.lengthBuffer = ByteBuffer.allocate(4);
+		this.maxMessage = Math.max(MAX_PIECE_MESSAGE,(ti.getPieceCount() + 7) / 8) + 1;
+		this.lastRead = System.currentTimeMillis();
+
+		this.writeRequested = new AtomicBoolean(false);
+		this.pollQueued = new AtomicBoolean(false);
+		this.work = new LinkedList<Runnable>();
+		this.readPaused = new AtomicBoolean(false);
+		this.outbound = new LinkedBlockingQueue<PeerEvent>() {
+			public boolean offer(PeerEvent e) {
+				boolean added = super.offer(e);
+				requestWrite();
+				return added;
+			}
+		};
+
+		if(fast) {
+			Set<Integer> allowedFast = PeerUtils.allowedFastSet(ALLOWED_FAST, ti.getPieceCount(), ti.getInfoHash(), peerConnection.getInetAddress());
+			this.fastSender = new FastSenderImpl(this, fam, cm, null, null, allowedFast, outbound);
+			this.peerSender = fastSender;
+			this.handlers = FastPeerListener.fastHandlers(this, peerSender);
+			this.pieceRetriever = new FastRetriever(this, peerSender, cm, si, new Object(), pipeline);
+		} else {
+			this.peerSender = new StandardSender(this, fam, cm, null, null, outbound);
+			this.handlers = PeerListenerImpl.standardHandlers(this, peerSender);
+			this.pieceRetriever = new StandardRetriever(this, peerSender, cm, si, new Object(), pipeline);
+		}
+
+		this.running = true;
+
+		this.amChoking = true;
+		this.peerChoking = true;
+
+		pipeline.setWakeup(new Runnable() {
+			public void run() {
+				wake();
+			}
+		});
+
+		loop.register(channel, SelectionKey.OP_READ, this);
+
+		peerSender.sendBitfield();
+		peerSender.issueUnchoke();
+	}
+
+	public void registered(SelectionKey key) {
+		this.key = key;
+		if(!writeRequested.get() && !outbound.isEmpty()) {
+			requestWrite();
+		}
+		loop.schedule(new IdleCheck(), IDLE_TIMEOUT);
+		wake();
+	}
+
+	public void ready(SelectionKey key) {
+		try {
+			if(key.isReadable()) {
+				read();
+			}
+			if(key.isValid() && key.isWritable()) {
+				write();
+			}
+		} catch(IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Closes the connection with this Peer
+	 **/
+	public void close() {
+		synchronized(runLock) {
+			if(!running) {
+				return;
+			}
+			running = false;
+		}
+		// The pieces this Peer had no longer count towards their availability.
+		if(seed) {
+			cm.removeSeed();
+		} else {
+			cm.removeBitfield(peerBitfield);
+		}
+		try{ channel.close(); } catch(IOException e) {}
+		cm.removePeer(name);
+
+		// Nothing more is read once the channel has closed, so any message left half read is released.
+		loop.execute(new Runnable() {
+			public void run() {
+				if(content != null && pooled) {
+					BufferPool.getShared().release(content);
+				}
+				content = null;
+			}
+		});
+
+		// The retriever returns its pieces the next time it is polled.
+		wake();
+	}
+
+	/**
+	 * Whether or not this Peer connection is running
+	 *
+	 * @return True if this is an active connection, else false.
+	 **/
+	public boolean isRunning() {
+		synchronized(runLock) {
+			return running;
+		}
+	}
+
+	/**
+	 * Reads whatever has arrived, and hands each complete message to its handler.
+	 * Stops reading instead if too many messages are waiting to be handled.
+	 **/
+	private void read() throws IOException {
+		ByteBuffer buf = readBuffers.get();
+		for(int i = 0; i < READ_BATCH && isRunning(); i++) {
+			if(backlog() >= MAX_BACKLOG) {
+				pauseReading();
+				return;
+			}
+			buf.clear();
+			int read = channel.read(buf);
+			if(read < 0) {
+				close();
+				return;
+			}
+			if(read == 0) {
+				return;
+			}
+			lastRead = System.currentTimeMillis();
+			buf.flip();
+			while(buf.hasRemaining() && isRunning()) {
+				if(!consume(buf)) {
+					close();
+					return;
+				}
+			}
+			if(buf.limit() < buf.capacity()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Takes as much of the message being read as is available from the buffer.
+	 * Piece messages are read into a buffer from the shared BufferPool, which the handler releases.
+	 *
+	 * @param buf The bytes which have arrived.
+	 *
+	 * @return Whether the bytes made sense. If not, the Peer should be dropped.
+	 **/
+	private boolean consume(ByteBuffer buf) {
+		if(content == null) {
+			if(lengthBuffer.hasRemaining()) {
+				copy(buf,lengthBuffer);
+				if(lengthBuffer.hasRemaining()) {
+					return true;
+				}
+				length = lengthBuffer.getInt(0);
+				if(length == 0) {
+					lengthBuffer.clear();
+					return dispatch(-2,new PeerEvent(new byte[0]));
+				}
+				if(length < 0 || length > maxMessage) {
+					return false;
+				}
+				if(!buf.hasRemaining()) {
+					return true;
+				}
+			}
+			code = buf.get() & 0xff;
+			pooled = code == PIECE && length - 1 >= 8 && length - 1 <= MAX_PIECE_MESSAGE;
+			if(pooled) {
+				content = BufferPool.getShared().acquire(length - 1);
+			} else {
+				content = ByteBuffer.allocate(length - 1);
+			}
+		}
+		copy(buf,content);
+		if(content.hasRemaining()) {
+			return true;
+		}
+		ByteBuffer done = content;
+		content = null;
+		lengthBuffer.clear();
+		done.flip();
+		return dispatch(code,pooled ? new PeerEvent(done) : new PeerEvent(done.array()));
+	}
+
+	/**
+	 * Queues a message for its handler.
+	 *
+	 * @param code The message code.
+	 * @param e The message contents.
+	 *
+	 * @return Whether the message was understood.
+	 **/
+	private boolean dispatch(int code, final PeerEvent e) {
+		final PeerEventHandler handler = handlers.get(code);
+		if(handler == null) {
+			if(e.getBuffer() != null) {
+				BufferPool.getShared().release(e.getBuffer());
+			}
+			return false;
+		}
+		submit(new Runnable() {
+			public void run() {
+				handler.handle(e);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Queues a task to run on the WorkerPool after every task queued before it.
+	 * Called from any thread.
+	 *
+	 * @param task The task to run.
+	 **/
+	private void submit(Runnable task) {
+		synchronized(work) {
+			work.add(task);
+			if(working) {
+				return;
+			}
+			working = true;
+		}
+		WorkerPool.execute(new Runnable() {
+			public void run() {
+				runWork();
+			}
+		});
+	}
+
+	/**
+	 * Runs queued tasks until none are left, resuming reads once the backlog is small enough.
+	 **/
+	private void runWork() {
+		while(true) {
+			Runnable task;
+			int left;
+			synchronized(work) {
+				task = work.poll();
+				if(task == null) {
+					working = false;
+					return;
+				}
+				left = work.size();
+			}
+			if(left < RESUME_BACKLOG) {
+				resumeReading();
+			}
+			try {
+				task.run();
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+				close();
+			}
+		}
+	}
+
+	/**
+	 * The number of tasks waiting for a worker.
+	 **/
+	private int backlog() {
+		synchronized(work) {
+			return work.size();
+		}
+	}
+
+	/**
+	 * Stops the loop selecting for reads until the backlog has been worked through.
+	 * Called on the loop's thread.
+	 **/
+	private void pauseReading() {
+		readPaused.set(true);
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		// The worker may have caught up before the flag was set.
+		if(backlog() < RESUME_BACKLOG) {
+			resumeReading();
+		}
+	}
+
+	/**
+	 * Has the loop select for reads again, if they were paused. Called from any thread.
+	 **/
+	private void resumeReading() {
+		if(readPaused.compareAndSet(true,false)) {
+			loop.execute(new Runnable() {
+				public void run() {
+					if(key.isValid()) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Copies as many bytes as fit from one buffer to the other.
+	 **/
+	private static void copy(ByteBuffer from, ByteBuffer to) {
+		int n = Math.min(from.remaining(),to.remaining());
+		int limit = from.limit();
+		from.limit(from.position() + n);
+		to.put(from);
+		from.limit(limit);
+	}
+
+	/**
+	 * Has the loop select for writes, once messages are waiting.
+	 * Called on whichever thread queued the message.
+	 **/
+	private void requestWrite() {
+		if(key != null && writeRequested.compareAndSet(false,true)) {
+			loop.execute(new Runnable() {
+				public void run() {
+					if(key.isValid()) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes waiting messages until the connection will take no more, or none are left.
+	 * When none are left the loop stops selecting for writes until another is queued.
+	 **/
+	private void write() throws IOException {
+		while(true) {
+			if(writing == null || !writing[writing.length - 1].hasRemaining()) {
+				writing = nextBatch();
+				if(writing == null) {
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+					writeRequested.set(false);
+					// A message queued just before the flag was cleared would otherwise wait.
+					if(!outbound.isEmpty()) {
+						requestWrite();
+					}
+					return;
+				}
+			}
+			channel.write(writing);
+			if(writing[writing.length - 1].hasRemaining()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gathers the next few waiting messages into buffers to be written together.
+	 *
+	 * @return The buffers, or null if no messages are waiting.
+	 **/
+	private ByteBuffer[] nextBatch() {
+		List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+		PeerEvent e = null;
+		for(int i = 0; i < WRITE_BATCH && (e = outbound.poll()) != null; i++) {
+			batch.add(ByteBuffer.wrap(e.getData()));
+			if(e instanceof BlockTransfer) {
+				BlockTransfer t = (BlockTransfer) e;
+				batch.add(ByteBuffer.wrap(t.getPiece(),t.getByteOffset(),t.getLength()));
+			}
+		}
+		return batch.isEmpty() ? null : batch.toArray(new ByteBuffer[batch.size()]);
+	}
+
+	/**
+	 * Has a worker poll the retriever as soon as possible. Called from any thread.
+	 **/
+	private void wake() {
+		if(pollQueued.compareAndSet(false,true)) {
+			submit(new Runnable() {
+				public void run() {
+					pollQueued.set(false);
+					poll();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Polls the retriever, and has the loop wake it again when it next wants polling,
+	 * unless an earlier timer is already set. Timers which go off early just poll again.
+	 * Called on a worker.
+	 **/
+	private void poll() {
+		if(retrieverDone) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long wait = pieceRetriever.poll(now);
+		if(wait < 0) {
+			retrieverDone = true;
+			pipeline.setWakeup(null);
+			return;
+		}
+		long due = now + wait;
+		if(timerAt <= now || due < timerAt) {
+			timerAt = due;
+			loop.schedule(new Runnable() {
+				public void run() {
+					wake();
+				}
+			},wait);
+		}
+	}
+
+	/**
+	 * Drops the Peer if it has sent nothing for too long.
+	 **/
+	private class IdleCheck implements Runnable {
+
+		public void run() {
+			if(!isRunning()) {
+				return;
+			}
+			// A Peer we have stopped reading from is waiting on us, not idle.
+			if(readPaused.get()) {
+				lastRead = System.currentTimeMillis();
+			}
+			long idle = System.currentTimeMillis() - lastRead;
+			if(idle >= IDLE_TIMEOUT) {
+				close();
+			} else {
+				loop.schedule(this,IDLE_TIMEOUT - idle);
+			}
+		}
+	}
+
+	public void setInterested(boolean interested) {
+		boolean wasInterested = peerInterested;
+		peerInterested = interested;
+		if(fastSender != null && interested && !wasInterested) {
+			fastSender.suggestCached();
+		}
+	}
+
+	public boolean getInterested() {
+		return peerInterested;
+	}
+
+	public void setAmInterested(boolean interested) {
+		amInterested = interested;
+	}
+
+	public boolean getAmInterested() {
+		return amInterested;
+	}
+
+	public void setChoked(boolean choked) {
+		peerChoking = choked;
+		wake();
+	}
+
+	public boolean getChoked() {
+		return peerChoking;
+	}
+
+	public void setAmChoking(boolean choking) {
+		amChoking = choking;
+	}
+
+	public boolean getAmChoking() {
+		return amChoking;
+	}
+
+	public ConcurrentBitSet getBitfield() {
+		return peerBitfield;
+	}
+
+	public void bitfieldUpdated() {
+		int count = peerBitfield.cardinality();
+		if(count == 0) {
+			return;
+		}
+		if(count == peerBitfield.length()) {
+			seed = true;
+			cm.peerSeed();
+		} else {
+			cm.peerBitfield(peerBitfield);
+		}
+		if(!amInterested) {
+			if(cm.peerInteresting(peerBitfield)) {
+				peerSender.issueInterested();
+			}
+		}
+		wake();
+	}
+
+	public void hasPiece(int id) {
+		if(id >= 0 && id < peerBitfield.length() && peerBitfield.change(id,true)) {
+			cm.peerHave(id);
+		}
+	}
+
+	public RequestPipeline getPipeline() {
+		return pipeline;
+	}
+
+	public void issueHave(int id) {
+		peerSender.issueHave(id);
+	}
+
+	public Object getFastLock() {
+		return fastLock;
+	}
+
+	public Set<Integer> getSuggested() {
+		return peerSuggested;
+	}
+
+	public Set<Integer> getAllowedFast() {
+		return peerAllowedFast;
+	}
+
+}
@@ -8,16 +8,16 @@ import tcl.tm.torrent.communication.peer.sender.impl.StandardSender;
 import tcl.tm.torrent.communication.peer.retriever.PeerRetriever;
 import tcl.tm.torrent.communication.peer.retriever.impl.StandardRetriever;
 import tcl.tm.torrent.communication.peer.util.PeerEvent;
+import tcl.tm.torrent.communication.peer.util.RequestPipeline;
 
 import tcl.tm.torrent.Torrent;
 import tcl.tm.torrent.communication.CommunicationManager;
 import tcl.tm.torrent.file.FileAccessManager;
 import tcl.tm.torrent.file.FileAccessFuture;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
 import tcl.tm.torrent.info.TorrentInfo;
 import tcl.tm.torrent.info.StatsInfo;
 
-import tcl.tm.torrent.communication.util.Piece;
-
 import java.net.Socket;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -50,14 +50,15 @@ public class StandardPeer implements Peer {
 	private TorrentInfo ti;
 	private StatsInfo si;
 
-	private boolean[] peerBitfield;
+	private ConcurrentBitSet peerBitfield;
+	// Whether the Peer was counted as a seed rather than by its bitfield.
+	private volatile boolean seed;
 
 	private boolean running;
 
-	private Piece currentPiece;
+	private RequestPipeline pipeline;
 
 	private Object chokeLock;
-	private Object pieceLock;
 	private Object runLock;
 
 	private PeerListener peerListener;
@@ -87,15 +88,15 @@ public class StandardPeer implements Peer {
 		this.ti = torrent.getInformationManager().getTorrentInfo();
 		this.si = torrent.getInformationManager().getStatsInfo();
 
-		this.peerBitfield = new boolean[ti.getPieceCount()];
+		this.peerBitfield = new ConcurrentBitSet(ti.getPieceCount());
 
 		this.chokeLock = new Object();
-		this.pieceLock = new Object();
+		this.pipeline = new RequestPipeline();
 		this.runLock = new Object();
 
-		this.peerSender = new StandardSender(this, fam, cm, peerOutput);
-		this.peerListener = new PeerListenerImpl(this, peerSender, peerInput);
-		this.pieceRetriever = new StandardRetriever(this, peerSender, cm, si, chokeLock, pieceLock);
+		this.peerSender = new StandardSender(this, fam, cm, peerOutput, peerConnection.getChannel());
+		this.peerListener = new PeerListenerImpl(this, peerSender, peerInput, peerConnection.getChannel());
+		this.pieceRetriever = new StandardRetriever(this, peerSender, cm, si, chokeLock, pipeline);
 
 		this.running = true;
 
@@ -115,9 +116,19 @@ public class StandardPeer implements Peer {
 	 * Closes the connection with this Peer
 	 **/
 	public void close() {
+		boolean wasRunning = false;
 		synchronized(runLock) {
+			wasRunning = running;
 			running = false;
 		}
+		if(wasRunning) {
+			// The pieces this Peer had no longer count towards their availability.
+			if(seed) {
+				cm.removeSeed();
+			} else {
+				cm.removeBitfield(peerBitfield);
+			}
+		}
 		try{ peerInput.close(); } catch(IOException e) {}
 		try{ peerOutput.close(); } catch(IOException e) {}
 		try{ peerConnection.close(); } catch(IOException e) {}
@@ -127,9 +138,7 @@ public class StandardPeer implements Peer {
 
 		setChoked(false);
 
-		synchronized(pieceLock) {
-			pieceLock.notifyAll();
-		}
+		pipeline.signal();
 	}
 
 	/**
@@ -185,12 +194,21 @@ public class StandardPeer implements Peer {
 		return amChoking;
 	}
 
-	public boolean[] getBitfield() {
+	public ConcurrentBitSet getBitfield() {
 		return peerBitfield;
 	}
 
 	public void bitfieldUpdated() {
-		cm.peerBitfield(peerBitfield);
+		int count = peerBitfield.cardinality();
+		if(count == 0) {
+			return;
+		}
+		if(count == peerBitfield.length()) {
+			seed = true;
+			cm.peerSeed();
+		} else {
+			cm.peerBitfield(peerBitfield);
+		}
 		if(!amInterested) {
 			if(cm.peerInteresting(peerBitfield)) {
 				peerSender.issueInterested();
@@ -199,25 +217,13 @@ public class StandardPeer implements Peer {
 	}
 
 	public void hasPiece(int id) {
-		if(id > 0 && id < peerBitfield.length) {
-			peerBitfield[id] = true;
+		if(id >= 0 && id < peerBitfield.length() && peerBitfield.change(id,true)) {
+			cm.peerHave(id);
 		}
 	}
 
-	public Piece getCurrentPiece() {
-		return currentPiece;
-	}
-
-	public void setCurrentPiece(Piece piece) {
-		currentPiece = piece;
-	}
-
-	public void notifyPieceComplete() {
-		if(currentPiece.isComplete()) {
-			synchronized(pieceLock) {
-				pieceLock.notifyAll();
-			}
-		}
+	public RequestPipeline getPipeline() {
+		return pipeline;
 	}
 
 	public void issueHave(int id) {
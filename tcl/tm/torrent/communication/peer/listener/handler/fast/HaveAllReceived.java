@@ -13,11 +13,7 @@ public class HaveAllReceived implements PeerEventHandler {
 	}
 
 	public void handle(PeerEvent e) {
-		boolean[] bitfield = peer.getBitfield();
-		for(int i = 0; i < bitfield.length; i++) {
-			bitfield[i] = true;
-		}
-		
+		peer.getBitfield().setAll();
 		peer.bitfieldUpdated();
 	}
 }
@@ -2,7 +2,6 @@ package tcl.tm.torrent.communication.peer.listener.handler.fast;
 
 import tcl.tm.torrent.communication.peer.FastPeer;
 import tcl.tm.torrent.communication.peer.util.PeerEvent;
-import tcl.tm.torrent.communication.peer.util.PendingRequest;
 import tcl.tm.torrent.communication.peer.listener.handler.PeerEventHandler;
 
 
@@ -22,11 +21,6 @@ public class RejectReceived implements PeerEventHandler {
 		int offset = parseLength(e.getData(),4);
 		int length = parseLength(e.getData(),8);
 
-		synchronized(peer.getFastLock()) {
-			peer.getPendingRequests().remove(new PendingRequest(piece,offset,length));
-			if(peer.getPendingRequests().size() == 0) {
-				peer.notifyPieceComplete();
-			}
-		}
+		peer.getPipeline().requestRejected(piece,offset,length);
 	}
 }
@@ -13,15 +13,7 @@ public class BitfieldReceived implements PeerEventHandler {
 	}
 	
 	public void handle(PeerEvent e) {
-		boolean[] peerBitfield = peer.getBitfield();
-		for(int i = 0; i < e.getData().length; i++) {
-			int bit = e.getData()[i] & (0xff);
-			for(int j = 0; j < 8; j++) {
-				if((i*8 + (7 - j)) < peerBitfield.length) {
-					peerBitfield[i*8 + (7 - j)] = ((bit >> j) & 1) == 1;
-				}
-			}
-		}
+		peer.getBitfield().setBitfield(e.getData());
 		peer.bitfieldUpdated();
 	}
 }
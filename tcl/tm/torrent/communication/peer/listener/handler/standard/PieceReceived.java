@@ -1,11 +1,10 @@
 package tcl.tm.torrent.communication.peer.listener.handler.standard;
 
-import tcl.tm.torrent.communication.util.Piece;
 import tcl.tm.torrent.communication.peer.Peer;
 import tcl.tm.torrent.communication.peer.util.PeerEvent;
 import tcl.tm.torrent.communication.peer.listener.handler.PeerEventHandler;
 
-import static tcl.tm.torrent.communication.peer.util.PeerUtils.parseLength;
+import java.nio.ByteBuffer;
 
 public class PieceReceived implements PeerEventHandler {
 	
@@ -15,18 +14,15 @@ public class PieceReceived implements PeerEventHandler {
 		this.peer = peer;
 	}
 	
+	/**
+	 * Hands the block held in the event's pooled buffer to the Peer's RequestPipeline,
+	 * which saves it into the piece it belongs to, or releases it if the piece is no longer held.
+	 **/
 	public void handle(PeerEvent e) {
-		Piece currentPiece = peer.getCurrentPiece();
-		int piece = parseLength(e.getData(),0);
-		int offset = parseLength(e.getData(),4);
-		//System.out.println(name + "-> Received: " + piece + " " + offset + " " + e.getData().length);
-		if(currentPiece != null) {
-			if((piece == currentPiece.getPieceId())) {
-				currentPiece.saveBlock(offset/currentPiece.getBlockSize(),e.getData(),8,e.getData().length - 8);
-				if(currentPiece.isComplete()) {
-					peer.notifyPieceComplete();
-				}
-			}
-		}
+		ByteBuffer content = e.getBuffer();
+		int piece = content.getInt(0);
+		int offset = content.getInt(4);
+		content.position(8);
+		peer.getPipeline().blockReceived(piece,offset,content,System.currentTimeMillis());
 	}
 }
@@ -10,7 +10,7 @@ public class RequestReceived implements PeerEventHandler {
 	
 	private PeerSender sender;
 	
-	public RequestReceived(PeerSender peer) {
+	public RequestReceived(PeerSender sender) {
 		this.sender = sender;
 	}
 	
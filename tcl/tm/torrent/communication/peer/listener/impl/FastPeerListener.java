@@ -5,12 +5,36 @@ import tcl.tm.torrent.communication.peer.sender.PeerSender;
 import tcl.tm.torrent.communication.peer.listener.impl.PeerListenerImpl;
 import tcl.tm.torrent.communication.peer.listener.handler.fast.*;
 
+import tcl.tm.torrent.communication.peer.listener.handler.PeerEventHandler;
+
 import java.io.InputStream;
 
+import java.nio.channels.ReadableByteChannel;
+
+import java.util.Map;
+
 public class FastPeerListener extends PeerListenerImpl {
 	
 	public FastPeerListener(FastPeer peer, PeerSender sender, InputStream peerInput) {
-		super(peer,sender,peerInput);
+		this(peer,sender,peerInput,null);
+	}
+	
+	public FastPeerListener(FastPeer peer, PeerSender sender, InputStream peerInput, ReadableByteChannel peerChannel) {
+		super(peer,sender,peerInput,peerChannel);
+		
+		handlers = fastHandlers(peer,sender);
+	}
+	
+	/**
+	 * The handlers for the standard messages and those added by the Fast extension, keyed by message id.
+	 * 
+	 * @param peer The Peer the messages come from.
+	 * @param sender The sender answering the Peer's requests.
+	 * 
+	 * @return The handlers.
+	 **/
+	public static Map<Integer, PeerEventHandler> fastHandlers(FastPeer peer, PeerSender sender) {
+		Map<Integer, PeerEventHandler> handlers = standardHandlers(peer,sender);
 		
 		handlers.put(7, new FastPieceReceived(peer));
 		handlers.put(14, new HaveAllReceived(peer));
@@ -19,6 +43,7 @@ public class FastPeerListener extends PeerListenerImpl {
 		handlers.put(16, new RejectReceived(peer));
 		handlers.put(17, new AllowedFastReceived(peer));
 		
+		return handlers;
 	}
 }
 		
@@ -6,6 +6,7 @@ import tcl.tm.torrent.communication.peer.listener.PeerListener;
 import tcl.tm.torrent.communication.peer.sender.PeerSender;
 import tcl.tm.torrent.communication.peer.util.PeerEvent;
 import tcl.tm.torrent.communication.peer.Peer;
+import tcl.tm.torrent.file.util.BufferPool;
 
 import static tcl.tm.torrent.communication.peer.util.PeerUtils.parseLength;
 
@@ -15,16 +16,52 @@ import java.util.HashMap;
 import java.io.InputStream;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
 public class PeerListenerImpl implements PeerListener {
 
 	private Peer peer;
 	private InputStream peerInput;
+	private ReadableByteChannel peerChannel;
 	protected Map<Integer, PeerEventHandler> handlers;
 
+	// The message code for a piece, whose contents are read into a pooled buffer.
+	private static final int PIECE = 7;
+	// The largest piece message we accept, a 128KiB block plus its 8 byte header.
+	private static final int MAX_PIECE_MESSAGE = 128 * 1024 + 8;
+
 	public PeerListenerImpl(Peer peer, PeerSender sender, InputStream peerInput) {
+		this(peer,sender,peerInput,null);
+	}
+
+	/**
+	 * Creates a PeerListenerImpl which reads the contents of piece messages straight from the given channel.
+	 * 
+	 * @param peer The Peer the messages come from
+	 * @param sender The sender answering the Peer's requests
+	 * @param peerInput The stream to read messages from
+	 * @param peerChannel The channel underlying peerInput, or null if there is none,
+	 * in which case piece messages are read through a channel wrapping peerInput
+	 **/
+	public PeerListenerImpl(Peer peer, PeerSender sender, InputStream peerInput, ReadableByteChannel peerChannel) {
 		this.peer = peer;
 		this.peerInput = peerInput;
-		this.handlers = new HashMap<Integer, PeerEventHandler>();
+		this.peerChannel = (peerChannel != null) ? peerChannel : Channels.newChannel(peerInput);
+		this.handlers = standardHandlers(peer,sender);
+	}
+
+	/**
+	 * The handlers for the standard messages, keyed by message id. A keep alive is keyed by -2.
+	 *
+	 * @param peer The Peer the messages come from.
+	 * @param sender The sender answering the Peer's requests.
+	 *
+	 * @return The handlers.
+	 **/
+	public static Map<Integer, PeerEventHandler> standardHandlers(Peer peer, PeerSender sender) {
+		Map<Integer, PeerEventHandler> handlers = new HashMap<Integer, PeerEventHandler>();
 
 		handlers.put(-2, new KeepAliveReceived(peer));
 		handlers.put(0, new ChokeReceived(peer));
@@ -37,15 +74,17 @@ public class PeerListenerImpl implements PeerListener {
 		handlers.put(7, new PieceReceived(peer));
 		handlers.put(8, new CancelReceived(peer));
 
+		return handlers;
 	}
 
 	/**
 	 * Reads messages as they are received and forwards them to the appropriate handlers
+	 * Piece messages are read into a buffer from the shared BufferPool, which the handler releases.
 	 **/
 	public void run() {
+		byte[] value = new byte[4];
 		while(peer.isRunning()) {
 			try {
-				byte[] value = new byte[4];
 				int toRead = 4;
 				while(toRead > 0) {
 					int read = peerInput.read(value,4-toRead,toRead);
@@ -53,12 +92,16 @@ public class PeerListenerImpl implements PeerListener {
 					toRead -= read;
 				}
 				int length = parseLength(value,0);
-				byte[] content = new byte[(length-1 > 0) ? length-1 : 0];
 				int code = -2;
 				if(length > 0) {
 					code = peerInput.read();
 					if(code == -1) { peer.close(); return;}
 				}
+				if(code == PIECE && length - 1 >= 8 && length - 1 <= MAX_PIECE_MESSAGE) {
+					if(!readPiece(length - 1)) { peer.close(); return;}
+					continue;
+				}
+				byte[] content = new byte[(length-1 > 0) ? length-1 : 0];
 				toRead = length-1;
 				while(toRead > 0) {
 					int read = peerInput.read(content,(length-1)-toRead,toRead);
@@ -75,4 +118,29 @@ public class PeerListenerImpl implements PeerListener {
 			}
 		}
 	}
+
+	/**
+	 * Reads the contents of a piece message into a pooled buffer and hands it to the piece handler.
+	 * 
+	 * @param length The length of the message contents
+	 * 
+	 * @return Whether the whole message was read.
+	 **/
+	private boolean readPiece(int length) throws IOException {
+		ByteBuffer content = BufferPool.getShared().acquire(length);
+		try {
+			while(content.hasRemaining()) {
+				if(peerChannel.read(content) < 0) {
+					BufferPool.getShared().release(content);
+					return false;
+				}
+			}
+		} catch(IOException e) {
+			BufferPool.getShared().release(content);
+			throw e;
+		}
+		content.flip();
+		handlers.get(PIECE).handle(new PeerEvent(content));
+		return true;
+	}
 }
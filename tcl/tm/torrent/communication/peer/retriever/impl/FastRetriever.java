@@ -2,120 +2,103 @@ package tcl.tm.torrent.communication.peer.retriever.impl;
 
 import tcl.tm.torrent.info.StatsInfo;
 
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
+
 import tcl.tm.torrent.communication.CommunicationManager;
 import tcl.tm.torrent.communication.util.Piece;
-import tcl.tm.torrent.communication.peer.util.PendingRequest;
 import tcl.tm.torrent.communication.peer.FastPeer;
+import tcl.tm.torrent.communication.peer.util.RequestPipeline;
 import tcl.tm.torrent.communication.peer.sender.PeerSender;
-import tcl.tm.torrent.communication.peer.retriever.PeerRetriever;
 
-public class FastRetriever implements PeerRetriever {
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Downloads pieces from a Peer supporting the Fast extension.
+ *
+ * Requests the Peer rejects are reported to the RequestPipeline by the listener,
+ * which gives up the piece so that it can be finished by someone else.
+ *
+ * Pieces the Peer has suggested are likely to be in its cache, so they are asked for
+ * before the rarest piece. While the Peer is choking us, downloading carries on with
+ * the pieces it has allowed us to fetch anyway, rather than waiting for an unchoke.
+ * A suggested or allowed piece is forgotten once it has been assigned, or once it could
+ * not be, which happens when we already have it or someone else is downloading it.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public class FastRetriever extends StandardRetriever {
 
-	private FastPeer peer;
-	private PeerSender sender;
-	private CommunicationManager cm;
-	private StatsInfo si;
-	private Object chokeLock;
-	private Object pieceLock;
-	private boolean strikeOne;
-	private long completeTime;
+	private FastPeer fastPeer;
 
-	public FastRetriever(FastPeer peer, PeerSender sender, CommunicationManager cm, StatsInfo si, Object chokeLock, Object pieceLock) {
-		this.peer = peer;
-		this.sender = sender;
-		this.cm = cm;
-		this.si = si;
-		this.chokeLock = chokeLock;
-		this.pieceLock = pieceLock;
-		this.strikeOne = false;
-		this.completeTime = 10000L;
+	public FastRetriever(FastPeer peer, PeerSender sender, CommunicationManager cm, StatsInfo si, Object chokeLock, RequestPipeline pipeline) {
+		super(peer,sender,cm,si,chokeLock,pipeline);
+		this.fastPeer = peer;
 	}
 
-	public void run() {
-		while(peer.isRunning()) {
-			chokeWait();
-			if(peer.isRunning()) {
-				updateCurrentPiece();
-				if(peer.getCurrentPiece() == null && si.getNumPiecesLeft() == 0) {
-					peer.close();
-					return;
-				}
-				Piece currentPiece = peer.getCurrentPiece();
-				if(currentPiece != null) {
-					int[] needed = currentPiece.getNeededBlocks();
-					for(int block : needed) {
-						int id = currentPiece.getPieceId();
-						int offset = currentPiece.getBlockSize() * block;
-						int length = (block == currentPiece.getBlockCount()-1) ? currentPiece.getFinalBlockSize()
-																					: currentPiece.getBlockSize();
-						sender.issueRequest(id,offset,length);
-						synchronized(peer.getFastLock()) {
-							peer.getPendingRequests().add(new PendingRequest(id, offset, length));
-						}
-					}
-					pieceWait();
-				} else {
-					synchronized(pieceLock) {
-						try {
-							pieceLock.wait(15000);
-						} catch(InterruptedException e) {}
-					}
+	protected boolean downloadWhileChoked() {
+		ConcurrentBitSet bitfield = peer.getBitfield();
+		synchronized(fastPeer.getFastLock()) {
+			for(int id : fastPeer.getAllowedFast()) {
+				if(id >= 0 && id < bitfield.length() && bitfield.get(id)) {
+					return true;
 				}
 			}
 		}
-		if(peer.getCurrentPiece() != null) {
-			cm.returnPiece(peer.getCurrentPiece());
-			peer.setCurrentPiece(null);
-		}
+		return false;
 	}
 
-	private void chokeWait() {
-		synchronized(chokeLock) {
-			while(peer.getChoked()) {
-				try {
-					if(peer.getCurrentPiece() != null) {
-						cm.returnPiece(peer.getCurrentPiece());
-						peer.setCurrentPiece(null);
-					}
-					chokeLock.wait(300000);
-					if(peer.getChoked()) {
-						peer.close();
-					}
-				} catch(InterruptedException e) {}
-			}
+	protected Piece requestPiece(boolean wait) {
+		ConcurrentBitSet available = availablePieces();
+		if(peer.getChoked()) {
+			// Only allowed pieces will be sent while we are choked.
+			return assignFrom(fastPeer.getAllowedFast(),available,wait);
 		}
+		Piece p = assignFrom(fastPeer.getSuggested(),available,wait);
+		if(p == null) {
+			p = cm.assignPiece(available,completeTime,wait);
+		}
+		return p;
 	}
 
-	private void pieceWait() {
-		try {
-			synchronized(pieceLock) {
-				pieceLock.wait(200000);
-			}
-			if(!peer.getCurrentPiece().isComplete()) {
-				peer.close();
-			}
-		} catch(InterruptedException e) {}
-	}
-
-	private void updateCurrentPiece() {
-		if(peer.getCurrentPiece() == null) {
-			peer.setCurrentPiece(cm.assignPiece(peer.getBitfield(),completeTime));
-		} else if(peer.getCurrentPiece().isComplete()) {
-			completeTime = peer.getCurrentPiece().completeTime();
-			boolean valid = cm.returnPiece(peer.getCurrentPiece());
-			if(!valid) {
-				if(strikeOne) {
-					peer.close();
-				} else {
-					strikeOne = true;
+	/**
+	 * Asks the CommunicationManager for one of the given pieces, and forgets the one assigned.
+	 * If none could be assigned even though we were willing to wait for a free Piece, every piece
+	 * offered is forgotten. Pieces the Peer does not have yet are kept.
+	 *
+	 * @param ids The pieces to choose from, guarded by the Peer's fast lock.
+	 * @param available The pieces which may be assigned.
+	 * @param wait Whether to wait for a free Piece.
+	 *
+	 * @return The assigned piece, or null if none of the given pieces could be assigned.
+	 **/
+	private Piece assignFrom(Set<Integer> ids, ConcurrentBitSet available, boolean wait) {
+		ConcurrentBitSet offered = new ConcurrentBitSet(available.length());
+		synchronized(fastPeer.getFastLock()) {
+			for(int id : ids) {
+				if(id >= 0 && id < available.length() && available.get(id)) {
+					offered.set(id,true);
 				}
 			}
-			peer.setCurrentPiece(cm.assignPiece(peer.getBitfield(),completeTime));
 		}
-		if(!peer.isRunning() && peer.getCurrentPiece() != null) {
-			cm.returnPiece(peer.getCurrentPiece());
-			peer.setCurrentPiece(null);
+		if(offered.cardinality() == 0) {
+			return null;
+		}
+		Piece p = cm.assignPiece(offered,completeTime,wait);
+		synchronized(fastPeer.getFastLock()) {
+			if(p != null) {
+				ids.remove(p.getPieceId());
+			} else if(wait) {
+				Iterator<Integer> it = ids.iterator();
+				while(it.hasNext()) {
+					int id = it.next();
+					if(id >= 0 && id < offered.length() && offered.get(id)) {
+						it.remove();
+					}
+				}
+			}
 		}
+		return p;
 	}
 
 }
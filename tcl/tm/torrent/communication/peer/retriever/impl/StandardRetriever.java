@@ -2,31 +2,67 @@ package tcl.tm.torrent.communication.peer.retriever.impl;
 
 import tcl.tm.torrent.info.StatsInfo;
 
+import tcl.tm.torrent.file.FileAccessFuture;
+import tcl.tm.torrent.file.FileAccessListener;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
+
 import tcl.tm.torrent.communication.CommunicationManager;
 import tcl.tm.torrent.communication.util.Piece;
 import tcl.tm.torrent.communication.peer.Peer;
+import tcl.tm.torrent.communication.peer.util.PendingRequest;
+import tcl.tm.torrent.communication.peer.util.RequestPipeline;
 import tcl.tm.torrent.communication.peer.sender.PeerSender;
 import tcl.tm.torrent.communication.peer.retriever.PeerRetriever;
 
+/**
+ * Downloads pieces from a Peer through its RequestPipeline.
+ *
+ * Each time a block arrives which leaves the pipeline short, the retriever wakes up,
+ * returns any finished pieces, and sends more requests, taking on new pieces from the
+ * CommunicationManager once every block of the pieces it holds has been requested.
+ * Requests made redundant by a copy of the block arriving from another Peer during endgame,
+ * or by the piece being given up, are cancelled as soon as the retriever wakes.
+ * Only the first piece is waited for. Later ones are taken only if a Piece is free,
+ * so that a Peer never holds up the return of pieces it has already finished.
+ *
+ * A retriever either runs on a thread of its own, or is polled by a selector loop.
+ * Polling does the same work without ever blocking, and says when to poll again.
+ *
+ * @author Wayne Rowcliffe
+ **/
 public class StandardRetriever implements PeerRetriever {
 
-	private Peer peer;
+	// How long a Peer may go without sending any of the blocks we have asked for.
+	private static final long STALL_TIMEOUT = 200000;
+	// How long to wait for a block before checking on the Peer anyway.
+	private static final long BLOCK_WAIT = 5000;
+	// How long to wait with no pieces before asking for one again.
+	private static final long IDLE_WAIT = 15000;
+	// How long to wait before asking again when a polled retriever found no free Piece.
+	private static final long RETRY_WAIT = 1000;
+	// How long a Peer may choke us before it is dropped.
+	private static final long CHOKE_TIMEOUT = 300000;
+
+	protected Peer peer;
 	private PeerSender sender;
-	private CommunicationManager cm;
+	protected CommunicationManager cm;
 	private StatsInfo si;
 	private Object chokeLock;
-	private Object pieceLock;
-	private boolean strikeOne;
-	private long completeTime;
+	protected RequestPipeline pipeline;
+	private volatile boolean strikeOne;
+	protected long completeTime;
+	private FileAccessListener strikes;
+	private long chokedSince;
 
-	public StandardRetriever(Peer peer, PeerSender sender, CommunicationManager cm, StatsInfo si, Object chokeLock, Object pieceLock) {
+	public StandardRetriever(Peer peer, PeerSender sender, CommunicationManager cm, StatsInfo si, Object chokeLock, RequestPipeline pipeline) {
 		this.peer = peer;
 		this.sender = sender;
 		this.cm = cm;
 		this.si = si;
 		this.chokeLock = chokeLock;
-		this.pieceLock = pieceLock;
+		this.pipeline = pipeline;
 		this.strikeOne = false;
+		this.strikes = new StrikeListener();
 		this.completeTime = 10000L;
 	}
 
@@ -34,46 +70,84 @@ public class StandardRetriever implements PeerRetriever {
 		while(peer.isRunning()) {
 			chokeWait();
 			if(peer.isRunning()) {
-				updateCurrentPiece();
-				if(peer.getCurrentPiece() == null && si.getNumPiecesLeft() == 0) {
-					peer.close();
-					return;
-				}
-				Piece currentPiece = peer.getCurrentPiece();
-				if(currentPiece != null) {
-					int[] needed = currentPiece.getNeededBlocks();
-					for(int block : needed) {
-						int id = currentPiece.getPieceId();
-						int offset = currentPiece.getBlockSize() * block;
-						int length = (block == currentPiece.getBlockCount()-1) ? currentPiece.getFinalBlockSize()
-																					: currentPiece.getBlockSize();
-						sender.issueRequest(id,offset,length);
-					}
-					pieceWait();
-				} else {
-					synchronized(pieceLock) {
-						try {
-							pieceLock.wait(15000);
-						} catch(InterruptedException e) {}
-					}
+				long wait = work(true);
+				if(wait > 0) {
+					pipeline.await(wait);
 				}
 			}
 		}
-		if(peer.getCurrentPiece() != null) {
-			cm.returnPiece(peer.getCurrentPiece());
-			peer.setCurrentPiece(null);
+		returnAll();
+	}
+
+	/**
+	 * Does the work of one pass of run() without blocking, for a retriever driven by a selector loop.
+	 * No Piece is waited for. If none was free, the next poll comes sooner so it can be asked for again.
+	 *
+	 * @param now The current time.
+	 *
+	 * @return How long until the next poll at the latest, or -1 once the Peer has closed and its pieces have been returned.
+	 **/
+	public long poll(long now) {
+		if(peer.isRunning() && peer.getChoked() && !downloadWhileChoked()) {
+			returnAll();
+			if(chokedSince == 0) {
+				chokedSince = now;
+			}
+			if(now - chokedSince < CHOKE_TIMEOUT) {
+				return CHOKE_TIMEOUT - (now - chokedSince);
+			}
+			peer.close();
+		}
+		chokedSince = 0;
+		long wait = 0;
+		if(peer.isRunning()) {
+			wait = work(false);
+		}
+		if(!peer.isRunning()) {
+			returnAll();
+			return -1;
+		}
+		if(pipeline.getPieceCount() == 0 && cm.peerInteresting(peer.getBitfield())) {
+			wait = Math.min(wait,RETRY_WAIT);
 		}
+		return wait;
+	}
+
+	/**
+	 * Returns finished pieces, cancels redundant requests, and fills the pipeline.
+	 * Closes the Peer if it has stopped sending, or if there is nothing left to download.
+	 *
+	 * @param mayWait Whether to wait for a free Piece when none are held.
+	 *
+	 * @return How long to wait for blocks before working again, or 0 if the Peer was closed.
+	 **/
+	private long work(boolean mayWait) {
+		returnFinished();
+		for(PendingRequest r : pipeline.takeCancels()) {
+			sender.cancelRequest(r.getIndex(),r.getOffset(),r.getLength());
+		}
+		fillPipeline(mayWait);
+		if(pipeline.getPieceCount() == 0) {
+			if(si.getNumPiecesLeft() == 0) {
+				peer.close();
+				return 0;
+			}
+			return IDLE_WAIT;
+		}
+		if(pipeline.isStalled(System.currentTimeMillis(),STALL_TIMEOUT)) {
+			peer.close();
+			return 0;
+		}
+		return BLOCK_WAIT;
 	}
 
 	private void chokeWait() {
 		synchronized(chokeLock) {
-			while(peer.getChoked()) {
+			while(peer.getChoked() && !downloadWhileChoked()) {
 				try {
-					if(peer.getCurrentPiece() != null) {
-						cm.returnPiece(peer.getCurrentPiece());
-						peer.setCurrentPiece(null);
-					}
-					chokeLock.wait(300000);
+					// A choking Peer discards our requests, so the pieces are handed back to be finished elsewhere.
+					returnAll();
+					chokeLock.wait(CHOKE_TIMEOUT);
 					if(peer.getChoked()) {
 						peer.close();
 					}
@@ -82,35 +156,108 @@ public class StandardRetriever implements PeerRetriever {
 		}
 	}
 
-	private void pieceWait() {
-		try {
-			synchronized(pieceLock) {
-				pieceLock.wait(200000);
+	/**
+	 * Whether there are pieces the Peer will still send while it is choking us.
+	 * A standard Peer sends nothing while choking.
+	 *
+	 * @return Whether to keep downloading while choked.
+	 **/
+	protected boolean downloadWhileChoked() {
+		return false;
+	}
+
+	/**
+	 * Sends requests until the pipeline reaches its target depth,
+	 * taking on new pieces as the ones held run out of blocks to request.
+	 *
+	 * @param mayWait Whether to wait for a free Piece when none are held.
+	 **/
+	private void fillPipeline(boolean mayWait) {
+		while(peer.isRunning()) {
+			for(PendingRequest r : pipeline.fill(System.currentTimeMillis())) {
+				sender.issueRequest(r.getIndex(),r.getOffset(),r.getLength());
 			}
-			if(!peer.getCurrentPiece().isComplete()) {
-				peer.close();
+			if(!pipeline.wantsPiece()) {
+				return;
+			}
+			Piece p = requestPiece(mayWait && pipeline.getPieceCount() == 0);
+			if(p == null) {
+				return;
+			}
+			pipeline.addPiece(p);
+		}
+	}
+
+	/**
+	 * Asks the CommunicationManager for another piece to download from this Peer.
+	 *
+	 * @param wait Whether to wait for a free Piece.
+	 *
+	 * @return The assigned piece, or null if there was none.
+	 **/
+	protected Piece requestPiece(boolean wait) {
+		return cm.assignPiece(availablePieces(),completeTime,wait);
+	}
+
+	/**
+	 * The Peer's bitfield, less the pieces already being downloaded from it,
+	 * so that an endgame assignment does not hand us one of our own pieces again.
+	 *
+	 * @return The pieces which may be assigned.
+	 **/
+	protected ConcurrentBitSet availablePieces() {
+		int[] held = pipeline.getPieceIds();
+		if(held.length == 0) {
+			return peer.getBitfield();
+		}
+		ConcurrentBitSet available = new ConcurrentBitSet(peer.getBitfield());
+		for(int id : held) {
+			available.set(id,false);
+		}
+		return available;
+	}
+
+	/**
+	 * Returns every piece which is complete, or which the Peer will not send.
+	 **/
+	private void returnFinished() {
+		for(Piece p : pipeline.takeFinished()) {
+			if(p.isComplete()) {
+				completeTime = p.completeTime();
+				cm.returnPiece(p).addListener(strikes);
+			} else {
+				cm.returnPiece(p);
 			}
-		} catch(InterruptedException e) {}
+		}
 	}
 
-	private void updateCurrentPiece() {
-		if(peer.getCurrentPiece() == null) {
-			peer.setCurrentPiece(cm.assignPiece(peer.getBitfield(),completeTime));
-		} else if(peer.getCurrentPiece().isComplete()) {
-			completeTime = peer.getCurrentPiece().completeTime();
-			boolean valid = cm.returnPiece(peer.getCurrentPiece());
-			if(!valid) {
+	/**
+	 * Returns every piece held, finished or not.
+	 **/
+	private void returnAll() {
+		for(Piece p : pipeline.clear()) {
+			if(p.isComplete()) {
+				cm.returnPiece(p).addListener(strikes);
+			} else {
+				cm.returnPiece(p);
+			}
+		}
+	}
+
+	/**
+	 * Closes the peer once it has returned two complete pieces which failed to save,
+	 * which usually means it is sending bad data.
+	 **/
+	private class StrikeListener implements FileAccessListener {
+
+		public void requestComplete(FileAccessFuture f) {
+			if(!f.getSuccess()) {
 				if(strikeOne) {
 					peer.close();
 				} else {
 					strikeOne = true;
 				}
 			}
-			peer.setCurrentPiece(cm.assignPiece(peer.getBitfield(),completeTime));
-		}
-		if(!peer.isRunning() && peer.getCurrentPiece() != null) {
-			cm.returnPiece(peer.getCurrentPiece());
-			peer.setCurrentPiece(null);
 		}
 	}
 
@@ -6,4 +6,17 @@ public interface FastSender extends PeerSender {
 	
 	public void issueReject(int pieceId, int byteOffset, int length);
 	
+	/**
+	 * Suggest to this Peer that it download the given piece from us.
+	 * 
+	 * @param pieceId The piece to suggest.
+	 **/
+	public void issueSuggest(int pieceId);
+	
+	/**
+	 * Suggest the pieces we have cached which this Peer does not have yet,
+	 * since they can be sent without reading from disk.
+	 **/
+	public void suggestCached();
+	
 }
@@ -1,24 +1,81 @@
 package tcl.tm.torrent.communication.peer.sender.impl;
 
 import tcl.tm.torrent.file.FileAccessManager;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
+import tcl.tm.torrent.file.util.PieceCache;
 
 import tcl.tm.torrent.communication.CommunicationManager;
 import tcl.tm.torrent.communication.peer.Peer;
 import tcl.tm.torrent.communication.peer.sender.FastSender;
 import tcl.tm.torrent.communication.peer.sender.impl.StandardSender;
+import tcl.tm.torrent.communication.peer.util.PeerEvent;
 
 import java.io.OutputStream;
 
+import java.nio.channels.WritableByteChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
 import static tcl.tm.torrent.communication.peer.util.PeerUtils.decomposeLength;
 
+/**
+ * Sends messages to a Peer supporting the Fast extension.
+ *
+ * Every request is answered. Requests we will not serve are rejected rather than ignored,
+ * except for pieces in the Peer's Allowed Fast set, which are served even while we choke it.
+ * Our pieces are announced with HaveAll or HaveNone where they apply, followed by the
+ * Allowed Fast pieces we have, so that a new Peer can start downloading before it is unchoked.
+ *
+ * @author Wayne Rowcliffe
+ **/
 public class FastSenderImpl extends StandardSender implements FastSender {
 	
-	public FastSenderImpl(Peer peer, FileAccessManager fam, CommunicationManager cm, OutputStream peerOutput) {
-		super(peer,fam,cm,peerOutput);
+	// The most cached pieces suggested at once.
+	private static final int MAX_SUGGEST = 4;
+	
+	private Set<Integer> allowedFast;
+	
+	/**
+	 * Creates a FastSenderImpl writing to the given stream.
+	 * 
+	 * @param peer The Peer we are sending to
+	 * @param fam The FileAccessManager for the torrent
+	 * @param cm The CommunicationManager for the torrent
+	 * @param peerOutput The stream to write messages to
+	 * @param peerChannel The channel underlying peerOutput, or null if there is none.
+	 * @param allowedFast The pieces this Peer may download from us while choked.
+	 **/
+	public FastSenderImpl(Peer peer, FileAccessManager fam, CommunicationManager cm, OutputStream peerOutput, WritableByteChannel peerChannel, Set<Integer> allowedFast) {
+		this(peer,fam,cm,peerOutput,peerChannel,allowedFast,new LinkedBlockingQueue<PeerEvent>());
+	}
+	
+	/**
+	 * Creates a FastSenderImpl which queues its messages on the given queue, to be drained by someone else.
+	 * 
+	 * @param peer The Peer we are sending to
+	 * @param fam The FileAccessManager for the torrent
+	 * @param cm The CommunicationManager for the torrent
+	 * @param peerOutput The stream to write messages to
+	 * @param peerChannel The channel underlying peerOutput, or null if there is none.
+	 * @param allowedFast The pieces this Peer may download from us while choked.
+	 * @param outboundData The queue of messages waiting to be written.
+	 **/
+	public FastSenderImpl(Peer peer, FileAccessManager fam, CommunicationManager cm, OutputStream peerOutput, WritableByteChannel peerChannel, Set<Integer> allowedFast, BlockingQueue<PeerEvent> outboundData) {
+		super(peer,fam,cm,peerOutput,peerChannel,outboundData);
+		this.allowedFast = allowedFast;
 	}
 	
 	public void sendPiece(int pieceId, int byteOffset, int length) {
-		issueReject(pieceId, byteOffset, length);
+		if(length <= 0 || length > MAX_REQUEST_LENGTH || (peer.getAmChoking() && !allowedFast.contains(pieceId))) {
+			issueReject(pieceId, byteOffset, length);
+		} else {
+			servePiece(pieceId, byteOffset, length);
+		}
 	}
 	
 	public void issueReject(int pieceId, int byteOffset, int length) {
@@ -40,4 +97,82 @@ public class FastSenderImpl extends StandardSender implements FastSender {
 		
 		write(out);
 	}
+	
+	public void issueSuggest(int pieceId) {
+		write(pieceMessage(13,pieceId));
+	}
+	
+	public void suggestCached() {
+		ConcurrentBitSet bitfield = peer.getBitfield();
+		int sent = 0;
+		for(int id : PieceCache.getShared().getPieceIds(fam)) {
+			if(sent >= MAX_SUGGEST) {
+				break;
+			}
+			if(id < bitfield.length() && !bitfield.get(id)) {
+				issueSuggest(id);
+				sent++;
+			}
+		}
+	}
+	
+	/**
+	 * Builds HaveAll or HaveNone when we have every piece or none of them,
+	 * and a bitfield message otherwise. Allowed Fast messages for the pieces
+	 * in the Peer's set which we have follow it.
+	 * 
+	 * @param bitfield Our bitfield, as retrieved from the FileAccessManager.
+	 * 
+	 * @return The messages announcing our pieces.
+	 **/
+	protected byte[] bitfieldMessage(byte[] bitfield) {
+		ConcurrentBitSet have = new ConcurrentBitSet(peer.getBitfield().length());
+		have.setBitfield(bitfield);
+		int count = have.cardinality();
+		
+		byte[] first = null;
+		if(count == have.length()) {
+			first = new byte[] {0,0,0,1,14};
+		} else if(count == 0) {
+			first = new byte[] {0,0,0,1,15};
+		} else {
+			first = super.bitfieldMessage(bitfield);
+		}
+		
+		List<Integer> allowed = new ArrayList<Integer>();
+		for(int id : allowedFast) {
+			if(have.get(id)) {
+				allowed.add(id);
+			}
+		}
+		
+		byte[] out = new byte[first.length + 9 * allowed.size()];
+		System.arraycopy(first,0,out,0,first.length);
+		for(int i = 0; i < allowed.size(); i++) {
+			System.arraycopy(pieceMessage(17,allowed.get(i)),0,out,first.length + 9 * i,9);
+		}
+		return out;
+	}
+	
+	/**
+	 * Builds a message carrying a single piece index.
+	 * 
+	 * @param type The message id.
+	 * @param pieceId The piece.
+	 * 
+	 * @return The 9 byte message.
+	 **/
+	private byte[] pieceMessage(int type, int pieceId) {
+		byte[] out = new byte[9];
+		
+		byte[] mLength = decomposeLength(5);
+		System.arraycopy(mLength,0,out,0,4);
+		
+		out[4] = (byte) type;
+		
+		byte[] mPieceId = decomposeLength(pieceId);
+		System.arraycopy(mPieceId,0,out,5,4);
+		
+		return out;
+	}
 }
@@ -1,18 +1,27 @@
 package tcl.tm.torrent.communication.peer.sender.impl;
 
+import tcl.tm.torrent.file.FileAccessFuture;
+import tcl.tm.torrent.file.FileAccessListener;
 import tcl.tm.torrent.file.FileAccessManager;
+import tcl.tm.torrent.file.util.PieceCache;
 
 import tcl.tm.torrent.communication.CommunicationManager;
 import tcl.tm.torrent.communication.peer.Peer;
 import tcl.tm.torrent.communication.peer.sender.PeerSender;
+import tcl.tm.torrent.communication.peer.util.BlockTransfer;
 import tcl.tm.torrent.communication.peer.util.PeerEvent;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import java.io.OutputStream;
 import java.io.IOException;
 
+import java.nio.channels.WritableByteChannel;
+
 import static tcl.tm.torrent.communication.peer.util.PeerUtils.decomposeLength;
 
 
@@ -23,16 +32,50 @@ public class StandardSender implements PeerSender {
 	protected CommunicationManager cm;
 	private BlockingQueue<PeerEvent> outboundData;
 	private OutputStream peerOutput;
+	private WritableByteChannel peerChannel;
+	
+	// Messages written while our bitfield is being fetched are held back,
+	// since the bitfield must be the first message a peer receives.
+	private boolean bitfieldPending;
+	private List<PeerEvent> held;
+	
+	// The largest block a peer may request from us.
+	protected static final int MAX_REQUEST_LENGTH = 128 * 1024;
 	
-	private int currentUploadPiece;
-	private byte[] currentUploadData;
+	/**
+	 * Creates a StandardSender writing to the given stream.
+	 * If the connection also has a channel, blocks which are on disk are sent
+	 * straight from the file to the channel rather than being read onto the heap.
+	 * 
+	 * @param peer The Peer we are sending to
+	 * @param fam The FileAccessManager for the torrent
+	 * @param cm The CommunicationManager for the torrent
+	 * @param peerOutput The stream to write messages to
+	 * @param peerChannel The channel underlying peerOutput, or null if there is none.
+	 **/
+	public StandardSender(Peer peer, FileAccessManager fam, CommunicationManager cm, OutputStream peerOutput, WritableByteChannel peerChannel) {
+		this(peer,fam,cm,peerOutput,peerChannel,new LinkedBlockingQueue<PeerEvent>());
+	}
 	
-	public StandardSender(Peer peer, FileAccessManager fam, CommunicationManager cm, OutputStream peerOutput) {
+	/**
+	 * Creates a StandardSender which queues its messages on the given queue.
+	 * When the queue is drained by someone else, such as a selector loop, run is never started,
+	 * and peerOutput and peerChannel may be null.
+	 * 
+	 * @param peer The Peer we are sending to
+	 * @param fam The FileAccessManager for the torrent
+	 * @param cm The CommunicationManager for the torrent
+	 * @param peerOutput The stream to write messages to
+	 * @param peerChannel The channel underlying peerOutput, or null if there is none.
+	 * @param outboundData The queue of messages waiting to be written.
+	 **/
+	public StandardSender(Peer peer, FileAccessManager fam, CommunicationManager cm, OutputStream peerOutput, WritableByteChannel peerChannel, BlockingQueue<PeerEvent> outboundData) {
 		this.peer = peer;
 		this.fam = fam;
 		this.cm = cm;
 		this.peerOutput = peerOutput;
-		this.outboundData = new LinkedBlockingQueue<PeerEvent>();
+		this.peerChannel = peerChannel;
+		this.outboundData = outboundData;
 	}
 	
 	/**
@@ -42,7 +85,11 @@ public class StandardSender implements PeerSender {
 	public void run() {
 		while(peer.isRunning()) {
 			try {
-				peerOutput.write(outboundData.take().getData());
+				PeerEvent e = outboundData.take();
+				peerOutput.write(e.getData());
+				if(e instanceof BlockTransfer) {
+					sendBlockData((BlockTransfer) e);
+				}
 			} catch(IOException e) {
 				peer.close();
 			} catch(InterruptedException e) {
@@ -57,7 +104,7 @@ public class StandardSender implements PeerSender {
 	 * @param pieceID The piece which we want to inform this Peer that we now have.
 	 **/
 	public void issueHave(int pieceId) {
-		if(!peer.getBitfield()[pieceId]) {
+		if(!peer.getBitfield().get(pieceId)) {
 			byte[] out = new byte[9];
 		
 			byte[] mLength = decomposeLength(4);
@@ -153,18 +200,93 @@ public class StandardSender implements PeerSender {
 		write(out);
 	}
 	
+	/**
+	 * Writes the block of a piece message, once its header has been written.
+	 * 
+	 * @param t The piece message being sent
+	 **/
+	private void sendBlockData(BlockTransfer t) throws IOException {
+		if(t.getPiece() != null) {
+			peerOutput.write(t.getPiece(),t.getByteOffset(),t.getLength());
+		} else {
+			fam.transferBlock(t.getPieceId(),t.getByteOffset(),t.getLength(),peerChannel);
+		}
+	}
+	
 	/**
 	 * Send a piece to this Peer
+	 * The piece is served from the shared PieceCache when possible. Otherwise, if the
+	 * piece is on disk and we have a channel to the Peer, the block is transferred straight
+	 * from the file when it is sent. Failing that, the piece is read through the FileAccessManager and then cached.
+	 * A read does not hold up the caller; the block is sent once the read completes.
+	 * Requests made while we are choking this Peer, or for data we do not have, are ignored.
 	 * 
 	 * @param pieceId The piece the data comes from
 	 * @param byteOffset The offset within the piece the data starts at.
 	 * @param length The length of the data that will be sent
 	 **/
 	public void sendPiece(int pieceId, int byteOffset, int length) {
-		/*if(pieceId != currentUploadPiece) {
-			currentUploadData = fam.getPiece(pieceId).getData();
+		if(peer.getAmChoking() || length <= 0 || length > MAX_REQUEST_LENGTH) {
+			return;
+		}
+		servePiece(pieceId,byteOffset,length);
+	}
+	
+	/**
+	 * Sends a block to this Peer once the request has been accepted,
+	 * from the cache, straight from disk, or once it has been read.
+	 * 
+	 * @param pieceId The piece the data comes from
+	 * @param byteOffset The offset within the piece the data starts at.
+	 * @param length The length of the data that will be sent
+	 **/
+	protected void servePiece(final int pieceId, final int byteOffset, final int length) {
+		byte[] data = PieceCache.getShared().get(fam,pieceId);
+		if(data != null) {
+			sendBlock(pieceId,byteOffset,length,data);
+		} else if(peerChannel != null && fam.canTransfer(pieceId,byteOffset,length)) {
+			write(new BlockTransfer(blockHeader(pieceId,byteOffset,length),pieceId,byteOffset,length,null));
+		} else {
+			fam.getPiece(pieceId).addListener(new FileAccessListener() {
+				public void requestComplete(FileAccessFuture f) {
+					byte[] read = f.getData();
+					if(read != null) {
+						PieceCache.getShared().put(fam,pieceId,read);
+						sendBlock(pieceId,byteOffset,length,read);
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Sends the requested block of the given piece data to this Peer,
+	 * provided the block lies within the piece.
+	 * The block is written from the piece data itself, rather than copied into a message.
+	 * 
+	 * @param pieceId The piece the data comes from
+	 * @param byteOffset The offset within the piece the data starts at.
+	 * @param length The length of the data that will be sent
+	 * @param data The data for the whole piece
+	 **/
+	private void sendBlock(int pieceId, int byteOffset, int length, byte[] data) {
+		if(byteOffset < 0 || byteOffset + length > data.length) {
+			return;
 		}
-		byte[] out = new byte[13 + length];
+		write(new BlockTransfer(blockHeader(pieceId,byteOffset,length),pieceId,byteOffset,length,data));
+	}
+	
+	/**
+	 * Builds the header of a piece message, which is followed by the block itself.
+	 * 
+	 * @param pieceId The piece the data comes from
+	 * @param byteOffset The offset within the piece the data starts at.
+	 * @param length The length of the block
+	 * 
+	 * @return The 13 byte message header.
+	 **/
+	private byte[] blockHeader(int pieceId, int byteOffset, int length) {
+		byte[] out = new byte[13];
 		
 		byte[] mLength = decomposeLength(length + 9);
 		System.arraycopy(mLength,0,out,0,4);
@@ -177,27 +299,60 @@ public class StandardSender implements PeerSender {
 		byte[] mByteOffset = decomposeLength(byteOffset);
 		System.arraycopy(mByteOffset,0,out,9,4);
 		
-		System.arraycopy(currentUploadData,byteOffset,out,13,length);
-		
-		write(out);
-		*/
+		return out;
 	}
 	
 	/**
-	 * Sends our Bitfield to this peer
+	 * Sends our Bitfield to this peer.
+	 * The bitfield is requested without waiting on the FileAccessManager.
+	 * Any messages written before it arrives are held and sent after it.
 	 **/
 	public void sendBitfield() {
-		byte[] out = new byte[5 + (int) Math.ceil(peer.getBitfield().length / 8.0)];
+		synchronized(this) {
+			bitfieldPending = true;
+			held = new ArrayList<PeerEvent>();
+		}
+		fam.getBitfield().addListener(new FileAccessListener() {
+			public void requestComplete(FileAccessFuture f) {
+				byte[] bitfield = f.getData();
+				releaseHeld(bitfield == null ? null : bitfieldMessage(bitfield));
+			}
+		});
+	}
+	
+	/**
+	 * Builds the message announcing which pieces we have.
+	 * 
+	 * @param bitfield Our bitfield, as retrieved from the FileAccessManager.
+	 * 
+	 * @return The bitfield message.
+	 **/
+	protected byte[] bitfieldMessage(byte[] bitfield) {
+		byte[] out = new byte[5 + (int) Math.ceil(peer.getBitfield().length() / 8.0)];
 		
 		byte[] mLength = decomposeLength(out.length - 4);
 		System.arraycopy(mLength,0,out,0,4);
 		
 		out[4] = 5;
 		
-		byte[] bitfield = fam.getBitfield().getData();
 		System.arraycopy(bitfield,0,out,5,bitfield.length);
-		
-		write(out);
+		return out;
+	}
+	
+	/**
+	 * Queues the bitfield, followed by any messages held back while it was pending.
+	 * 
+	 * @param bitfield The bitfield message, or null if it could not be retrieved.
+	 **/
+	private synchronized void releaseHeld(byte[] bitfield) {
+		if(bitfield != null) {
+			outboundData.offer(new PeerEvent(bitfield));
+		}
+		for(PeerEvent e : held) {
+			outboundData.offer(e);
+		}
+		held = null;
+		bitfieldPending = false;
 	}
 	
 	/**
@@ -228,10 +383,14 @@ public class StandardSender implements PeerSender {
 	}
 
 	protected void write(byte[] data) {
-		try {
-			outboundData.put(new PeerEvent(data));
-		} catch(InterruptedException e) {
-			e.printStackTrace();
+		write(new PeerEvent(data));
+	}
+	
+	private synchronized void write(PeerEvent e) {
+		if(bitfieldPending) {
+			held.add(e);
+		} else {
+			outboundData.offer(e);
 		}
 	}
 
@@ -0,0 +1,67 @@
+package tcl.tm.torrent.communication.peer.util;
+
+/**
+ * A BlockTransfer is an outbound piece message whose block is not copied into the message itself.
+ * The data of the event is the 13 byte message header, and the block follows it,
+ * either from piece data already in memory, or straight from disk when no piece data is given.
+ **/
+public class BlockTransfer extends PeerEvent {
+	
+	private int pieceId;
+	private int byteOffset;
+	private int length;
+	private byte[] piece;
+	
+	/**
+	 * Constructs a BlockTransfer for the given block.
+	 * 
+	 * @param header The piece message header, including the length prefix.
+	 * @param pieceId The piece the block comes from
+	 * @param byteOffset The offset of the block within the piece
+	 * @param length The length of the block
+	 * @param piece The data for the whole piece, or null if the block should be read from disk.
+	 **/
+	public BlockTransfer(byte[] header, int pieceId, int byteOffset, int length, byte[] piece) {
+		super(header);
+		this.pieceId = pieceId;
+		this.byteOffset = byteOffset;
+		this.length = length;
+		this.piece = piece;
+	}
+	
+	/**
+	 * The piece the block comes from.
+	 * 
+	 * @return The piece id.
+	 **/
+	public int getPieceId() {
+		return pieceId;
+	}
+	
+	/**
+	 * The offset of the block within its piece.
+	 * 
+	 * @return The offset of the block.
+	 **/
+	public int getByteOffset() {
+		return byteOffset;
+	}
+	
+	/**
+	 * The length of the block.
+	 * 
+	 * @return The length of the block.
+	 **/
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * The data for the whole piece, if it was in memory when the block was queued.
+	 * 
+	 * @return The piece data, or null if the block is to be read from disk.
+	 **/
+	public byte[] getPiece() {
+		return piece;
+	}
+}
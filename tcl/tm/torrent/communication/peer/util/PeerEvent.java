@@ -1,15 +1,22 @@
 package tcl.tm.torrent.communication.peer.util;
 
+import java.nio.ByteBuffer;
+
 /**
  * A PeerEvent contains the data portion of a message sent to us by a Peer.
  * The standard BitTorrent message format is <length><code><data>
  * The creator of the event should parse out the length and code portions
  * to determine what method the event should be forwarded to and how long the
  * included data should be.
+ *
+ * Piece messages, which make up nearly all received data, are instead held in a pooled
+ * ByteBuffer. The handler of such an event takes ownership of the buffer, and must see
+ * that it is released back to the BufferPool once it is done with it.
  **/
 public class PeerEvent {
 	
 	private byte[] data;
+	private ByteBuffer buffer;
 
 	/**
 	 * Constructs a PeerEvent with the given data.
@@ -20,6 +27,15 @@ public class PeerEvent {
 		this.data = data;
 	}
 
+	/**
+	 * Constructs a PeerEvent whose data is held in the given buffer.
+	 * 
+	 * @param buffer The buffer holding the data for this PeerEvent.
+	 **/
+	public PeerEvent(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
 	/**
 	 * Returns the data relevant to this event.
 	 * 
@@ -28,4 +44,13 @@ public class PeerEvent {
 	public byte[] getData() {
 		return data;
 	}
+
+	/**
+	 * Returns the buffer holding the data for this event, if it was constructed with one.
+	 * 
+	 * @return The buffer for this event, or null if the data is held in an array.
+	 **/
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
 }
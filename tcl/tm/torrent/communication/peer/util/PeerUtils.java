@@ -1,5 +1,14 @@
 package tcl.tm.torrent.communication.peer.util;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 public class PeerUtils {
 	
 	/**
@@ -32,4 +41,42 @@ public class PeerUtils {
 		bytes[0] = (byte) (value >> 24 & (0xff));
 		return bytes;
 	}
+
+	/**
+	 * Generates the canonical Allowed Fast set for a Peer, as described by the Fast extension.
+	 * The set depends only on the Peer's address and the torrent, so a Peer which reconnects
+	 * is given the same pieces, and Peers on the same /24 network share a set.
+	 * The set is only defined for IPv4 addresses. Other Peers get an empty set.
+	 *
+	 * @param k The number of pieces in the set.
+	 * @param pieceCount The number of pieces in the torrent.
+	 * @param infoHash The info hash of the torrent.
+	 * @param address The Peer's address.
+	 *
+	 * @return The allowed pieces, in the order they were generated.
+	 **/
+	public static Set<Integer> allowedFastSet(int k, int pieceCount, byte[] infoHash, InetAddress address) {
+		Set<Integer> allowed = new LinkedHashSet<Integer>();
+		if(!(address instanceof Inet4Address)) {
+			return allowed;
+		}
+		k = Math.min(k,pieceCount);
+		byte[] ip = address.getAddress();
+		byte[] x = new byte[4 + infoHash.length];
+		System.arraycopy(ip,0,x,0,3);
+		System.arraycopy(infoHash,0,x,4,infoHash.length);
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-1");
+			while(allowed.size() < k) {
+				x = sha.digest(x);
+				for(int i = 0; i < 5 && allowed.size() < k; i++) {
+					long y = parseLength(x,i * 4) & 0xffffffffL;
+					allowed.add((int) (y % pieceCount));
+				}
+			}
+		} catch(NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+		return allowed;
+	}
 }
@@ -12,6 +12,18 @@ public class PendingRequest {
 		this.length = length;
 	}
 
+	public int getIndex() {
+		return index;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
 	public boolean equals(Object o) {
 		if( o instanceof PendingRequest) {
 			PendingRequest p = (PendingRequest) o;
@@ -0,0 +1,449 @@
+package tcl.tm.torrent.communication.peer.util;
+
+import tcl.tm.torrent.communication.util.BlockListener;
+import tcl.tm.torrent.communication.util.Piece;
+import tcl.tm.torrent.file.util.BufferPool;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A RequestPipeline tracks the pieces a Peer is downloading and the block requests
+ * we have outstanding with it.
+ *
+ * Rather than requesting one piece and waiting for all of it to arrive, the retriever keeps
+ * enough requests outstanding to cover the Peer's bandwidth delay product, spanning as many
+ * pieces as that takes, and tops the queue up as blocks arrive. The Peer then never sits idle
+ * waiting for our next request at a piece boundary.
+ *
+ * The depth of the queue is worked out from the rate blocks are arriving at and the round
+ * trip time of requests. The round trip time is the shortest seen over a recent window, since
+ * later samples include the time spent queued behind our own earlier requests. The queue is
+ * kept at twice the bandwidth delay product, so that the rate it measures is free to grow.
+ *
+ * During endgame the same Piece may be held by several pipelines, each requesting the
+ * blocks still missing. The pipeline listens to every Piece it holds, and once a copy of a
+ * block arrives from any Peer, its own request for that block is queued to be cancelled.
+ * Requests for pieces given up are cancelled the same way.
+ *
+ * The listener thread hands received blocks to the pipeline, and the retriever thread
+ * fills it with requests and collects finished pieces. Both synchronize on the pipeline.
+ * A retriever which is polled by a selector loop, rather than waiting in await, is woken
+ * through a task run whenever the pipeline is signalled.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public class RequestPipeline implements BlockListener {
+
+	/**
+	 * The fewest requests kept outstanding, and the depth used before anything has been measured.
+	 **/
+	public static final int MIN_DEPTH = 4;
+	public static final int INITIAL_DEPTH = 16;
+	public static final int MAX_DEPTH = 256;
+
+	/**
+	 * The most pieces a single Peer downloads at once.
+	 **/
+	public static final int MAX_PIECES = 8;
+
+	// How often the arrival rate is sampled, and how long a minimum round trip time is trusted.
+	private static final long RATE_INTERVAL = 1000;
+	private static final long RTT_WINDOW = 10000;
+	// A request unanswered for this long is assumed lost, and is sent again.
+	private static final long REQUEST_TIMEOUT = 60000;
+
+	private List<Piece> pieces;
+	private List<Piece> dropped;
+	private LinkedHashMap<PendingRequest,Long> outstanding;
+	private List<PendingRequest> cancels;
+
+	// Arrival rate in blocks per second, and round trip time in milliseconds, or -1 if unknown.
+	private double rate;
+	private long rtt;
+	private long windowMinRtt;
+	private long rttWindowStart;
+	private int windowBlocks;
+	private long rateWindowStart;
+	private long lastReceived;
+
+	private boolean signalled;
+	private Runnable wakeup;
+
+	/**
+	 * Creates an empty RequestPipeline.
+	 **/
+	public RequestPipeline() {
+		this.pieces = new ArrayList<Piece>();
+		this.dropped = new ArrayList<Piece>();
+		this.outstanding = new LinkedHashMap<PendingRequest,Long>();
+		this.cancels = new ArrayList<PendingRequest>();
+		this.rtt = -1;
+		this.windowMinRtt = -1;
+		this.rateWindowStart = -1;
+	}
+
+	/**
+	 * Adds a newly assigned piece to be downloaded.
+	 *
+	 * @param p The piece.
+	 **/
+	public synchronized void addPiece(Piece p) {
+		pieces.add(p);
+		p.addBlockListener(this);
+	}
+
+	/**
+	 * The number of pieces being downloaded.
+	 *
+	 * @return The number of pieces held.
+	 **/
+	public synchronized int getPieceCount() {
+		return pieces.size();
+	}
+
+	/**
+	 * The ids of the pieces being downloaded.
+	 *
+	 * @return The piece ids.
+	 **/
+	public synchronized int[] getPieceIds() {
+		int[] ids = new int[pieces.size()];
+		for(int i = 0; i < ids.length; i++) {
+			ids[i] = pieces.get(i).getPieceId();
+		}
+		return ids;
+	}
+
+	/**
+	 * The number of requests which have been sent and not yet answered.
+	 *
+	 * @return The number of outstanding requests.
+	 **/
+	public synchronized int getOutstanding() {
+		return outstanding.size();
+	}
+
+	/**
+	 * The number of requests this pipeline aims to keep outstanding.
+	 *
+	 * @return The target queue depth.
+	 **/
+	public synchronized int getDepth() {
+		if(rtt < 0 || rate <= 0) {
+			return INITIAL_DEPTH;
+		}
+		double bdp = rate * rtt / 1000.0;
+		return Math.max(MIN_DEPTH,Math.min(MAX_DEPTH,(int) Math.ceil(2 * bdp) + MIN_DEPTH));
+	}
+
+	/**
+	 * Picks the next blocks to request, up to the target depth, and records them as outstanding.
+	 * Blocks are requested in piece order, so the oldest piece finishes first.
+	 *
+	 * @param now The current time.
+	 *
+	 * @return The requests which should be sent.
+	 **/
+	public synchronized List<PendingRequest> fill(long now) {
+		List<PendingRequest> out = new ArrayList<PendingRequest>();
+		Iterator<Long> sent = outstanding.values().iterator();
+		while(sent.hasNext()) {
+			if(now - sent.next().longValue() < REQUEST_TIMEOUT) {
+				break;
+			}
+			sent.remove();
+		}
+		int depth = getDepth();
+		for(Piece p : pieces) {
+			if(outstanding.size() >= depth) {
+				break;
+			}
+			if(dropped.contains(p)) {
+				continue;
+			}
+			for(int block : p.getNeededBlocks()) {
+				if(outstanding.size() >= depth) {
+					break;
+				}
+				PendingRequest r = request(p,block);
+				if(!outstanding.containsKey(r)) {
+					outstanding.put(r,now);
+					out.add(r);
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Whether another piece should be assigned: every block of the pieces held has been requested,
+	 * the queue is still short of its target depth, and fewer than MAX_PIECES pieces are held.
+	 *
+	 * @return Whether the pipeline has room for another piece.
+	 **/
+	public synchronized boolean wantsPiece() {
+		if(pieces.size() >= MAX_PIECES || outstanding.size() >= getDepth()) {
+			return false;
+		}
+		for(Piece p : pieces) {
+			if(dropped.contains(p)) {
+				continue;
+			}
+			for(int block : p.getNeededBlocks()) {
+				if(!outstanding.containsKey(request(p,block))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Saves a received block into the piece it belongs to, taking ownership of the buffer.
+	 * Blocks for pieces this pipeline no longer holds are released.
+	 *
+	 * @param pieceId The piece the block belongs to.
+	 * @param offset The offset of the block within the piece.
+	 * @param buf The buffer holding the block, from its position to its limit.
+	 * @param now The current time.
+	 *
+	 * @return Whether the block was for a piece being downloaded.
+	 **/
+	public boolean blockReceived(int pieceId, int offset, ByteBuffer buf, long now) {
+		int length = buf.remaining();
+		List<BlockListener> others = null;
+		synchronized(this) {
+			Long sent = outstanding.remove(new PendingRequest(pieceId,offset,length));
+			if(sent != null) {
+				sample(now,now - sent.longValue());
+			}
+			Piece p = find(pieceId);
+			if(p == null) {
+				BufferPool.getShared().release(buf);
+				return false;
+			}
+			// Saved under the pipeline's lock, so the piece cannot be returned and recycled meanwhile.
+			if(p.saveBlock(offset/p.getBlockSize(),buf)) {
+				others = p.getBlockListeners();
+			}
+			if(p.isComplete() || outstanding.size() <= getDepth() * 3 / 4) {
+				signal();
+			}
+		}
+		// Other pipelines are told without holding this one's lock, since they may be telling us too.
+		if(others != null) {
+			for(BlockListener l : others) {
+				if(l != this) {
+					l.blockSaved(pieceId,offset,length);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Queues our request for a block to be cancelled, since a copy has arrived from another Peer.
+	 *
+	 * @param pieceId The piece the block belongs to.
+	 * @param offset The offset of the block within the piece.
+	 * @param length The length of the block.
+	 **/
+	public synchronized void blockSaved(int pieceId, int offset, int length) {
+		PendingRequest r = new PendingRequest(pieceId,offset,length);
+		if(outstanding.remove(r) != null) {
+			cancels.add(r);
+			signal();
+		} else if(find(pieceId) != null) {
+			signal();
+		}
+	}
+
+	/**
+	 * Removes the requests which should be cancelled.
+	 *
+	 * @return The requests to send cancels for.
+	 **/
+	public synchronized List<PendingRequest> takeCancels() {
+		List<PendingRequest> out = cancels;
+		cancels = new ArrayList<PendingRequest>();
+		return out;
+	}
+
+	/**
+	 * Records that the Peer refused one of our requests.
+	 * The piece is given up, so that some other Peer can finish it.
+	 *
+	 * @param pieceId The piece the request was for.
+	 * @param offset The offset of the block within the piece.
+	 * @param length The length of the block.
+	 **/
+	public synchronized void requestRejected(int pieceId, int offset, int length) {
+		outstanding.remove(new PendingRequest(pieceId,offset,length));
+		Piece p = find(pieceId);
+		if(p != null && !dropped.contains(p)) {
+			dropped.add(p);
+		}
+		signal();
+	}
+
+	/**
+	 * Removes every piece which is complete or has been given up, along with its outstanding requests.
+	 *
+	 * @return The removed pieces.
+	 **/
+	public synchronized List<Piece> takeFinished() {
+		List<Piece> done = new ArrayList<Piece>();
+		Iterator<Piece> it = pieces.iterator();
+		while(it.hasNext()) {
+			Piece p = it.next();
+			if(p.isComplete() || dropped.contains(p)) {
+				it.remove();
+				p.removeBlockListener(this);
+				done.add(p);
+				forget(p.getPieceId());
+			}
+		}
+		dropped.clear();
+		return done;
+	}
+
+	/**
+	 * Removes every piece and forgets every outstanding request, as when the Peer chokes us or closes.
+	 * A choking Peer discards our requests itself, so no cancels are sent.
+	 *
+	 * @return The removed pieces.
+	 **/
+	public synchronized List<Piece> clear() {
+		List<Piece> all = new ArrayList<Piece>(pieces);
+		for(Piece p : all) {
+			p.removeBlockListener(this);
+		}
+		pieces.clear();
+		dropped.clear();
+		outstanding.clear();
+		cancels.clear();
+		return all;
+	}
+
+	/**
+	 * Whether requests are outstanding but nothing has arrived for the given time.
+	 *
+	 * @param now The current time.
+	 * @param timeout How long the Peer may go without sending a block.
+	 *
+	 * @return Whether the Peer has stalled.
+	 **/
+	public synchronized boolean isStalled(long now, long timeout) {
+		if(outstanding.isEmpty()) {
+			return false;
+		}
+		long since = lastReceived;
+		for(Long sent : outstanding.values()) {
+			since = Math.max(since,sent.longValue());
+			break;
+		}
+		return now - since > timeout;
+	}
+
+	/**
+	 * Waits until a block arrives which calls for more requests, a piece completes, or the timeout passes.
+	 *
+	 * @param timeout The longest time to wait.
+	 **/
+	public synchronized void await(long timeout) {
+		if(!signalled) {
+			try {
+				wait(timeout);
+			} catch(InterruptedException e) {}
+		}
+		signalled = false;
+	}
+
+	/**
+	 * Wakes the thread waiting on this pipeline.
+	 **/
+	public synchronized void signal() {
+		signalled = true;
+		notifyAll();
+		if(wakeup != null) {
+			wakeup.run();
+		}
+	}
+
+	/**
+	 * Sets a task to run whenever this pipeline is signalled.
+	 * The task is run while the pipeline is locked, so it should only hand the work off.
+	 *
+	 * @param wakeup The task, or null for none.
+	 **/
+	public synchronized void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	/**
+	 * Updates the arrival rate and round trip time with a newly arrived block.
+	 *
+	 * @param now The time the block arrived.
+	 * @param sample How long ago the block was requested.
+	 **/
+	private void sample(long now, long sample) {
+		lastReceived = now;
+		if(rateWindowStart < 0) {
+			rateWindowStart = now;
+		}
+		windowBlocks++;
+		if(now - rateWindowStart >= RATE_INTERVAL) {
+			double current = windowBlocks * 1000.0 / (now - rateWindowStart);
+			rate = (rate <= 0) ? current : 0.7 * rate + 0.3 * current;
+			windowBlocks = 0;
+			rateWindowStart = now;
+		}
+		sample = Math.max(1,sample);
+		if(windowMinRtt < 0 || sample < windowMinRtt) {
+			windowMinRtt = sample;
+		}
+		if(rtt < 0 || sample < rtt) {
+			rtt = sample;
+		}
+		if(now - rttWindowStart >= RTT_WINDOW) {
+			rtt = windowMinRtt;
+			windowMinRtt = -1;
+			rttWindowStart = now;
+		}
+	}
+
+	private Piece find(int pieceId) {
+		for(Piece p : pieces) {
+			if(p.getPieceId() == pieceId) {
+				return p;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Cancels every outstanding request for the given piece.
+	 *
+	 * @param pieceId The piece.
+	 **/
+	private void forget(int pieceId) {
+		Iterator<PendingRequest> it = outstanding.keySet().iterator();
+		while(it.hasNext()) {
+			PendingRequest r = it.next();
+			if(r.getIndex() == pieceId) {
+				cancels.add(r);
+				it.remove();
+			}
+		}
+	}
+
+	private static PendingRequest request(Piece p, int block) {
+		int length = (block == p.getBlockCount() - 1) ? p.getFinalBlockSize() : p.getBlockSize();
+		return new PendingRequest(p.getPieceId(),block * p.getBlockSize(),length);
+	}
+}
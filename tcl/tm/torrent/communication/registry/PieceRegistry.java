@@ -2,6 +2,9 @@ package tcl.tm.torrent.communication.registry;
 
 import tcl.tm.torrent.communication.util.Piece;
 
+import tcl.tm.torrent.file.FileAccessFuture;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
+
 /**
  * The PieceRegistry tracks the pieces needed for the current torrent.
  * It assigns pieces to peers for download and also handles saving
@@ -19,19 +22,20 @@ public interface PieceRegistry {
 	 *
 	 * @param bitfield The bitfield of pieces the Peer has available.
 	 * @param completeTime The amount of time the Peer took to download the last piece.
+	 * @param wait Whether to wait for a free Piece if all are in use, rather than returning null.
 	 *
 	 * @return The next piece the Peer should attempt to download, or null if nothing acceptable was found.
 	 **/
-	public Piece requestPiece(boolean[] bitfield, long completeTime);
+	public Piece requestPiece(ConcurrentBitSet bitfield, long completeTime, boolean wait);
 
 	/**
 	 * Called by a Peer to return a downloaded piece
 	 *
 	 * @param p The piece which the Peer wishes to return
 	 *
-	 * @return Whether or not the Piece could be saved to file
+	 * @return The request saving the Piece, which fails if the Piece was incomplete or could not be saved to file
 	 **/
-	public boolean returnPiece(Piece p);
+	public FileAccessFuture returnPiece(Piece p);
 
 	/**
 	 * Called by a Peer to indicate that they now have the given piece available
@@ -45,7 +49,7 @@ public interface PieceRegistry {
 	 *
 	 * @param bitfield The bitfield of available pieces
 	 **/
-	public void peerBitfield(boolean[] bitfield);
+	public void peerBitfield(ConcurrentBitSet bitfield);
 
 	/**
 	 * Called by a Peer to determine if they are interesting to us or not
@@ -54,7 +58,7 @@ public interface PieceRegistry {
 	 *
 	 * @return Whether or not the Peer has pieces we do not have.
 	 **/
-	public boolean peerInteresting(boolean[] bitfield);
+	public boolean peerInteresting(ConcurrentBitSet bitfield);
 
 	/**
 	 * Called by a Peer when they are closing. Removes their pieces
@@ -62,6 +66,16 @@ public interface PieceRegistry {
 	 *
 	 * @param bitfield The pieces the Peer had available for download.
 	 **/
-	public void removeBitfield(boolean[] bitfield);
+	public void removeBitfield(ConcurrentBitSet bitfield);
+
+	/**
+	 * Called by a Peer which has every piece, in place of peerBitfield
+	 **/
+	public void peerSeed();
+
+	/**
+	 * Called by a Peer which was counted as a seed when they are closing, in place of removeBitfield
+	 **/
+	public void removeSeed();
 
 }
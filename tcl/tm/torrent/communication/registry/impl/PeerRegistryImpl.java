@@ -7,11 +7,13 @@ import tcl.tm.torrent.communication.registry.PeerRegistry;
 import tcl.tm.torrent.communication.peer.Peer;
 import tcl.tm.torrent.communication.peer.impl.StandardPeer;
 import tcl.tm.torrent.communication.peer.impl.FastPeerImpl;
+import tcl.tm.torrent.communication.peer.impl.SelectorPeer;
 
 import java.util.Map;
 import java.util.HashMap;
 
 import java.net.Socket;
+import java.io.IOException;
 
 /**
  * The PeerRegistry tracks all currently connected Peers.
@@ -36,6 +38,7 @@ public class PeerRegistryImpl implements PeerRegistry {
 	/**
 	 * Adds a Peer to this CommunicationManager. Meaning that the peer on the other side
 	 * of the Socket is interested in downloading / sharing this Torrent.
+	 * A connection handshaken by a selector loop is left non-blocking, and gets a SelectorPeer.
 	 *
 	 * @param peer The Socket representing the connection to an interested peer.
 	 * @param reserved The reserved bytes from the handshake, used to determine what sort of Peer we have.
@@ -43,13 +46,23 @@ public class PeerRegistryImpl implements PeerRegistry {
 	public void addPeer(Socket peer, byte[] reserved) {
 		synchronized(peerLock) {
 			if(running && !peers.containsKey(peer.getInetAddress().toString()) && !(peer.getInetAddress().equals(peer.getLocalAddress()))) {
-				if((reserved[7] & (0x04)) == 4) {
+				boolean fast = (reserved[7] & (0x04)) == 4;
+				if(peer.getChannel() != null && !peer.getChannel().isBlocking()) {
+					peers.put(peer.getInetAddress().toString(),new SelectorPeer(torrent,peer,fast));
+				} else if(fast) {
 					peers.put(peer.getInetAddress().toString(),new FastPeerImpl(torrent,peer));
 				} else {
 					peers.put(peer.getInetAddress().toString(),new StandardPeer(torrent,peer));
 				}
+				return;
 			}
 		}
+		// Already connected, or closing, so the connection is not needed.
+		try {
+			peer.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
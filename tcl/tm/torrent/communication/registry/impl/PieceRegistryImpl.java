@@ -4,6 +4,7 @@ import tcl.tm.torrent.communication.registry.PieceRegistry;
 import tcl.tm.torrent.communication.registry.PeerRegistry;
 
 import tcl.tm.torrent.communication.util.Piece;
+import tcl.tm.torrent.communication.util.PiecePicker;
 
 import tcl.tm.torrent.Torrent;
 
@@ -11,19 +12,44 @@ import tcl.tm.torrent.info.TorrentInfo;
 
 import tcl.tm.torrent.file.FileAccessManager;
 import tcl.tm.torrent.file.FileAccessFuture;
+import tcl.tm.torrent.file.FileAccessListener;
+import tcl.tm.torrent.file.PieceLossListener;
+import tcl.tm.torrent.file.impl.FileAccessFutureImpl;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The PieceRegistry tracks the pieces needed for the current torrent.
  * It assigns pieces to peers for download and also handles saving
  * completed pieces to file.
+ *
+ * Pieces are picked rarest first by a PiecePicker, which is kept up to date as peers
+ * announce and lose pieces, rather than by scanning the availability of every piece.
+ * Pieces are assigned on the requesting Peer's own thread. The lock guarding the picker
+ * is only held for constant time updates and picks, and never across FileAccessManager calls.
+ * Whole bitfields are applied in runs, so a new Peer does not hold up everyone else's requests.
+ *
+ * Incomplete pieces returned by a peer are not thrown away. Their saved blocks are written to disk
+ * and their block bitmaps kept, and they are assigned again ahead of untouched pieces, resuming
+ * where they left off. When the registry is closed, the bitmaps of all incomplete pieces are saved
+ * through the FileAccessManager, and they are restored when the torrent is next started.
+ * Pieces which the FileAccessManager later fails to write are wanted again.
  **/
 public class PieceRegistryImpl implements PieceRegistry {
 
-	private PriorityBlockingQueue<PieceRequest> pieceQueue;
+	// The most pieces whose availability is updated in one hold of the lock.
+	private static final int UPDATE_RUN = 4096;
+	// How long to wait for a free Piece before checking whether the registry has been closed.
+	private static final long POOL_WAIT = 1000;
+	// How long closing waits for the Peers to return their pieces.
+	private static final long CLOSE_WAIT = 10000;
 
 	private BlockingQueue<Piece> piecePool;
 
@@ -32,8 +58,18 @@ public class PieceRegistryImpl implements PieceRegistry {
 
 	private Object lock;
 
-	private boolean[] inProgress;
-	private int[] multiBitField;
+	private PiecePicker picker;
+
+	// Saved blocks of incomplete pieces which are waiting to be assigned again.
+	private Map<Integer,boolean[]> partial;
+	// Pieces being downloaded, by piece id, and the number of peers holding each.
+	private Map<Integer,Piece> downloading;
+	private Map<Piece,Integer> holders;
+	// Complete pieces which have been handed to the FileAccessManager, with the request saving each.
+	// A Piece maps to null while its request is being made.
+	private Map<Piece,FileAccessFuture> saving;
+	// The number of returnPiece() calls in progress.
+	private int returning;
 
 	private boolean endgame;
 
@@ -51,13 +87,15 @@ public class PieceRegistryImpl implements PieceRegistry {
 			e.printStackTrace();
 		}
 
-		this.pieceQueue = new PriorityBlockingQueue<PieceRequest>();
 		this.fam = torrent.getFileAccessManager();
 		this.ti = torrent.getInformationManager().getTorrentInfo();
 		this.peerRegistry = peerRegistry;
 
-		this.inProgress = new boolean[torrent.getInformationManager().getTorrentInfo().getPieceCount()];
-		this.multiBitField = new int[inProgress.length];
+		this.picker = new PiecePicker(ti.getPieceCount());
+		this.partial = new HashMap<Integer,boolean[]>();
+		this.downloading = new HashMap<Integer,Piece>();
+		this.holders = new HashMap<Piece,Integer>();
+		this.saving = new HashMap<Piece,FileAccessFuture>();
 		getPreviousState();
 
 		this.endgame = false;
@@ -67,84 +105,14 @@ public class PieceRegistryImpl implements PieceRegistry {
 
 		this.lock = new Object();
 
-		new Thread(new PieceRegistrar(),"PieceRegistry : " + torrent.getInformationManager().getTorrentInfo().getTorrentName()).start();
-
-	}
-
-	private class PieceRegistrar implements Runnable {
-
-		public void run() {
-			while(isRunning()) {
-				PieceRequest request = null;
-				try {
-					request = pieceQueue.take();
-				} catch(InterruptedException e) {
-					e.printStackTrace();
-				}
-				if(request.getBitfield() != null) {
-					Piece piece = assignPiece(request.getBitfield());
-
-					request.setPiece(piece);
-				}
-
-				request.validate();
-			}
-			while(!pieceQueue.isEmpty()) {
-				PieceRequest request = pieceQueue.poll();
-				request.setPiece(null);
-				request.validate();
-			}
-		}
-	}
-
-	private class PieceRequest implements Comparable<PieceRequest> {
-
-		private Piece piece;
-
-		private long downloadTime;
-		private boolean[] bitfield;
-
-		private boolean valid;
-		private Object validLock;
-
-		public PieceRequest(boolean[] bitfield, long downloadTime) {
-			this.bitfield = bitfield;
-			this.downloadTime = downloadTime;
-			this.validLock = new Object();
-			this.valid = false;
-		}
-
-		public void setPiece(Piece piece) {
-			this.piece = piece;
-		}
-
-		public boolean[] getBitfield() {
-			return bitfield;
-		}
-
-		public Piece getPiece() {
-			synchronized(validLock) {
-				while(!valid) {
-					try {
-						validLock.wait();
-					} catch(InterruptedException e) {}
+		// A piece whose write failed after it was saved is downloaded again.
+		fam.setPieceLossListener(new PieceLossListener() {
+			public void pieceLost(int id) {
+				synchronized(lock) {
+					picker.want(id);
 				}
 			}
-			return piece;
-		}
-
-		public void validate() {
-			synchronized(validLock) {
-				valid = true;
-				validLock.notifyAll();
-			}
-		}
-
-		public int compareTo(PieceRequest p) {
-			return (this.downloadTime < p.downloadTime) ? -1 :
-					(this.downloadTime > p.downloadTime) ? 1 :
-					0;
-		}
+		});
 	}
 
 	private boolean isRunning() {
@@ -154,130 +122,367 @@ public class PieceRegistryImpl implements PieceRegistry {
 	}
 
 	/**
-	 * Closes this PieceRegistry
+	 * Closes this PieceRegistry, saving the blocks of every incomplete piece
+	 * so that they can be resumed when the torrent is next started.
+	 * The Peers should be closed first. Each writes the blocks of the pieces it holds
+	 * as it returns them, and the bitmaps are saved once they have all been returned.
 	 **/
 	public void close() {
 		synchronized(runLock) {
 			running = false;
 		}
-		pieceQueue.put(new PieceRequest(null,0));
+		awaitReturns();
+		savePartialPieces();
+	}
+
+	/**
+	 * Waits for the Peers, which should already have been closed, to return the pieces they hold.
+	 * Gives up after CLOSE_WAIT, so one stuck Peer cannot hold up closing the torrent.
+	 **/
+	private void awaitReturns() {
+		long deadline = System.currentTimeMillis() + CLOSE_WAIT;
+		synchronized(lock) {
+			long left = CLOSE_WAIT;
+			while((!holders.isEmpty() || returning > 0) && left > 0) {
+				try {
+					lock.wait(left);
+				} catch(InterruptedException e) {
+					e.printStackTrace();
+					return;
+				}
+				left = deadline - System.currentTimeMillis();
+			}
+		}
 	}
 
-	public Piece requestPiece(boolean[] bitfield, long downloadTime) {
-		System.out.println("Requesting new Piece. Time for last download: " + downloadTime);
+	/**
+	 * Saves the bitmaps of the pieces waiting to be resumed.
+	 * Pieces still held by a Peer which did not return them in time are left out,
+	 * since that Peer may still be writing into them.
+	 **/
+	private void savePartialPieces() {
+		Map<Integer,boolean[]> save = null;
+		synchronized(lock) {
+			save = new HashMap<Integer,boolean[]>(partial);
+		}
+		fam.savePartialPieces(save);
+	}
+
+	public Piece requestPiece(ConcurrentBitSet bitfield, long downloadTime, boolean wait) {
 		if(isRunning()) {
-			PieceRequest p = new PieceRequest(bitfield, downloadTime);
-			pieceQueue.put(p);
-			return p.getPiece();
+			return assignPiece(bitfield,wait);
 		} else {
 			return null;
 		}
 	}
 
-	private Piece assignPiece(boolean[] bitfield) {
+	/**
+	 * Picks a piece for a Peer with the given bitfield, and waits for a free Piece to download it into.
+	 * During endgame, a Piece already being downloaded by other Peers may be shared instead.
+	 *
+	 * @param bitfield The pieces the Peer has available.
+	 * @param wait Whether to wait for a free Piece, or give up at once if there is none.
+	 *
+	 * @return The assigned Piece, or null if nothing could be assigned.
+	 **/
+	private Piece assignPiece(ConcurrentBitSet bitfield, boolean wait) {
 		int lowestId = -1;
+		boolean[] saved = null;
 		synchronized(lock) {
-			int lowestFrequency = Integer.MAX_VALUE;
+			// Resume incomplete pieces before starting new ones.
+			lowestId = picker.pickResumable(bitfield);
 
-			for(int i = 0; i < bitfield.length; i++) {
-				if(bitfield[i] && (!inProgress[i]) && (multiBitField[i] > 0) && (multiBitField[i] < lowestFrequency)) {
-					lowestId = i;
-					lowestFrequency = multiBitField[i];
-				}
+			if(lowestId < 0) {
+				lowestId = picker.pick(bitfield);
 			}
 
 			if(lowestId >= 0) {
-				inProgress[lowestId] = true;
-			} else if(!endgame) {
-				checkEndgame();
+				picker.setBusy(lowestId,true);
+				saved = removePartial(lowestId);
 			} else {
-				lowestId = attemptEndgame(bitfield);
+				if(!endgame) {
+					checkEndgame();
+				}
+				if(endgame) {
+					Piece shared = attemptEndgame(bitfield);
+					if(shared != null) {
+						holders.put(shared,holders.get(shared) + 1);
+					}
+					return shared;
+				}
 			}
 		}
+		if(lowestId < 0) {
+			return null;
+		}
 		Piece ret = null;
 		try {
-			ret = (lowestId >= 0) ? piecePool.take().reset(lowestId) : null;
+			ret = piecePool.poll();
+			while(wait && ret == null && isRunning()) {
+				ret = piecePool.poll(POOL_WAIT,TimeUnit.MILLISECONDS);
+			}
 		} catch(InterruptedException e) {
 			e.printStackTrace();
 		}
+		if(ret != null) {
+			ret.reset(lowestId,saved);
+		}
+		synchronized(lock) {
+			if(ret != null) {
+				downloading.put(lowestId,ret);
+				holders.put(ret,1);
+			} else {
+				// Give the piece back, so it can be picked again by someone else.
+				picker.setBusy(lowestId,false);
+				if(saved != null) {
+					addPartial(lowestId,saved);
+				}
+			}
+		}
 		return ret;
 	}
 
-	public boolean returnPiece(Piece p) {
-		boolean success = false;
+	/**
+	 * Returns a Piece on behalf of one of the Peers holding it.
+	 *
+	 * The first Peer to return a complete Piece has it saved, and any other Peers sharing it
+	 * are given the same request. An incomplete Piece is kept downloading while anyone else
+	 * still holds it, and its blocks are only saved for later by the last Peer to let it go.
+	 * The Piece is recycled once every holder has returned it and it is done being saved.
+	 **/
+	public FileAccessFuture returnPiece(Piece p) {
+		synchronized(lock) {
+			returning++;
+		}
+		try {
+			return release(p);
+		} finally {
+			synchronized(lock) {
+				returning--;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Lets go of a Piece for one of its holders, as described by returnPiece().
+	 *
+	 * @param p The Piece being returned.
+	 *
+	 * @return The request saving the Piece, or a failed request if it is not being saved.
+	 **/
+	private FileAccessFuture release(final Piece p) {
+		final int id = p.getPieceId();
+		FileAccessFuture f = null;
+		boolean save = false;
+		boolean last = false;
+		boolean recycle = false;
 		synchronized(lock) {
-			if(p.isComplete()) {
-				success = fam.savePiece(p.getPieceId(),p.getData()).getSuccess();
-				System.out.println("Verifying Returned Piece: " + p.getPieceId() + " " + success);
-				if(success) {
-					multiBitField[p.getPieceId()] = -1;
-					peerRegistry.notifyHave(p.getPieceId());
+			// Another holder is starting the save of this Piece. Wait for its request, so that it is shared.
+			while(saving.containsKey(p) && saving.get(p) == null) {
+				try {
+					lock.wait();
+				} catch(InterruptedException e) {}
+			}
+			Integer count = holders.remove(p);
+			if(count == null) {
+				return FileAccessFutureImpl.completed(id,FileAccessFuture.Type.SAVE_PIECE,false);
+			}
+			last = (count == 1);
+			if(!last) {
+				holders.put(p,count - 1);
+			}
+			f = saving.get(p);
+			if(f == null && (p.isComplete() || last)) {
+				downloading.remove(id);
+				save = p.isComplete();
+				if(save) {
+					// Recorded before the lock is released, so no other holder starts a second save.
+					saving.put(p,null);
+				}
+			} else if(f != null && last && f.isDone()) {
+				recycle = (saving.remove(p) != null);
+			}
+		}
+		if(save) {
+			f = p.isStreaming() ? fam.commitPiece(id) : fam.savePiece(id,p.getData(),p.getHash());
+			synchronized(lock) {
+				saving.put(p,f);
+				lock.notifyAll();
+			}
+			// The piece stays marked in progress while it is being verified and saved,
+			// and is only recycled once the FileAccessManager is done with its data.
+			f.addListener(new FileAccessListener() {
+				public void requestComplete(FileAccessFuture saved) {
+					pieceSaved(p,id,saved);
+				}
+			});
+			return f;
+		}
+		if(f != null) {
+			if(recycle) {
+				recycle(p);
+			}
+			return f;
+		}
+		if(last) {
+			// Keep whatever was downloaded, so the piece can be resumed rather than started over.
+			boolean[] saved = p.getSavedBlocks();
+			if(saved != null) {
+				p.writeSavedBlocks();
+			}
+			synchronized(lock) {
+				if(saved != null && picker.isWanted(id)) {
+					addPartial(id,saved);
 				}
+				picker.setBusy(id,false);
+			}
+			recycle(p);
+		}
+		return FileAccessFutureImpl.completed(id,FileAccessFuture.Type.SAVE_PIECE,false);
+	}
+
+	/**
+	 * Records the result of saving a returned piece, and recycles the Piece if nobody holds it any more.
+	 *
+	 * @param p The Piece which was saved.
+	 * @param id The id of the piece, which the Piece may no longer hold if it has been recycled.
+	 * @param saved The request which saved the Piece.
+	 **/
+	private void pieceSaved(Piece p, int id, FileAccessFuture saved) {
+		boolean success = saved.getSuccess();
+		System.out.println("Verifying Returned Piece: " + id + " " + success);
+		boolean recycle = false;
+		synchronized(lock) {
+			if(success) {
+				picker.have(id);
+				removePartial(id);
 			}
-			inProgress[p.getPieceId()] = false;
+			picker.setBusy(id,false);
+			// Only this request's entry is removed, never that of a later save of the same Piece.
+			if(!holders.containsKey(p) && saving.get(p) == saved) {
+				saving.remove(p);
+				recycle = true;
+			}
+		}
+		if(success) {
+			peerRegistry.notifyHave(id);
 		}
+		if(recycle) {
+			recycle(p);
+		}
+	}
+
+	/**
+	 * Keeps the saved blocks of an incomplete piece, so that it is resumed by the next Peer to ask for it.
+	 * Called with the lock held.
+	 *
+	 * @param id The id of the piece.
+	 * @param saved Which of its blocks are on disk.
+	 **/
+	private void addPartial(int id, boolean[] saved) {
+		partial.put(id,saved);
+		picker.setResumable(id,true);
+	}
+
+	/**
+	 * Stops keeping the saved blocks of a piece, because it is being resumed or has been saved.
+	 * Called with the lock held.
+	 *
+	 * @param id The id of the piece.
+	 *
+	 * @return Which of its blocks are on disk, or null if none were kept.
+	 **/
+	private boolean[] removePartial(int id) {
+		picker.setResumable(id,false);
+		return partial.remove(id);
+	}
+
+	/**
+	 * Puts a Piece back in the pool.
+	 *
+	 * @param p The Piece to recycle.
+	 **/
+	private void recycle(Piece p) {
 		try {
 			piecePool.put(p);
 		} catch(InterruptedException e) {
 			e.printStackTrace();
 		}
-		return success;
 	}
 
 	public void peerHave(int pieceId) {
 		synchronized(lock) {
-			if(multiBitField[pieceId] >= 0) {
-				multiBitField[pieceId] += 1;
-			}
+			picker.peerHave(pieceId);
 		}
 	}
 
-	public void peerBitfield(boolean[] bitfield) {
-		synchronized(lock) {
-			for(int i = 0; i < bitfield.length; i++) {
-				if(bitfield[i] && (multiBitField[i] >= 0)) {
-					multiBitField[i] += 1;
+	public void peerBitfield(ConcurrentBitSet bitfield) {
+		int i = bitfield.nextSetBit(0);
+		while(i >= 0) {
+			synchronized(lock) {
+				for(int n = 0; n < UPDATE_RUN && i >= 0; n++, i = bitfield.nextSetBit(i + 1)) {
+					picker.peerHave(i);
 				}
 			}
 		}
 	}
 
-	public boolean peerInteresting(boolean[] bitfield) {
+	public void peerSeed() {
+		synchronized(lock) {
+			picker.addSeed();
+		}
+	}
+
+	public boolean peerInteresting(ConcurrentBitSet bitfield) {
 		boolean interesting = false;
 		synchronized(lock) {
-			for(int i = 0; i < bitfield.length; i++) {
-				if(bitfield[i] && !(inProgress[i]) && multiBitField[i] > 0) {
-					interesting = true;
-					break;
-				}
-			}
+			interesting = picker.isInteresting(bitfield);
 		}
 		return interesting;
 	}
 
-	public void removeBitfield(boolean[] bitfield) {
-		synchronized(lock) {
-			for(int i = 0; i < bitfield.length; i++) {
-				if(bitfield[i] && (multiBitField[i] > 0)) {
-					multiBitField[i] -= 1;
+	public void removeBitfield(ConcurrentBitSet bitfield) {
+		int i = bitfield.nextSetBit(0);
+		while(i >= 0) {
+			synchronized(lock) {
+				for(int n = 0; n < UPDATE_RUN && i >= 0; n++, i = bitfield.nextSetBit(i + 1)) {
+					picker.peerLost(i);
 				}
 			}
 		}
 	}
 
+	public void removeSeed() {
+		synchronized(lock) {
+			picker.removeSeed();
+		}
+	}
+
 	/**
-	 * Contacts the FileAccessManager to establish which pieces have been completed previously.
+	 * Contacts the FileAccessManager to establish which pieces have been completed previously,
+	 * and which were partially downloaded.
 	 **/
 	private void getPreviousState() {
+		for(Map.Entry<Integer,boolean[]> e : fam.getPartialPieces().entrySet()) {
+			for(boolean b : e.getValue()) {
+				if(!b) {
+					addPartial(e.getKey(),e.getValue());
+					break;
+				}
+			}
+		}
 		byte[] state = fam.getBitfield().getData();
 		for(int i = 0; i < state.length; i++) {
 			for(int j = 0; j < 8; j++) {
-				if((((state[i] >> (7-j)) & 1) == 1) && inProgress.length > (i*8 + j)) {
+				if((((state[i] >> (7-j)) & 1) == 1) && ti.getPieceCount() > (i*8 + j)) {
 					System.out.println("Found Previously completed piece: " + (i*8+j));
-					multiBitField[i*8 + j] = -1;
+					picker.have(i*8 + j);
+					removePartial(i*8 + j);
 				}
 			}
 		}
+		System.out.println("Found " + partial.size() + " partially downloaded pieces");
 	}
 
 	/**
@@ -285,19 +490,14 @@ public class PieceRegistryImpl implements PieceRegistry {
 	 * This means that all pieces in the Torrent are either completed
 	 * or in process of downloading.
 	 * Connection speeds at this time can drop drastically as the remaining pieces
-	 * are usually assigned to unresponsive peers. During endgame, these pieces are assigned
-	 * to multiple peers.
+	 * are usually assigned to unresponsive peers. During endgame, these pieces are shared
+	 * between multiple peers.
 	 **/
 	private void checkEndgame() {
-		System.out.println("Checking Endgame");
-		boolean end = true;
-		for(int i = 0; i < multiBitField.length; i++) {
-			if(multiBitField[i] >= 0 && !inProgress[i]) {
-				end = false;
-				break;
-			}
+		endgame = picker.allBusy();
+		if(endgame) {
+			System.out.println("Entering Endgame");
 		}
-		endgame = end;
 	}
 
 	/**
@@ -305,23 +505,26 @@ public class PieceRegistryImpl implements PieceRegistry {
 	 * This is only done in the case that we are in "endgame" and no other pieces
 	 * are available for download.
 	 *
+	 * Endgame pieces are shared rather than downloaded again from scratch. The Peer is given
+	 * the Piece held by the fewest other Peers, so the blocks still missing from it are
+	 * requested from several Peers at once, and whichever copy arrives first is kept.
+	 *
 	 * @param bitfield The calling Peer's bitfield.
 	 *
-	 * @return An endgame Piece to assign to the calling Peer.
+	 * @return An endgame Piece to assign to the calling Peer, or null if there is none.
 	 **/
-	private int attemptEndgame(boolean[] bitfield) {
-		int lowestId = -1;
-		int lowestFrequency = Integer.MAX_VALUE;
-		System.out.println("Attempting Endgame");
-		for(int i = 0; i < bitfield.length; i++) {
-			if(bitfield[i] &&  (multiBitField[i] > 0) && (multiBitField[i] < lowestFrequency)) {
-				lowestId = i;
-				lowestFrequency = multiBitField[i];
+	private Piece attemptEndgame(ConcurrentBitSet bitfield) {
+		Piece best = null;
+		int fewest = Integer.MAX_VALUE;
+		for(Map.Entry<Integer,Piece> e : downloading.entrySet()) {
+			Piece p = e.getValue();
+			int count = holders.get(p);
+			if(bitfield.get(e.getKey()) && count < fewest && !p.isComplete()) {
+				best = p;
+				fewest = count;
 			}
 		}
-		return lowestId;
+		return best;
 	}
 
 }
-
-
@@ -0,0 +1,22 @@
+package tcl.tm.torrent.communication.util;
+
+/**
+ * A BlockListener is told when a block of a Piece it is downloading has been saved.
+ * 
+ * During endgame a Piece may be downloaded from several Peers at once, and each of them
+ * listens to it, so that requests for a block can be cancelled as soon as any copy arrives.
+ * Listeners are called on the thread which saved the block, holding no locks.
+ * 
+ * @author Wayne Rowcliffe
+ **/
+public interface BlockListener {
+
+	/**
+	 * Called once a block has been saved for the first time.
+	 * 
+	 * @param pieceId The piece the block belongs to.
+	 * @param offset The offset of the block within the piece.
+	 * @param length The length of the block.
+	 **/
+	public void blockSaved(int pieceId, int offset, int length);
+}
@@ -2,12 +2,15 @@ package tcl.tm.torrent.communication.util;
 
 import java.net.Socket;
 import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import tcl.tm.connection.util.Handshake;
+import tcl.tm.connection.util.SelectorPool;
 import tcl.tm.torrent.Torrent;
 import tcl.tm.torrent.info.util.Bencode;
 
@@ -15,6 +18,8 @@ import tcl.tm.torrent.info.util.Bencode;
  * A ConnectionSeeker actively seeks out connections to peers for a given Torrent
  * every 10 minutes for the life of the Torrent object. It does this by contacting IP
  * addresses provided by the Tracker via AnnounceInfo.
+ * With the selector engine enabled, each connection is made and handshaken on a
+ * SelectorLoop instead of a thread of its own.
  *
  * @author Wayne Rowcliffe
  **/
@@ -86,7 +91,11 @@ public class ConnectionSeeker implements Runnable, Closeable {
 					int colon = ip.indexOf(":");
 					String host = ip.substring(0,colon);
 					int port = Integer.parseInt(ip.substring(colon+1,ip.length()));
-					new Thread(new ConnectionHandler(host,port),"Connection Handler").start();
+					if(SelectorPool.isEnabled()) {
+						Handshake.connect(new InetSocketAddress(host,port),torrent);
+					} else {
+						new Thread(new ConnectionHandler(host,port),"Connection Handler").start();
+					}
 
 				}
 				timedWait(450000);
@@ -128,7 +137,8 @@ public class ConnectionSeeker implements Runnable, Closeable {
 		 **/
 		public void run() {
 			try {
-				socket = new Socket();
+				// Opened through a channel, so piece data can be sent straight from disk.
+				socket = SocketChannel.open().socket();
 				socket.connect(new InetSocketAddress(host,port),10000);
 				socket.setSoTimeout(18000);
 				in = socket.getInputStream();
@@ -1,6 +1,16 @@
 package tcl.tm.torrent.communication.util;
 
 import tcl.tm.torrent.Torrent;
+import tcl.tm.torrent.file.FileAccessManager;
+import tcl.tm.torrent.file.util.BufferPool;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Represents a Piece from a BitTorrent download.
@@ -10,6 +20,22 @@ import tcl.tm.torrent.Torrent;
  * of a piece of a BitTorrent file, as well as providing methods to
  * save and monitor them.
  *
+ * Pieces hash their data as it arrives. Blocks are absorbed into a running
+ * SHA 1 digest as soon as every block before them has been saved, so that
+ * only the unhashed tail needs to be processed once the piece is complete.
+ *
+ * A streaming Piece holds no data at all. Each block is handed to the FileAccessManager
+ * to be written to its place on disk as soon as it arrives, and only the set of saved
+ * blocks is tracked. The FileAccessManager hashes the piece from disk once it is committed.
+ * This keeps very large pieces off the heap.
+ *
+ * A Piece may also be resumed from the blocks saved for it earlier, which are already on disk.
+ * A resumed Piece streams its remaining blocks, whatever its template, so that the whole
+ * piece ends up on disk to be committed. Like a streaming Piece, it holds no data and keeps no digest.
+ *
+ * During endgame a single Piece may be shared by several Peers. The first copy of each block
+ * to arrive is kept, and every BlockListener of the Piece is told it has been saved.
+ *
  * @author Wayne Rowcliffe
  **/
 public class Piece {
@@ -18,6 +44,10 @@ public class Piece {
 	private boolean[] block;
 	private byte[] data;
 
+	// Recycled Pieces keep an array for standard pieces, and another for the final piece if it is shorter.
+	private byte[] standardData;
+	private byte[] finalData;
+
 	private int blockSize;
 	private int finalBlockSize;
 
@@ -31,6 +61,15 @@ public class Piece {
 	private Object lock;
 	private ThroughputMonitor monitor;
 
+	private MessageDigest digest;
+	private int hashedBlocks;
+
+	private boolean streaming;
+	private boolean streamed;
+	private FileAccessManager fam;
+
+	private List<BlockListener> listeners;
+
 	/**
 	 * Creates a Piece with the given pieceId and pieceSize, where
 	 * the piece is broken into blocks of the given blockSize.
@@ -42,7 +81,22 @@ public class Piece {
 	 * @param pieceSize The total size, in bytes, of this piece.
 	 **/
 	public Piece(int blockSize, Torrent torrent, ThroughputMonitor monitor) {
+		this(blockSize,torrent,monitor,false);
+	}
+
+	/**
+	 * Creates a Piece template which either holds its data in memory,
+	 * or streams each block to disk as it arrives.
+	 *
+	 * @param blockSize The size of block to use when downloading this piece.
+	 * @param torrent The Torrent this piece belongs to.
+	 * @param monitor The ThroughputMonitor to record received data with.
+	 * @param streaming Whether blocks should be streamed to disk rather than held in memory.
+	 **/
+	public Piece(int blockSize, Torrent torrent, ThroughputMonitor monitor, boolean streaming) {
 		this.blockSize = blockSize;
+		this.streaming = streaming;
+		this.fam = torrent.getFileAccessManager();
 		this.data = null;
 		this.lock = null;
 
@@ -64,11 +118,33 @@ public class Piece {
 		piece.standardPieceSize = this.standardPieceSize;
 		piece.finalPieceSize = this.finalPieceSize;
 		piece.monitor = this.monitor;
+		piece.streaming = this.streaming;
+		piece.fam = this.fam;
+		piece.listeners = new ArrayList<BlockListener>();
+		if(!streaming) {
+			try {
+				piece.digest = MessageDigest.getInstance("SHA");
+			} catch(NoSuchAlgorithmException e) {
+				e.printStackTrace();
+			}
+		}
 
 		return piece;
 	}
 
 	public Piece reset(int pieceId) {
+		return reset(pieceId,null);
+	}
+
+	/**
+	 * Prepares this Piece for downloading the given piece, resuming from the given saved blocks if there are any.
+	 *
+	 * @param pieceId The id of the piece to download
+	 * @param saved Which blocks of the piece are already on disk, or null to start from scratch.
+	 *
+	 * @return This Piece
+	 **/
+	public Piece reset(int pieceId, boolean[] saved) {
 		if(pieceId < 0 || pieceId >= pieceCount) {
 			throw new IndexOutOfBoundsException("PieceId is out of bounds: " + pieceId);
 		}
@@ -81,44 +157,214 @@ public class Piece {
 			this.finalBlockSize = pieceSize % blockSize;
 			this.block = new boolean[(pieceSize/blockSize) +1];
 		}
-		if(data == null || data.length != pieceSize) {
-			System.out.println("Creating a new data array of length " + pieceSize);
-			data = new byte[pieceSize];
+		streamed = streaming;
+		if(saved != null && saved.length == block.length) {
+			System.arraycopy(saved,0,block,0,block.length);
+			streamed = true;
+		}
+		if(streamed) {
+			// The data is on disk, and is hashed from there when the piece is committed.
+			data = null;
+		} else {
+			if(pieceSize == standardPieceSize) {
+				if(standardData == null) {
+					System.out.println("Creating a new data array of length " + pieceSize);
+					standardData = new byte[pieceSize];
+				}
+				data = standardData;
+			} else {
+				if(finalData == null) {
+					System.out.println("Creating a new data array of length " + pieceSize);
+					finalData = new byte[pieceSize];
+				}
+				data = finalData;
+			}
 		}
 
+		if(digest != null) {
+			digest.reset();
+		}
+		hashedBlocks = 0;
+
 		startTime = System.currentTimeMillis();
 		endTime = 0;
 
+		synchronized(lock) {
+			listeners.clear();
+		}
+
 		return this;
 	}
 
 	/**
 	 * Saves a block within the piece to its proper location and marks it as saved.
+	 * A streaming Piece hands the block to the FileAccessManager instead of copying it,
+	 * so the caller must not modify data afterwards.
 	 *
 	 * @param number The block number of this piece
 	 * @param data The data to place in this block
 	 * @param offset The offset within data to start saving.
 	 * @param length The number of bytes after the offset to save.
 	 *
-	 * @return If the block was saved successfully
+	 * @return If the block was saved, rather than being a duplicate or invalid
 	 **/
 	public boolean saveBlock(int number, byte[] data, int offset, int length) {
-		boolean success = true;
+		return saveBlock(number,ByteBuffer.wrap(data,offset,length));
+	}
+
+	/**
+	 * Saves a block held in a buffer, taking ownership of the buffer.
+	 * The buffer is released to the BufferPool once the block has been copied,
+	 * or, for a streaming Piece, once the FileAccessManager has written it.
+	 *
+	 * @param number The block number of this piece
+	 * @param buf The buffer holding the block, from its position to its limit
+	 *
+	 * @return If the block was saved, rather than being a duplicate or invalid
+	 **/
+	public boolean saveBlock(int number, ByteBuffer buf) {
+		boolean success = false;
+		boolean handedOff = false;
+		int length = buf.remaining();
 		monitor.dataReceived(length);
 		synchronized(lock) {
-			if(number < 0 || number >= block.length) {
-				success = false;
-			} else if(!block[number] && ((length == blockSize) || ((number == block.length -1) && (length == finalBlockSize)))) {
-				System.arraycopy(data,offset,this.data,number * blockSize,length);
+			if(number >= 0 && number < block.length && !block[number] && ((length == blockSize) || ((number == block.length -1) && (length == finalBlockSize)))) {
+				if(streamed) {
+					fam.saveBlock(pieceId,number * blockSize,buf);
+					handedOff = true;
+				} else {
+					buf.get(this.data,number * blockSize,length);
+				}
 				block[number] = true;
+				success = true;
+				absorbBlocks();
 				if(isComplete()) {
 					endTime = System.currentTimeMillis();
 				}
 			}
 		}
+		if(!handedOff) {
+			BufferPool.getShared().release(buf);
+		}
 		return success;
 	}
 
+	/**
+	 * Adds a listener to be told about each block saved from now on.
+	 *
+	 * @param l The listener to add.
+	 **/
+	public void addBlockListener(BlockListener l) {
+		synchronized(lock) {
+			listeners.add(l);
+		}
+	}
+
+	/**
+	 * Removes a listener added with addBlockListener.
+	 *
+	 * @param l The listener to remove.
+	 **/
+	public void removeBlockListener(BlockListener l) {
+		synchronized(lock) {
+			listeners.remove(l);
+		}
+	}
+
+	/**
+	 * The listeners currently added to this Piece.
+	 *
+	 * @return A copy of the list of listeners.
+	 **/
+	public List<BlockListener> getBlockListeners() {
+		synchronized(lock) {
+			return new ArrayList<BlockListener>(listeners);
+		}
+	}
+
+	/**
+	 * Absorbs every block of the contiguous saved prefix that has not yet been hashed.
+	 * Blocks saved out of order are left until the blocks before them arrive.
+	 **/
+	private void absorbBlocks() {
+		if(digest == null || streamed) {
+			return;
+		}
+		while(hashedBlocks < block.length && block[hashedBlocks]) {
+			int length = (hashedBlocks == block.length -1) ? finalBlockSize : blockSize;
+			digest.update(this.data,hashedBlocks * blockSize,length);
+			hashedBlocks++;
+		}
+	}
+
+	/**
+	 * The SHA 1 hash of this piece's data.
+	 * The hash is finished on a copy of the running digest, so the digest over
+	 * the saved prefix remains a valid checkpoint after this call.
+	 *
+	 * @return The SHA 1 hash of this piece, or null if the piece is incomplete or could not be hashed.
+	 **/
+	public byte[] getHash() {
+		synchronized(lock) {
+			if(digest == null || streamed || hashedBlocks != block.length) {
+				return null;
+			}
+			try {
+				return ((MessageDigest) digest.clone()).digest();
+			} catch(CloneNotSupportedException e) {
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Whether this piece streams its blocks to disk, rather than holding its data.
+	 *
+	 * @return Whether this piece is streaming.
+	 **/
+	public boolean isStreaming() {
+		return streamed;
+	}
+
+	/**
+	 * Which blocks of this piece have been saved.
+	 *
+	 * @return A copy of the saved block bitmap, or null if no blocks have been saved.
+	 **/
+	public boolean[] getSavedBlocks() {
+		synchronized(lock) {
+			for(boolean b : block) {
+				if(b) {
+					return block.clone();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Hands every saved block to the FileAccessManager to be written to disk,
+	 * so that an incomplete piece can be resumed later without its data.
+	 * Blocks of a streaming piece are on their way to disk already, so nothing more is written.
+	 **/
+	public void writeSavedBlocks() {
+		synchronized(lock) {
+			if(streamed) {
+				return;
+			}
+			for(int i = 0; i < block.length; i++) {
+				if(block[i]) {
+					int length = (i == block.length -1) ? finalBlockSize : blockSize;
+					ByteBuffer buf = BufferPool.getShared().acquire(length);
+					buf.put(data,i * blockSize,length);
+					buf.flip();
+					fam.saveBlock(pieceId,i * blockSize,buf);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Returns the pieceId for this piece.
 	 *
@@ -197,7 +443,7 @@ public class Piece {
 	/**
 	 * The data this piece encapsulates.
 	 *
-	 * @return The data this piece encapsulates.
+	 * @return The data this piece encapsulates, or null if this piece is streaming.
 	 **/
 	public byte[] getData() {
 		return data;
@@ -0,0 +1,366 @@
+package tcl.tm.torrent.communication.util;
+
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
+
+import java.util.Random;
+
+/**
+ * A PiecePicker chooses the rarest piece a peer has which we still want.
+ *
+ * Wanted pieces are kept in a single array sorted by availability, the number of peers
+ * known to have them, so that the pieces of each availability form a contiguous bucket.
+ * When a piece's availability changes by one it only has to be swapped to the edge of
+ * its bucket and the bucket boundary moved, so updates from peers are constant time.
+ * Pieces we have are moved past the last bucket and are no longer considered.
+ * Seeds, peers with every piece, are only counted. Since they add the same amount to
+ * every piece they never change the order, so a seed joins or leaves in constant time.
+ *
+ * Picking walks the buckets from the rarest upwards, starting each bucket at a random
+ * position so that peers asking at the same time spread out over equally rare pieces.
+ * Since most peers have most pieces, the first few pieces looked at usually match.
+ * Whether a peer has anything we still want is answered a word at a time,
+ * against a bitset of the wanted pieces. Pieces which were partly downloaded and can be
+ * resumed are kept in a bitset of their own, so they are also found a word at a time.
+ *
+ * A PiecePicker is not thread safe. Its owner is expected to hold a lock around every call.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public class PiecePicker {
+
+	// Piece ids, wanted pieces first, sorted by availability.
+	private int[] order;
+	// The index of each piece in order.
+	private int[] position;
+	private int[] availability;
+	private ConcurrentBitSet busy;
+	// Pieces which are wanted, whether or not they are busy.
+	private ConcurrentBitSet needed;
+	// Pieces which were partly downloaded, and are waiting to be resumed.
+	private ConcurrentBitSet resumable;
+
+	// bucketStart[a] is the index in order of the first wanted piece with availability a.
+	// Every entry past the highest availability equals wanted.
+	private int[] bucketStart;
+	private int wanted;
+	private int busyWanted;
+	private int seeds;
+
+	private Random random;
+
+	/**
+	 * Creates a PiecePicker where every piece is wanted and no peer has any of them.
+	 *
+	 * @param pieceCount The number of pieces in the torrent.
+	 **/
+	public PiecePicker(int pieceCount) {
+		this.order = new int[pieceCount];
+		this.position = new int[pieceCount];
+		this.availability = new int[pieceCount];
+		this.busy = new ConcurrentBitSet(pieceCount);
+		this.needed = new ConcurrentBitSet(pieceCount);
+		needed.setAll();
+		this.resumable = new ConcurrentBitSet(pieceCount);
+		this.random = new Random();
+		for(int i = 0; i < pieceCount; i++) {
+			order[i] = i;
+			position[i] = i;
+		}
+		this.wanted = pieceCount;
+		this.bucketStart = new int[] {0, wanted, wanted};
+	}
+
+	/**
+	 * Records that one more peer has the given piece.
+	 *
+	 * @param id The piece.
+	 **/
+	public void peerHave(int id) {
+		int a = availability[id];
+		if(isWanted(id)) {
+			ensureBucket(a + 1);
+			swap(position[id],bucketStart[a + 1] - 1);
+			bucketStart[a + 1]--;
+		}
+		availability[id] = a + 1;
+	}
+
+	/**
+	 * Records that one peer fewer has the given piece.
+	 *
+	 * @param id The piece.
+	 **/
+	public void peerLost(int id) {
+		int a = availability[id];
+		if(a == 0) {
+			return;
+		}
+		if(isWanted(id)) {
+			swap(position[id],bucketStart[a]);
+			bucketStart[a]++;
+		}
+		availability[id] = a - 1;
+	}
+
+	/**
+	 * Records that a peer with every piece has arrived.
+	 **/
+	public void addSeed() {
+		seeds++;
+	}
+
+	/**
+	 * Records that a peer with every piece has gone away.
+	 **/
+	public void removeSeed() {
+		if(seeds > 0) {
+			seeds--;
+		}
+	}
+
+	/**
+	 * The number of peers with every piece.
+	 *
+	 * @return The number of seeds.
+	 **/
+	public int getSeedCount() {
+		return seeds;
+	}
+
+	/**
+	 * Records that a peer has every piece set in the given bitfield.
+	 *
+	 * @param bitfield The pieces the peer has.
+	 **/
+	public void peerBitfield(ConcurrentBitSet bitfield) {
+		for(int i = bitfield.nextSetBit(0); i >= 0; i = bitfield.nextSetBit(i + 1)) {
+			peerHave(i);
+		}
+	}
+
+	/**
+	 * Records that a peer with the given bitfield has gone away.
+	 *
+	 * @param bitfield The pieces the peer had.
+	 **/
+	public void removeBitfield(ConcurrentBitSet bitfield) {
+		for(int i = bitfield.nextSetBit(0); i >= 0; i = bitfield.nextSetBit(i + 1)) {
+			peerLost(i);
+		}
+	}
+
+	/**
+	 * Records that we now have the given piece, so it is no longer picked.
+	 *
+	 * @param id The piece.
+	 **/
+	public void have(int id) {
+		if(!isWanted(id)) {
+			return;
+		}
+		// Carry the piece up through every bucket above its own, past the last one.
+		for(int a = availability[id] + 1; a < bucketStart.length; a++) {
+			swap(position[id],bucketStart[a] - 1);
+			bucketStart[a]--;
+		}
+		wanted--;
+		needed.set(id,false);
+		if(busy.get(id)) {
+			busyWanted--;
+		}
+	}
+
+	/**
+	 * Records that we no longer have the given piece, so it is picked again.
+	 * The reverse of have(), carrying the piece back down into the bucket for its availability.
+	 *
+	 * @param id The piece.
+	 **/
+	public void want(int id) {
+		if(isWanted(id)) {
+			return;
+		}
+		ensureBucket(availability[id]);
+		swap(position[id],wanted);
+		wanted++;
+		for(int a = bucketStart.length - 1; a > availability[id]; a--) {
+			swap(position[id],bucketStart[a]);
+			bucketStart[a]++;
+		}
+		needed.set(id,true);
+		if(busy.get(id)) {
+			busyWanted++;
+		}
+	}
+
+	/**
+	 * Whether we still want the given piece.
+	 *
+	 * @param id The piece.
+	 *
+	 * @return Whether the piece is wanted.
+	 **/
+	public boolean isWanted(int id) {
+		return position[id] < wanted;
+	}
+
+	/**
+	 * Marks the given piece as being downloaded, so that it is not picked again
+	 * until it is returned.
+	 *
+	 * @param id The piece.
+	 * @param value Whether the piece is being downloaded.
+	 **/
+	public void setBusy(int id, boolean value) {
+		if(busy.change(id,value) && isWanted(id)) {
+			busyWanted += value ? 1 : -1;
+		}
+	}
+
+	/**
+	 * Whether the given piece is being downloaded.
+	 *
+	 * @param id The piece.
+	 *
+	 * @return Whether the piece is busy.
+	 **/
+	public boolean isBusy(int id) {
+		return busy.get(id);
+	}
+
+	/**
+	 * The number of peers known to have the given piece, seeds included.
+	 *
+	 * @param id The piece.
+	 *
+	 * @return The availability of the piece.
+	 **/
+	public int getAvailability(int id) {
+		return availability[id] + seeds;
+	}
+
+	/**
+	 * Whether every wanted piece is being downloaded.
+	 *
+	 * @return Whether there is nothing left to pick.
+	 **/
+	public boolean allBusy() {
+		return busyWanted == wanted;
+	}
+
+	/**
+	 * The number of pieces we still want.
+	 *
+	 * @return The number of wanted pieces.
+	 **/
+	public int getWantedCount() {
+		return wanted;
+	}
+
+	/**
+	 * Whether the peer has any piece we still want.
+	 * Pieces being downloaded count too, since during endgame every wanted piece is busy,
+	 * and blocks of those pieces may still be requested from this peer.
+	 *
+	 * @param bitfield The pieces the peer has.
+	 *
+	 * @return Whether the peer has something we want.
+	 **/
+	public boolean isInteresting(ConcurrentBitSet bitfield) {
+		return bitfield.intersects(needed);
+	}
+
+	/**
+	 * Records whether the given piece was partly downloaded and is waiting to be resumed.
+	 * Resumable pieces are picked by pickResumable(), and should not also be busy.
+	 *
+	 * @param id The piece.
+	 * @param value Whether the piece can be resumed.
+	 **/
+	public void setResumable(int id, boolean value) {
+		resumable.set(id,value);
+	}
+
+	/**
+	 * Picks a resumable piece the peer has, searching from a random place
+	 * so that peers asking at the same time spread out over them.
+	 * Unlike pick(), this does not prefer rarer pieces, since it only looks at the peer's
+	 * bitfield a word at a time rather than at each resumable piece.
+	 *
+	 * @param bitfield The pieces the peer has.
+	 *
+	 * @return The piece, or -1 if the peer has no resumable piece.
+	 **/
+	public int pickResumable(ConcurrentBitSet bitfield) {
+		int start = random.nextInt(resumable.length() + 1);
+		int id = resumable.nextCommonBit(bitfield,start);
+		if(id < 0) {
+			id = resumable.nextCommonBit(bitfield,0);
+		}
+		return id;
+	}
+
+	/**
+	 * Picks the rarest wanted piece the peer has which is not already being downloaded.
+	 *
+	 * @param bitfield The pieces the peer has.
+	 *
+	 * @return The piece, or -1 if the peer has nothing we can pick.
+	 **/
+	public int pick(ConcurrentBitSet bitfield) {
+		return pick(bitfield,false);
+	}
+
+	/**
+	 * Picks the rarest wanted piece the peer has.
+	 *
+	 * @param bitfield The pieces the peer has.
+	 * @param includeBusy Whether pieces already being downloaded may be picked, as in endgame.
+	 *
+	 * @return The piece, or -1 if the peer has nothing we can pick.
+	 **/
+	public int pick(ConcurrentBitSet bitfield, boolean includeBusy) {
+		// Pieces no peer is known to have are never picked. With a seed around, every piece is available.
+		for(int a = (seeds > 0) ? 0 : 1; a + 1 < bucketStart.length; a++) {
+			int start = bucketStart[a];
+			int size = bucketStart[a + 1] - start;
+			if(size == 0) {
+				continue;
+			}
+			int offset = random.nextInt(size);
+			for(int k = 0; k < size; k++) {
+				int id = order[start + (offset + k) % size];
+				if(bitfield.get(id) && (includeBusy || !busy.get(id))) {
+					return id;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Makes sure the bucket for the given availability exists.
+	 *
+	 * @param a The availability.
+	 **/
+	private void ensureBucket(int a) {
+		if(a + 1 < bucketStart.length) {
+			return;
+		}
+		int[] grown = new int[Math.max(a + 2,bucketStart.length * 2)];
+		System.arraycopy(bucketStart,0,grown,0,bucketStart.length);
+		for(int i = bucketStart.length; i < grown.length; i++) {
+			grown[i] = wanted;
+		}
+		bucketStart = grown;
+	}
+
+	private void swap(int i, int j) {
+		int a = order[i];
+		int b = order[j];
+		order[i] = b;
+		order[j] = a;
+		position[b] = i;
+		position[a] = j;
+	}
+}
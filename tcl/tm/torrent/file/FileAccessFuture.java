@@ -4,11 +4,15 @@ package tcl.tm.torrent.file;
  * A FileAccessFuture allows the result of an asynchronous
  * FileAccessManager request to be viewed once the request has been processed.
  * 
- * There are four types of FileAccessFuture: GET_PIECE, SAVE_PIECE, HAVE_PIECE, and GET_BITFIELD
- * These correspond to the three different methods available in the FileAccessManger.
+ * There are six types of FileAccessFuture: GET_PIECE, SAVE_PIECE, SAVE_BLOCK, COMMIT_PIECE, HAVE_PIECE, and GET_BITFIELD
+ * These correspond to the different methods available in the FileAccessManger.
  * 
  * FileAccessFutures should be immutable to everyone except the FileAccessManager.
  * 
+ * getSuccess() and getData() block until the request has been processed.
+ * Callers which should not wait can add a FileAccessListener instead,
+ * which is called once the request is complete.
+ * 
  * @author Wayne Rowcliffe
  **/
 public interface FileAccessFuture {
@@ -41,9 +45,26 @@ public interface FileAccessFuture {
 	 **/
 	public FileAccessFuture.Type getType();
 
+	/**
+	 * Whether this request has been processed, meaning the getters will not block.
+	 * 
+	 * @return Whether or not the request has been processed.
+	 **/
+	public boolean isDone();
+
+	/**
+	 * Adds a listener to be called once this request has been processed.
+	 * If the request has already been processed, the listener is called immediately on the calling thread.
+	 * 
+	 * @param listener The listener to notify.
+	 **/
+	public void addListener(FileAccessListener listener);
+
 	public enum Type {
 		GET_PIECE,
 		SAVE_PIECE,
+		SAVE_BLOCK,
+		COMMIT_PIECE,
 		HAVE_PIECE,
 		GET_BITFIELD
 	}
@@ -0,0 +1,20 @@
+package tcl.tm.torrent.file;
+
+/**
+ * A FileAccessListener is notified when a FileAccessFuture it has been added to is completed.
+ * 
+ * Listeners run on whichever thread completes the request, usually the FileAccessManager's own thread,
+ * so they should do as little work as possible and must never wait on another FileAccessFuture.
+ * 
+ * @author Wayne Rowcliffe
+ **/
+public interface FileAccessListener {
+
+	/**
+	 * Called once the given request has been completed.
+	 * The getters of the FileAccessFuture will not block when called from here.
+	 * 
+	 * @param f The completed request.
+	 **/
+	public void requestComplete(FileAccessFuture f);
+}
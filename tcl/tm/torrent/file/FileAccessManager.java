@@ -1,6 +1,12 @@
 package tcl.tm.torrent.file;
 
 import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import java.util.Map;
 
 /**
  * The FileAccessManager aims to be a thread-safe
@@ -12,13 +18,13 @@ import java.io.Closeable;
  * 
  * FileAccessManager uses FileAccessFutures to return the result of the requested operation.
  * 
- * A single thread should handle the actual file reading / writing.
+ * A single thread at a time should handle the actual file reading / writing.
  * This data should be saved into the FileAccessFuture which is returned from the method call.
  * FileAccessFuture's should block until the FileAccessManager has processed them.
  * 
  * @author Wayne Rowcliffe
  **/
-public interface FileAccessManager extends Closeable, Runnable {
+public interface FileAccessManager extends Closeable {
 
 	/**
 	 * Request that the FileAccessManager retrieve the piece with the given id
@@ -38,6 +44,58 @@ public interface FileAccessManager extends Closeable, Runnable {
 	 * @return A FileAccessFuture to obtain results from after the request has been processed.
 	 **/
 	public FileAccessFuture savePiece(int id, byte[] data);
+
+	/**
+	 * Request that the FileAccessManager save the piece with the given id using the given data,
+	 * where the SHA 1 hash of the data has already been computed by the caller.
+	 * 
+	 * @param id The id of the piece to save
+	 * @param data The data for the given piece
+	 * @param hash The SHA 1 hash of data, or null if it should be computed by the FileAccessManager
+	 * 
+	 * @return A FileAccessFuture to obtain results from after the request has been processed.
+	 **/
+	public FileAccessFuture savePiece(int id, byte[] data, byte[] hash);
+	
+	/**
+	 * Request that the FileAccessManager write a single block of a piece straight to its place on disk.
+	 * The block is not verified, and the piece is not recorded as saved until commitPiece() succeeds.
+	 * The buffer is handed over to the FileAccessManager, which releases it to the BufferPool once written.
+	 * 
+	 * @param id The id of the piece the block belongs to
+	 * @param offset The offset of the block within the piece
+	 * @param block The buffer holding the block, from its position to its limit
+	 * 
+	 * @return A FileAccessFuture to obtain results from after the request has been processed.
+	 **/
+	public FileAccessFuture saveBlock(int id, int offset, ByteBuffer block);
+	
+	/**
+	 * Request that the FileAccessManager verify a piece whose blocks have all been written with saveBlock(),
+	 * and record it as saved if its hash matches.
+	 * 
+	 * @param id The id of the piece to commit
+	 * 
+	 * @return A FileAccessFuture to obtain results from after the request has been processed.
+	 **/
+	public FileAccessFuture commitPiece(int id);
+	
+	/**
+	 * The blocks which were on disk for partially downloaded pieces when they were last saved.
+	 * 
+	 * @return A map from piece id to which of its blocks are on disk.
+	 **/
+	public Map<Integer,boolean[]> getPartialPieces();
+	
+	/**
+	 * Saves which blocks are on disk for partially downloaded pieces, so they can be resumed after a restart.
+	 * The blocks themselves should already have been written with saveBlock().
+	 * 
+	 * @param partial A map from piece id to which of its blocks are on disk.
+	 * 
+	 * @return Whether or not the partial pieces were saved.
+	 **/
+	public boolean savePartialPieces(Map<Integer,boolean[]> partial);
 	
 	/**
 	 * Request that the FileAccessManager determine whether or not the piece with the given id is available.
@@ -55,4 +113,37 @@ public interface FileAccessManager extends Closeable, Runnable {
 	 **/
 	public FileAccessFuture getBitfield();
 
+	/**
+	 * Whether the given block lies within a piece that has been written to disk,
+	 * meaning it can be sent with transferBlock().
+	 * 
+	 * @param id The id of the piece the block comes from
+	 * @param offset The offset of the block within the piece
+	 * @param length The length of the block
+	 * 
+	 * @return Whether the block can be transferred straight from disk.
+	 **/
+	public boolean canTransfer(int id, int offset, int length);
+	
+	/**
+	 * Writes the given block straight from disk to the target channel, without copying it onto the heap.
+	 * Unlike the other requests, this is performed on the calling thread.
+	 * 
+	 * @param id The id of the piece the block comes from
+	 * @param offset The offset of the block within the piece
+	 * @param length The length of the block
+	 * @param target The channel to write the block to
+	 * 
+	 * @throws IOException if the block is not on disk, or could not be written to the target.
+	 **/
+	public void transferBlock(int id, int offset, int length, WritableByteChannel target) throws IOException;
+
+	/**
+	 * Sets the listener told when a piece which was saved successfully is later lost,
+	 * because writing it to disk failed.
+	 *
+	 * @param listener The listener, or null for none.
+	 **/
+	public void setPieceLossListener(PieceLossListener listener);
+
 }
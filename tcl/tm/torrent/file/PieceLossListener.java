@@ -0,0 +1,20 @@
+package tcl.tm.torrent.file;
+
+/**
+ * A PieceLossListener is told when a piece which was reported as saved could not be written to disk,
+ * so that it can be downloaded again.
+ *
+ * Listeners run on the FileAccessManager's own thread, so they should do as little work as possible
+ * and must never wait on a FileAccessFuture.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public interface PieceLossListener {
+
+	/**
+	 * Called once for each piece which has been lost.
+	 *
+	 * @param id The id of the piece.
+	 **/
+	public void pieceLost(int id);
+}
@@ -0,0 +1,195 @@
+package tcl.tm.torrent.file.impl;
+
+import tcl.tm.torrent.file.FileAccessFuture;
+import tcl.tm.torrent.file.FileAccessListener;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FileAccessFutureImpl is an implementation of the FileAccessFuture interface.
+ *
+ * A FileAccessFuture allows the result of an asynchronous
+ * FileAccessManager request to be viewed once the request has been processed.
+ *
+ * There are six types of FileAccessFuture: GET_PIECE, SAVE_PIECE, SAVE_BLOCK, COMMIT_PIECE, HAVE_PIECE, and GET_BITFIELD
+ * These correspond to the different methods available in the FileAccessManger.
+ *
+ * FileAccessFutures should be immutable to everyone except the FileAccessManager.
+ * Listeners are called by the thread which validates the future, outside of its lock.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public class FileAccessFutureImpl implements FileAccessFuture {
+
+	int id;
+	boolean success;
+	byte[] data;
+	Type type;
+
+	// The block to write, and its offset within the piece, for SAVE_BLOCK requests.
+	ByteBuffer block;
+	int offset;
+
+	private boolean valid;
+	private List<FileAccessListener> listeners;
+
+	/**
+	 * Creates a FileAccessFutureImpl with the given id, data, and type
+	 *
+	 * @param id The piece id this FileAccessFuture corresponds to
+	 * @param data The data to attempt to save, in the case of a savePiece() request
+	 * @param type The type of request this FileAccessFuture is to fulfill.
+	 **/
+	FileAccessFutureImpl(int id, byte[] data, Type type) {
+		this.id = id;
+		this.data = data;
+		this.type = type;
+	}
+
+	/**
+	 * Creates a FileAccessFuture which has already been processed.
+	 * Useful for answering a request without involving the FileAccessManager.
+	 *
+	 * @param id The piece id the request pertained to
+	 * @param type The type of request
+	 * @param success Whether the request was successful
+	 *
+	 * @return A completed FileAccessFuture with the given result.
+	 **/
+	public static FileAccessFuture completed(int id, Type type, boolean success) {
+		return completed(id,type,success,null);
+	}
+
+	/**
+	 * Creates a FileAccessFuture which has already been processed, holding the given data.
+	 *
+	 * @param id The piece id the request pertained to
+	 * @param type The type of request
+	 * @param success Whether the request was successful
+	 * @param data The data resulting from the request
+	 *
+	 * @return A completed FileAccessFuture with the given result.
+	 **/
+	public static FileAccessFuture completed(int id, Type type, boolean success, byte[] data) {
+		FileAccessFutureImpl f = new FileAccessFutureImpl(id,data,type);
+		f.setSuccess(success);
+		f.validate();
+		return f;
+	}
+
+	/**
+	 * Validates this FileAccessFuture, making its contents visible to
+	 * the thread that requested it, and notifying any listeners.
+	 **/
+	void validate() {
+		List<FileAccessListener> notify = null;
+		synchronized(this) {
+			this.valid = true;
+			notifyAll();
+			notify = listeners;
+			listeners = null;
+		}
+		if(notify != null) {
+			for(FileAccessListener l : notify) {
+				l.requestComplete(this);
+			}
+		}
+	}
+
+	/**
+	 * Sets the data in this FileAccessFuture
+	 *
+	 * @param data The data to place in this FileAccessFuture
+	 **/
+	void setData(byte[] data) {
+		this.data = data;
+	}
+
+	/**
+	 * Whether or not this request was fulfilled successfully.
+	 *
+	 * @param success The success status of this request.
+	 **/
+	void setSuccess(boolean success) {
+		this.success = success;
+	}
+
+	/**
+	 * Retrieves the success status of this request,
+	 * blocking until this FileAccessFuture is validated.
+	 *
+	 * @return Whether or not the request was completed successfully.
+	 **/
+	public synchronized boolean getSuccess() {
+		while(!valid) {
+			try{
+				wait();
+			} catch(InterruptedException e) {}
+		}
+		return success;
+	}
+
+	/**
+	 * The piece id this request pertained to.
+	 *
+	 * @return The piece id this request pertained to.
+	 **/
+	public int getPieceId() {
+		return id;
+	}
+
+	/**
+	 * The data for the given piece, or null in the case of a HAVE_PIECE request
+	 * This method blocks until this FileAccessFuture has been validated.
+	 *
+	 * @return The data for the given piece, or null in the case of a HAVE_PIECE request.
+	 **/
+	public synchronized byte[] getData() {
+		while(!valid) {
+			try{
+				wait();
+			} catch(InterruptedException e) {}
+		}
+		return data;
+	}
+
+	/**
+	 * The type of request that this FileAccessFuture was created for.
+	 *
+	 * @return The type of request that this FileAccessFuture was created for.
+	 **/
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Whether this request has been processed, meaning the getters will not block.
+	 *
+	 * @return Whether or not the request has been processed.
+	 **/
+	public synchronized boolean isDone() {
+		return valid;
+	}
+
+	/**
+	 * Adds a listener to be called once this request has been processed.
+	 * If the request has already been processed, the listener is called immediately on the calling thread.
+	 *
+	 * @param listener The listener to notify.
+	 **/
+	public void addListener(FileAccessListener listener) {
+		synchronized(this) {
+			if(!valid) {
+				if(listeners == null) {
+					listeners = new ArrayList<FileAccessListener>(1);
+				}
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.requestComplete(this);
+	}
+}
@@ -1,19 +1,44 @@
 package tcl.tm.torrent.file.impl;
 
 import tcl.tm.torrent.info.TorrentInfo;
+import tcl.tm.torrent.info.util.FileExtent;
+import tcl.tm.torrent.file.util.BufferPool;
+import tcl.tm.torrent.file.util.ConcurrentBitSet;
 import tcl.tm.torrent.file.util.FileCreator;
+import tcl.tm.torrent.file.util.FileHandlePool;
+import tcl.tm.torrent.file.util.FlushPolicy;
+import tcl.tm.torrent.file.util.PieceCache;
 import tcl.tm.torrent.file.util.PieceVerifier;
 import tcl.tm.torrent.file.util.StatusLoader;
+import tcl.tm.torrent.file.util.VerifierPool;
 import tcl.tm.torrent.file.FileAccessManager;
 import tcl.tm.torrent.file.FileAccessFuture;
 import tcl.tm.torrent.file.FileAccessFuture.Type;
+import tcl.tm.torrent.file.PieceLossListener;
 
-import java.io.RandomAccessFile;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.Closeable;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * FileAccessMangerImpl is an implementation of the FileAccessManagerInterface
@@ -27,21 +52,74 @@ import java.util.concurrent.LinkedBlockingQueue;
  *
  * FileAccessManager uses FileAccessFutures to return the result of the requested operation.
  *
- * A single thread should handle the actual file reading / writing.
+ * A single thread at a time should handle the actual file reading / writing.
  * This data should be saved into the FileAccessFuture which is returned from the method call.
  * FileAccessFutures should block until the FileAccessManager has processed them.
  *
+ * Requests are processed by the shared IOScheduler, on the thread for the device
+ * the torrent is stored on, so torrents sharing a disk also share an ordered queue.
+ * Whether a piece is available, and the bitfield, are answered immediately from
+ * a ConcurrentBitSet without queueing.
+ *
+ * Pieces are hashed on the VerifierPool before they are queued for saving,
+ * so the device thread only ever handles data which has already been verified.
+ * Freshly saved pieces are placed in the shared PieceCache, since they are the
+ * pieces peers are most likely to request next.
+ *
+ * Verified pieces are buffered and written back according to a FlushPolicy.
+ * A flush writes buffered pieces in order, merging data that is adjacent on disk
+ * into single gathering writes. Pieces are only recorded in the StatusLoader once
+ * the flush containing them has succeeded, so a crash can lose buffered pieces
+ * but never mark unwritten data as complete.
+ *
+ * Files are not held open for the life of the torrent. Each read or write
+ * acquires its file from the shared FileHandlePool, which bounds the number
+ * of open files across every torrent in the process.
+ *
+ * Blocks of pieces which have been written may also be sent straight from disk
+ * to a peer's channel with transferBlock(), which runs on the calling thread.
+ * A second ConcurrentBitSet tracks which pieces are on disk rather than only buffered.
+ *
+ * For torrents with very large pieces, blocks may instead be streamed to their place
+ * on disk as they arrive with saveBlock(), so that whole pieces are never held on the heap.
+ * Once every block is written, commitPiece() hashes the piece back from disk,
+ * which is normally served from the page cache, on the VerifierPool.
+ * Streamed blocks and the chunks used to hash them are pooled direct buffers from the BufferPool.
+ * Committed pieces are recorded in the StatusLoader by the next flush, as buffered pieces are.
+ *
  * @author Wayne Rowcliffe
  **/
-public class FileAccessManagerImpl implements FileAccessManager, Runnable, Closeable {
+public class FileAccessManagerImpl implements FileAccessManager, Closeable {
 
-	private TorrentInfo info;
+	private static final AtomicInteger ordinals = new AtomicInteger(0);
+
+	protected TorrentInfo info;
+	protected File[] file;
 	private StatusLoader status;
-	private boolean[] have;
-	private RandomAccessFile[] file;
-	private BlockingQueue<FileAccessFutureImpl> requests;
+	private ConcurrentBitSet have;
+	private ConcurrentBitSet written;
+	private IOScheduler.Device device;
+	private int ordinal;
+
+	private FlushPolicy flushPolicy;
+	private TreeMap<Integer,byte[]> buffered;
+	private long bufferedBytes;
+	private long bufferedSince;
+
+	// Pieces streamed to disk and verified, waiting for the next flush to record them.
+	private TreeSet<Integer> committed;
+	// The number of blocks streamed into each uncommitted piece, used to detect writes during a commit.
+	private Map<Integer,Integer> blockWrites;
+	// Pieces which had a streamed block fail to write.
+	private Set<Integer> failedBlocks;
+	// Commits being hashed on the VerifierPool, with the block count they were started at.
+	private Map<FileAccessFutureImpl,Integer> verifying;
+
+	private volatile PieceLossListener lossListener;
 
 	private boolean running;
+	// Whether the device has written out the buffered data and closed the files, after close().
+	private boolean finished;
 
 	/**
 	 * Creates a FileAccessManager for the given torrent, using files located in the given baseDirectory
@@ -52,10 +130,33 @@ public class FileAccessManagerImpl implements FileAccessManager, Runnable, Close
 	 * @throws IllegalArgumentException if the fileset for the given TorrentInfo could not be created in the baseDirectory.
 	 **/
 	public FileAccessManagerImpl(TorrentInfo t, StatusLoader s, String baseDirectory) {
+		this(t,s,baseDirectory,FlushPolicy.DEFAULT);
+	}
+
+	/**
+	 * Creates a FileAccessManager for the given torrent, using files located in the given baseDirectory,
+	 * which writes buffered pieces back according to the given FlushPolicy.
+	 *
+	 * @param t The TorrentInfo for this torrent download
+	 * @param s The StatusLoader tracking which pieces have been saved
+	 * @param baseDirectory The location on the filesystem to store files
+	 * @param flushPolicy When buffered pieces should be written to disk
+	 *
+	 * @throws IllegalArgumentException if the fileset for the given TorrentInfo could not be created in the baseDirectory.
+	 **/
+	public FileAccessManagerImpl(TorrentInfo t, StatusLoader s, String baseDirectory, FlushPolicy flushPolicy) {
 		info = t;
 		status = s;
-		have = status.getStatus();
-		requests = new LinkedBlockingQueue<FileAccessFutureImpl>();
+		have = new ConcurrentBitSet(status.getStatus());
+		written = new ConcurrentBitSet(status.getStatus());
+		device = IOScheduler.getShared().getDevice(baseDirectory);
+		ordinal = ordinals.getAndIncrement();
+		this.flushPolicy = flushPolicy;
+		buffered = new TreeMap<Integer,byte[]>();
+		committed = new TreeSet<Integer>();
+		blockWrites = new HashMap<Integer,Integer>();
+		failedBlocks = new HashSet<Integer>();
+		verifying = new HashMap<FileAccessFutureImpl,Integer>();
 		try{
 			file = FileCreator.createFileSet(t,baseDirectory);
 		} catch (IOException e) {
@@ -65,32 +166,388 @@ public class FileAccessManagerImpl implements FileAccessManager, Runnable, Close
 	}
 
 	/**
-	 * Closes this FileAccessManager
+	 * Closes this FileAccessManager.
+	 * Waits until the device has processed the requests already queued, written out
+	 * the buffered data and closed the files, so the StatusLoader may be closed straight after.
+	 * When called from the device thread itself, the close is only queued.
 	 **/
 	public void close() {
-		if(running) {
+		synchronized(this) {
+			if(!running) {
+				return;
+			}
 			running = false;
-			requests.offer(new FileAccessFutureImpl(0,null,Type.GET_PIECE));
+		}
+		device.close(this);
+		if(device.isDeviceThread()) {
+			return;
+		}
+		synchronized(this) {
+			while(!finished) {
+				try {
+					wait();
+				} catch(InterruptedException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Places the given request on the queue for this FileAccessManager's device,
+	 * or fails it immediately if this FileAccessManager has been closed.
+	 * The device may be full, so the request is submitted without holding this FileAccessManager's lock.
+	 *
+	 * @param f The request to queue.
+	 **/
+	private void enqueue(FileAccessFutureImpl f) {
+		boolean open;
+		synchronized(this) {
+			open = running;
+		}
+		if(!open || !device.submit(this,f)) {
+			reject(f);
 		}
 	}
 
 	/**
-	 * The FileAccessManager does all backend work on the Thread running this method.
-	 * Requests are evaluated in the order they are given to the FileAccessManager.
+	 * Fails a request which arrived after this FileAccessManager was closed, releasing its block.
+	 *
+	 * @param f The request to fail.
 	 **/
-	public void run() {
-		while(running) {
+	void reject(FileAccessFutureImpl f) {
+		BufferPool.getShared().release(f.block);
+		f.block = null;
+		f.setSuccess(false);
+		f.validate();
+	}
+
+	/**
+	 * Whether the device has finished closing this FileAccessManager.
+	 *
+	 * @return Whether this FileAccessManager has finished.
+	 **/
+	synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * A number unique to this FileAccessManager, used to order requests between torrents.
+	 *
+	 * @return The ordinal of this FileAccessManager.
+	 **/
+	int getOrdinal() {
+		return ordinal;
+	}
+
+	/**
+	 * The time until buffered pieces are due to be flushed.
+	 * Called by the device thread.
+	 *
+	 * @return The delay in milliseconds, or -1 if nothing is buffered.
+	 **/
+	long flushDelay() {
+		if(nothingPending()) {
+			return -1;
+		}
+		return flushPolicy.shouldFlush(bufferedBytes,bufferedAge()) ? 0 : Math.max(1,flushPolicy.getInterval() - bufferedAge());
+	}
+
+	/**
+	 * Flushes buffered pieces if the FlushPolicy calls for it.
+	 * Called by the device thread.
+	 *
+	 * @return Whether a flush was performed.
+	 **/
+	boolean flushIfDue() {
+		if(flushPolicy.shouldFlush(bufferedBytes,bufferedAge())) {
+			flush();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Writes out any buffered pieces and closes the fileset.
+	 * Called once by the device thread after all of this FileAccessManager's requests have been processed.
+	 **/
+	void finish() {
+		flush();
+		closeFiles();
+		PieceCache.getShared().invalidate(this);
+		synchronized(this) {
+			finished = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Closes the fileset backing this FileAccessManager.
+	 * Called once by the device thread after all requests have been processed.
+	 **/
+	protected void closeFiles() {
+		for(File f : file) {
+			FileHandlePool.getShared().close(f);
+		}
+	}
+
+	/**
+	 * Reads length bytes from the given file, starting at position, into b.
+	 *
+	 * @param fileId The index of the file within the fileset
+	 * @param position The offset within the file to start reading from
+	 * @param b The array to read into
+	 * @param offset The offset within b to start storing data
+	 * @param length The number of bytes to read
+	 **/
+	protected void readSpan(int fileId, long position, byte[] b, int offset, int length) throws IOException {
+		readSpan(fileId,position,ByteBuffer.wrap(b,offset,length));
+	}
+
+	/**
+	 * Fills the remainder of the given buffer from the given file, starting at position.
+	 *
+	 * @param fileId The index of the file within the fileset
+	 * @param position The offset within the file to start reading from
+	 * @param dst The buffer to read into
+	 **/
+	protected void readSpan(int fileId, long position, ByteBuffer dst) throws IOException {
+		FileHandlePool pool = FileHandlePool.getShared();
+		FileChannel channel = pool.acquire(file[fileId]);
+		try {
+			while(dst.hasRemaining()) {
+				int read = channel.read(dst,position);
+				if(read < 0) {
+					throw new EOFException();
+				}
+				position += read;
+			}
+		} finally {
+			pool.release(file[fileId]);
+		}
+	}
+
+	/**
+	 * Writes the given buffers, one after another, into the given file starting at position.
+	 *
+	 * @param fileId The index of the file within the fileset
+	 * @param position The offset within the file to start writing at
+	 * @param data The buffers to write, in order
+	 **/
+	protected void writeSpans(int fileId, long position, ByteBuffer[] data) throws IOException {
+		long remaining = 0;
+		for(ByteBuffer b : data) {
+			remaining += b.remaining();
+		}
+		FileHandlePool pool = FileHandlePool.getShared();
+		FileChannel channel = pool.acquire(file[fileId]);
+		try {
+			channel.position(position);
+			while(remaining > 0) {
+				remaining -= channel.write(data);
+			}
+		} finally {
+			pool.release(file[fileId]);
+		}
+	}
+
+	/**
+	 * Transfers length bytes of the given file, starting at position, to the target channel.
+	 *
+	 * @param fileId The index of the file within the fileset
+	 * @param position The offset within the file to start transferring from
+	 * @param length The number of bytes to transfer
+	 * @param target The channel to write to
+	 **/
+	protected void transferSpan(int fileId, long position, long length, WritableByteChannel target) throws IOException {
+		FileHandlePool pool = FileHandlePool.getShared();
+		FileChannel channel = pool.acquire(file[fileId]);
+		try {
+			while(length > 0) {
+				long sent = channel.transferTo(position,length,target);
+				if(sent <= 0) {
+					throw new EOFException();
+				}
+				position += sent;
+				length -= sent;
+			}
+		} finally {
+			pool.release(file[fileId]);
+		}
+	}
+
+	/**
+	 * Forces any data written to the given files out to the storage device.
+	 *
+	 * @param fileIds The indices of the files which have been written to.
+	 **/
+	protected void syncFiles(Set<Integer> fileIds) throws IOException {
+		FileHandlePool pool = FileHandlePool.getShared();
+		for(int i : fileIds) {
+			FileChannel channel = pool.acquire(file[i]);
 			try {
-				evaluate(requests.take());
-			} catch(InterruptedException e) {e.printStackTrace();}
+				channel.force(false);
+			} finally {
+				pool.release(file[i]);
+			}
+		}
+	}
+
+	/**
+	 * How long the oldest buffered piece has been waiting to be written.
+	 *
+	 * @return The age of the oldest buffered piece in milliseconds, or 0 if nothing is buffered.
+	 **/
+	private long bufferedAge() {
+		return nothingPending() ? 0 : System.currentTimeMillis() - bufferedSince;
+	}
+
+	/**
+	 * Whether there are no buffered or committed pieces waiting for a flush.
+	 *
+	 * @return Whether the next flush has nothing to do.
+	 **/
+	private boolean nothingPending() {
+		return buffered.isEmpty() && committed.isEmpty();
+	}
+
+	/**
+	 * Counts a piece of the given length towards the next flush.
+	 *
+	 * @param length The length of the piece
+	 **/
+	private void addPending(long length) {
+		if(nothingPending()) {
+			bufferedSince = System.currentTimeMillis();
 		}
-		while(requests.size() > 0) {
-			evaluate(requests.poll());
+		bufferedBytes += length;
+	}
+
+	/**
+	 * The length of the given piece.
+	 *
+	 * @param id The id of the piece
+	 *
+	 * @return The length of the piece in bytes.
+	 **/
+	private int pieceLength(int id) {
+		return (id + 1 == info.getPieceCount()) ? info.getFinalPieceLength() : info.getPieceLength();
+	}
+
+	/**
+	 * Writes all buffered pieces to disk, merging spans which are adjacent within a file
+	 * into single writes. Once the data has been written, and synced if the FlushPolicy
+	 * requires it, the pieces are recorded in the StatusLoader as a single batch,
+	 * along with any committed pieces, which are already on disk.
+	 * A buffered piece whose write fails, or any piece on a file whose sync fails, is marked
+	 * as missing, dropped from the PieceCache, and reported to the PieceLossListener so it
+	 * can be downloaded again.
+	 **/
+	private void flush() {
+		if(nothingPending()) {
+			return;
 		}
-		for(RandomAccessFile f : file) {
-			try{
-				f.close();
-			} catch(IOException e) {e.printStackTrace();}
+		Set<Integer> touched = new HashSet<Integer>();
+		Set<Integer> failed = new HashSet<Integer>();
+		for(int id : committed) {
+			for(FileExtent x : info.getPieceExtents(id)) {
+				touched.add(x.getFile());
+			}
+		}
+		List<ByteBuffer> run = new ArrayList<ByteBuffer>();
+		Set<Integer> runPieces = new HashSet<Integer>();
+		int runFile = -1;
+		long runStart = 0;
+		long runEnd = 0;
+		for(Map.Entry<Integer,byte[]> e : buffered.entrySet()) {
+			for(FileExtent x : info.getPieceExtents(e.getKey())) {
+				if(x.getFile() != runFile || x.getFileOffset() != runEnd) {
+					writeRun(runFile,runStart,run,runPieces,failed);
+					runFile = x.getFile();
+					runStart = x.getFileOffset();
+					runEnd = x.getFileOffset();
+				}
+				run.add(ByteBuffer.wrap(e.getValue(),x.getPieceOffset(),x.getLength()));
+				runPieces.add(e.getKey());
+				runEnd += x.getLength();
+				touched.add(x.getFile());
+			}
+		}
+		writeRun(runFile,runStart,run,runPieces,failed);
+		if(flushPolicy.isSync()) {
+			for(int i : touched) {
+				try {
+					syncFiles(Collections.singleton(i));
+				} catch(IOException io) {
+					io.printStackTrace();
+					addPiecesOnFile(i,buffered.keySet(),failed);
+					addPiecesOnFile(i,committed,failed);
+				}
+			}
+		}
+		for(int id : buffered.keySet()) {
+			if(!failed.contains(id)) {
+				status.setStatus(id,true);
+				written.set(id,true);
+			}
+		}
+		for(int id : committed) {
+			if(!failed.contains(id)) {
+				status.setStatus(id,true);
+			}
+		}
+		for(int id : failed) {
+			have.set(id,false);
+			written.set(id,false);
+			PieceCache.getShared().invalidate(this,id);
+		}
+		status.flush();
+		buffered.clear();
+		committed.clear();
+		bufferedBytes = 0;
+		PieceLossListener listener = lossListener;
+		if(listener != null) {
+			for(int id : failed) {
+				listener.pieceLost(id);
+			}
+		}
+	}
+
+	/**
+	 * Adds those of the given pieces which lie partly within the given file to the failed set.
+	 *
+	 * @param fileId The index of the file within the fileset
+	 * @param pieces The pieces to check
+	 * @param failed The pieces which could not be written
+	 **/
+	private void addPiecesOnFile(int fileId, Set<Integer> pieces, Set<Integer> failed) {
+		for(int id : pieces) {
+			for(FileExtent x : info.getPieceExtents(id)) {
+				if(x.getFile() == fileId) {
+					failed.add(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a run of adjacent buffers to the given file, then empties the run.
+	 * If the write fails, the pieces in the run are added to the failed set.
+	 *
+	 * @param fileId The index of the file within the fileset
+	 * @param position The offset within the file where the run starts
+	 * @param run The buffers making up the run
+	 * @param runPieces The pieces the buffers belong to
+	 * @param failed The pieces which could not be written
+	 **/
+	private void writeRun(int fileId, long position, List<ByteBuffer> run, Set<Integer> runPieces, Set<Integer> failed) {
+		if(!run.isEmpty()) {
+			try {
+				writeSpans(fileId,position,run.toArray(new ByteBuffer[run.size()]));
+			} catch(IOException io) {
+				io.printStackTrace();
+				failed.addAll(runPieces);
+			}
+			run.clear();
+			runPieces.clear();
 		}
 	}
 
@@ -100,12 +557,18 @@ public class FileAccessManagerImpl implements FileAccessManager, Runnable, Close
 	 *
 	 * @param faf The FileAccessFuture to evaluate
 	 **/
-	private void evaluate(FileAccessFutureImpl faf) {
+	void evaluate(FileAccessFutureImpl faf) {
 		switch(faf.type) {
 			case GET_PIECE : getPiece(faf); break;
 			case SAVE_PIECE : savePiece(faf); break;
-			case HAVE_PIECE : havePiece(faf); break;
-			case GET_BITFIELD : getBitfield(faf); break;
+			case SAVE_BLOCK : saveBlock(faf); break;
+			case COMMIT_PIECE :
+				if(!commitPiece(faf)) {
+					// The commit is being hashed, and will be queued again once it is done.
+					return;
+				}
+				break;
+			default : break;
 		}
 		faf.validate();
 	}
@@ -118,37 +581,19 @@ public class FileAccessManagerImpl implements FileAccessManager, Runnable, Close
 	 * @param faf The FileAccessFuture to fulfill
 	 **/
 	private void getPiece(FileAccessFutureImpl faf) {
-		// Have piece will set success to true if we have the piece.
+		// Success is true if we have the piece.
 		// We can then retrieve the piece
-		havePiece(faf);
+		faf.setSuccess(have.get(faf.id));
 		try{
-			if(faf.success) {
-				// Get the start and end locations of the piece,
-				// and a byte array of proper length
-				long[] start = info.getPieceStartLocation(faf.id);
-				long[] end = info.getPieceEndLocation(faf.id);
-
-				int startFile = (int) start[0];
-				int endFile = (int) end[0];
-
+			if(faf.success && buffered.containsKey(faf.id)) {
+				// The piece has not been written yet, so hand out a copy of the buffer.
+				faf.setData(buffered.get(faf.id).clone());
+			} else if(faf.success) {
 				byte[] b = (faf.id + 1 == info.getPieceCount()) ? new byte[info.getFinalPieceLength()]
 																: new byte[info.getPieceLength()];
 
-				// If the piece is entirely in one file, read straight through
-				// Otherwise read from the start location in the first file, fully through any
-				// intermediate files, and until the end location in the end file.
-				if(startFile == endFile) {
-					file[startFile].seek(start[1]);
-					file[startFile].readFully(b);
-				} else {
-					file[startFile].seek(start[1]);
-					file[startFile].readFully(b,0,info.getFileEndLocation(startFile)[1]+1);
-					for(int i = startFile +1 ; i < endFile; i++) {
-						file[i].seek(0);
-						file[i].readFully(b,info.getFileStartLocation(i)[1],(int) info.getFileLength(i));
-					}
-					file[endFile].seek(0);
-					file[endFile].readFully(b,info.getFileStartLocation(endFile)[1],(int) end[1]+1);
+				for(FileExtent x : info.getPieceExtents(faf.id)) {
+					readSpan(x.getFile(),x.getFileOffset(),b,x.getPieceOffset(),x.getLength());
 				}
 				faf.setData(b);
 			} else {
@@ -164,88 +609,145 @@ public class FileAccessManagerImpl implements FileAccessManager, Runnable, Close
 	/**
 	 * Attempts to save the piece requested by the given FileAccessFuture.
 	 * Upon success, faf.getSuccess() will return true.
-	 * Success means that the given data matched the SHA1 hash for that piece,
-	 * and that the piece was successfully saved to file.
+	 * Success means that the piece was accepted into the write buffer, or written
+	 * to file if the FlushPolicy called for an immediate flush.
+	 * The data is expected to have been verified before the request was queued.
 	 *
 	 * @param faf The FileAccessFuture to fulfill
 	 **/
 	private void savePiece(FileAccessFutureImpl faf) {
-		try {
-			if(have[faf.id]) {
-				faf.setSuccess(true);
+		if(!have.get(faf.id)) {
+			// The caller owns the array it passed in, so buffer a copy.
+			// The copy is read only from here on, so it is shared with the PieceCache.
+			byte[] b = faf.data.clone();
+			addPending(b.length);
+			buffered.put(faf.id,b);
+
+			// Record that we have it. Reads are served from the buffer until it is written.
+			have.set(faf.id,true);
+			PieceCache.getShared().put(this,faf.id,b);
+
+			if(flushPolicy.shouldFlush(bufferedBytes,bufferedAge())) {
+				flush();
 			}
-			// If the data matches the hash, save it
-			else if(PieceVerifier.verify(faf.data,info.getPieceHash(faf.id))) {
-				// Get the start and end locations, and the data.
-				long[] start = info.getPieceStartLocation(faf.id);
-				long[] end = info.getPieceEndLocation(faf.id);
-
-				int startFile = (int) start[0];
-				int endFile = (int) end[0];
-
-				byte[] b = faf.data;
-
-				// If the piece is all in one file, write it straight out
-				// Otherwise, write from the start location to the end of that file
-				// Write fully any intermediate files
-				// Then write until the end location of the final file.
-				if(startFile == endFile) {
-					file[startFile].seek(start[1]);
-					file[startFile].write(b);
-				} else {
-					file[startFile].seek(start[1]);
-					file[startFile].write(b,0,info.getFileEndLocation(startFile)[1]+1);
-					for(int i = startFile +1 ; i < endFile; i++) {
-						file[i].seek(0);
-						file[i].write(b,info.getFileStartLocation(i)[1],(int) info.getFileLength(i));
+		}
+		faf.setSuccess(have.get(faf.id));
+		faf.setData(null);
+	}
+
+	/**
+	 * Writes the block held by the given FileAccessFuture to its place on disk, then releases its buffer.
+	 * Blocks of pieces we already have are dropped, so that verified data is never overwritten.
+	 *
+	 * @param faf The FileAccessFuture to fulfill
+	 **/
+	private void saveBlock(FileAccessFutureImpl faf) {
+		if(have.get(faf.id)) {
+			faf.setSuccess(false);
+		} else {
+			Integer count = blockWrites.get(faf.id);
+			blockWrites.put(faf.id,(count == null) ? 1 : count + 1);
+			int end = faf.offset + faf.block.remaining();
+			try {
+				for(FileExtent x : info.getPieceExtents(faf.id)) {
+					int start = Math.max(faf.offset,x.getPieceOffset());
+					int stop = Math.min(end,x.getPieceOffset() + x.getLength());
+					if(start < stop) {
+						ByteBuffer b = faf.block.duplicate();
+						b.position(faf.block.position() + start - faf.offset);
+						b.limit(b.position() + stop - start);
+						writeSpans(x.getFile(),x.getFileOffset() + start - x.getPieceOffset(),new ByteBuffer[] {b});
 					}
-					file[endFile].seek(0);
-					file[endFile].write(b,info.getFileStartLocation(endFile)[1],(int) end[1]+1);
 				}
-
-				// Record that we have it and were successful.
-				have[faf.id] = true;
-				status.setStatus(faf.id,true);
 				faf.setSuccess(true);
+			} catch(IOException io) {
+				io.printStackTrace();
+				failedBlocks.add(faf.id);
+				faf.setSuccess(false);
 			}
-		} catch(IOException io) {
-			io.printStackTrace();
-			// If anything goes wrong, set success to false, and record that we do not have the piece
-			have[faf.id] = false;
-			status.setStatus(faf.id,false);
-			faf.setSuccess(false);
 		}
-		faf.setData(null);
+		BufferPool.getShared().release(faf.block);
+		faf.block = null;
 	}
 
 	/**
-	 * Checks whether or not the requested piece is stored within this FileAccessManger's fileset
-	 * faf.getSuccess() will return true if the fileset contains the piece.
+	 * Verifies a piece whose blocks have been streamed to disk.
+	 * The first time a commit is evaluated, the piece is handed to the VerifierPool to be hashed
+	 * from disk, and the commit is queued again with the result. When it comes back, the piece
+	 * is recorded as saved, unless more blocks were written to it in the meantime,
+	 * in which case it is hashed again.
 	 *
 	 * @param faf The FileAccessFuture to fulfill
+	 *
+	 * @return Whether the commit is finished, and the FileAccessFuture should be validated.
 	 **/
-	private void havePiece(FileAccessFutureImpl faf) {
-		faf.setSuccess(have[faf.id]);
+	private boolean commitPiece(final FileAccessFutureImpl faf) {
+		final int id = faf.id;
+		Integer count = blockWrites.get(id);
+		Integer started = verifying.remove(faf);
+		if(have.get(id)) {
+			faf.setSuccess(true);
+		} else if(failedBlocks.remove(id)) {
+			faf.setSuccess(false);
+		} else if(started == null || !started.equals(count)) {
+			verifying.put(faf,count);
+			// Queued without a bound, since the device thread must never do the hashing itself.
+			VerifierPool.queue(new Runnable() {
+				public void run() {
+					faf.setSuccess(hashFromDisk(id));
+					enqueue(faf);
+				}
+			});
+			return false;
+		} else if(faf.success) {
+			have.set(id,true);
+			written.set(id,true);
+			committed.add(id);
+			addPending(pieceLength(id));
+			if(flushPolicy.shouldFlush(bufferedBytes,bufferedAge())) {
+				flush();
+			}
+		}
+		blockWrites.remove(id);
+		return true;
 	}
 
 	/**
-	 * Saves the bitfield for this FileAccessManager to the data variable of the given FileAccessFuture
+	 * Reads the given piece back from disk in small chunks, and checks its hash.
+	 * The chunks are read into a single pooled buffer.
+	 * Called from the VerifierPool.
 	 *
-	 * @param faf The FileAccessFuture to fulfill
+	 * @param id The piece to check
+	 *
+	 * @return Whether the data on disk matches the piece's hash.
 	 **/
-	private void getBitfield(FileAccessFutureImpl faf) {
-		byte[] out = new byte[(int) Math.ceil(have.length / 8.0)];
-		for(int i = 0; i < out.length; i++) {
-			int aByte = 0;
-			for(int j = 0; j < 8; j++) {
-				if((i*8 + j) < have.length) {
-					aByte |= (have[i*8 + j] ? 1 : 0) << (7-j);
+	private boolean hashFromDisk(int id) {
+		MessageDigest md = null;
+		try {
+			md = MessageDigest.getInstance("SHA");
+		} catch(NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return false;
+		}
+		ByteBuffer chunk = BufferPool.getShared().acquire(64 * 1024);
+		int chunkSize = chunk.capacity();
+		try {
+			for(FileExtent x : info.getPieceExtents(id)) {
+				for(int done = 0; done < x.getLength(); done += chunkSize) {
+					chunk.clear();
+					chunk.limit(Math.min(chunkSize,x.getLength() - done));
+					readSpan(x.getFile(),x.getFileOffset() + done,chunk);
+					chunk.flip();
+					md.update(chunk);
 				}
 			}
-			out[i] = (byte) aByte;
+		} catch(IOException io) {
+			io.printStackTrace();
+			return false;
+		} finally {
+			BufferPool.getShared().release(chunk);
 		}
-		faf.setData(out);
-		faf.setSuccess(true);
+		return PieceVerifier.matches(md.digest(),info.getPieceHash(id));
 	}
 
 	/**
@@ -257,14 +759,7 @@ public class FileAccessManagerImpl implements FileAccessManager, Runnable, Close
 	 **/
 	public FileAccessFuture getPiece(int id) {
 		FileAccessFutureImpl f = new FileAccessFutureImpl(id,null,Type.GET_PIECE);
-		try{
-			if(running) {
-				requests.put(f);
-			} else {
-				f.setSuccess(false);
-				f.validate();
-			}
-		} catch(InterruptedException e) {e.printStackTrace();}
+		enqueue(f);
 		return f;
 	}
 
@@ -277,165 +772,185 @@ public class FileAccessManagerImpl implements FileAccessManager, Runnable, Close
 	 * @return A FileAccessFuture to obtain results from after the request has been processed.
 	 **/
 	public FileAccessFuture savePiece(int id, byte[] data) {
+		final FileAccessFutureImpl f = new FileAccessFutureImpl(id, data ,Type.SAVE_PIECE);
+		if(running) {
+			// Hash on the VerifierPool, and only queue data that matched.
+			// Pieces we already have are queued as is, since saving them is a no-op.
+			VerifierPool.execute(new Runnable() {
+				public void run() {
+					if(have.get(f.id) || PieceVerifier.verify(f.data,info.getPieceHash(f.id))) {
+						enqueue(f);
+					} else {
+						f.setData(null);
+						f.setSuccess(false);
+						f.validate();
+					}
+				}
+			});
+		} else {
+			f.setSuccess(false);
+			f.validate();
+		}
+		return f;
+	}
+
+	/**
+	 * Request that the FileAccessManager save the piece with the given id using the given data,
+	 * where the SHA 1 hash of the data has already been computed by the caller.
+	 * The hash is compared directly, so no hashing is needed before the piece is queued.
+	 *
+	 * @param id The id of the piece to save
+	 * @param data The data for the given piece
+	 * @param hash The SHA 1 hash of data, or null if it should be computed by the FileAccessManager
+	 *
+	 * @return A FileAccessFuture to obtain results from after the request has been processed.
+	 **/
+	public FileAccessFuture savePiece(int id, byte[] data, byte[] hash) {
+		if(hash == null) {
+			return savePiece(id,data);
+		}
 		FileAccessFutureImpl f = new FileAccessFutureImpl(id, data ,Type.SAVE_PIECE);
-		try{
-			if(running) {
-				requests.put(f);
-			} else {
-				f.setSuccess(false);
-				f.validate();
-			}
-		} catch(InterruptedException e) {e.printStackTrace();}
+		if(have.get(id) || PieceVerifier.matches(hash,info.getPieceHash(id))) {
+			enqueue(f);
+		} else {
+			f.setData(null);
+			f.setSuccess(false);
+			f.validate();
+		}
 		return f;
 	}
 
 	/**
-	 * Request that the FileAccessManager determine whether or not the piece with the given id is available.
+	 * Request that the FileAccessManager write a single block of a piece straight to its place on disk.
+	 * The block is not verified, and the piece is not recorded as saved until commitPiece() succeeds.
+	 * The buffer is handed over to the FileAccessManager, which releases it to the BufferPool once written.
 	 *
-	 * @param id The id of the piece to check for availability.
+	 * @param id The id of the piece the block belongs to
+	 * @param offset The offset of the block within the piece
+	 * @param block The buffer holding the block, from its position to its limit
 	 *
 	 * @return A FileAccessFuture to obtain results from after the request has been processed.
 	 **/
-	public FileAccessFuture havePiece(int id) {
-		FileAccessFutureImpl f = new FileAccessFutureImpl(id,null,Type.HAVE_PIECE);
-		try{
-			if(running) {
-				requests.put(f);
-			} else {
-				f.setSuccess(false);
-				f.validate();
-			}
-		} catch(InterruptedException e) {e.printStackTrace();}
+	public FileAccessFuture saveBlock(int id, int offset, ByteBuffer block) {
+		FileAccessFutureImpl f = new FileAccessFutureImpl(id,null,Type.SAVE_BLOCK);
+		f.block = block;
+		f.offset = offset;
+		if(id < 0 || id >= info.getPieceCount() || offset < 0 || !block.hasRemaining()
+				|| offset + block.remaining() > pieceLength(id)) {
+			BufferPool.getShared().release(block);
+			f.block = null;
+			f.setSuccess(false);
+			f.validate();
+			return f;
+		}
+		enqueue(f);
 		return f;
 	}
 
 	/**
-	 * Request that the FileAccessManager return a bitfield corresponding to the pieces that are stored to file.
+	 * Request that the FileAccessManager verify a piece whose blocks have all been written with saveBlock(),
+	 * by hashing it back from disk, and record it as saved if it matches.
+	 *
+	 * @param id The id of the piece to commit
 	 *
 	 * @return A FileAccessFuture to obtain results from after the request has been processed.
 	 **/
-	public FileAccessFuture getBitfield() {
-		FileAccessFutureImpl f = new FileAccessFutureImpl(0,null,Type.GET_BITFIELD);
-		try {
-			if(running) {
-				requests.put(f);
-			} else {
-				f.setSuccess(false);
-				f.validate();
-			}
-		} catch(InterruptedException e) {e.printStackTrace();}
+	public FileAccessFuture commitPiece(int id) {
+		FileAccessFutureImpl f = new FileAccessFutureImpl(id,null,Type.COMMIT_PIECE);
+		enqueue(f);
 		return f;
 	}
 
 	/**
-	 * FileAccessFutureImpl is an implementation of the FileAccessFuture interface.
-	 *
-	 * A FileAccessFuture allows the result of an asynchronous
- 	 * FileAccessManager request to be viewed once the request has been processed.
- 	 *
- 	 * There are three types of FileAccessFuture: GET_PIECE, SAVE_PIECE, and HAVE_PIECE
- 	 * These correspond to the three different methods available in the FileAccessManger.
- 	 *
- 	 * FileAccessFutures should be immutable to everyone except the FileAccessManager.
- 	 *
- 	 * @author Wayne Rowcliffe
- 	 **/
-	private static class FileAccessFutureImpl implements FileAccessFuture {
-
-		private int id;
-		private boolean valid;
-		private boolean success;
-		private byte[] data;
-		private Type type;
-
-		/**
-		 * Creates a FileAccessFutureImpl with the given id, data, and type
-		 *
-		 * @param id The piece id this FileAccessFuture corresponds to
-		 * @param data The data to attempt to save, in the case of a savePiece() request
-		 * @param type The type of request this FileAccessFuture is to fulfill.
-		 **/
-		private FileAccessFutureImpl(int id, byte[] data, Type type) {
-			this.id = id;
-			this.data = data;
-			this.type = type;
-		}
-
-		/**
-		 * Validates this FileAccessFuture, making its contents visible to
-		 * the thread that requested it.
-		 **/
-		private synchronized void validate() {
-			this.valid = true;
-			notifyAll();
-		}
+	 * The blocks which were on disk for partially downloaded pieces when they were last saved.
+	 *
+	 * @return A map from piece id to which of its blocks are on disk.
+	 **/
+	public Map<Integer,boolean[]> getPartialPieces() {
+		return status.getPartialPieces();
+	}
 
-		/**
-		 * Sets the data in this FileAccessFuture
-		 *
-		 * @param data The data to place in this FileAccessFuture
-		 **/
-		private void setData(byte[] data) {
-			this.data = data;
-		}
-
-		/**
-		 * Whether or not this request was fulfilled successfully.
-		 *
-		 * @param success The success status of this request.
-		 **/
-		private void setSuccess(boolean success) {
-			this.success = success;
-		}
-
-		/**
-		 * Retrieves the success status of this request,
-		 * blocking until this FileAccessFuture is validated.
-		 *
-		 * @return Whether or not the request was completed successfully.
-		 **/
-		public synchronized boolean getSuccess() {
-			while(!valid) {
-				try{
-					wait();
-				} catch(InterruptedException e) {}
-			}
-			return success;
-		}
-
-		/**
-		 * The piece id this request pertained to.
-		 *
-		 * @return The piece id this request pertained to.
-		 **/
-		public int getPieceId() {
-			return id;
-		}
-
-		/**
-		 * The data for the given piece, or null in the case of a HAVE_PIECE request
-		 * This method blocks until this FileAccessFuture has been validated.
-		 *
-		 * @return The data for the given piece, or null in the case of a HAVE_PIECE request.
-		 **/
-		public synchronized byte[] getData() {
-			while(!valid) {
-				try{
-					wait();
-				} catch(InterruptedException e) {}
-			}
-			return data;
+	/**
+	 * Saves which blocks are on disk for partially downloaded pieces, so they can be resumed after a restart.
+	 * The map is written to the StatusLoader's side file straight away, on the calling thread.
+	 *
+	 * @param partial A map from piece id to which of its blocks are on disk.
+	 *
+	 * @return Whether or not the partial pieces were saved.
+	 **/
+	public boolean savePartialPieces(Map<Integer,boolean[]> partial) {
+		return status.setPartialPieces(partial);
+	}
+
+	/**
+	 * Request that the FileAccessManager determine whether or not the piece with the given id is available.
+	 *
+	 * @param id The id of the piece to check for availability.
+	 *
+	 * @return A FileAccessFuture to obtain results from after the request has been processed.
+	 **/
+	public FileAccessFuture havePiece(int id) {
+		return FileAccessFutureImpl.completed(id,Type.HAVE_PIECE,have.get(id),null);
+	}
+
+	/**
+	 * Whether the given block lies within a piece that has been written to disk,
+	 * meaning it can be sent with transferBlock().
+	 *
+	 * @param id The id of the piece the block comes from
+	 * @param offset The offset of the block within the piece
+	 * @param length The length of the block
+	 *
+	 * @return Whether the block can be transferred straight from disk.
+	 **/
+	public boolean canTransfer(int id, int offset, int length) {
+		if(!running || id < 0 || id >= info.getPieceCount() || offset < 0 || length <= 0) {
+			return false;
 		}
+		return offset + length <= pieceLength(id) && written.get(id);
+	}
 
-		/**
-		 * The type of request that this FileAccessFuture was created for.
-		 *
-		 * @return The type of request that this FileAccessFuture was created for.
-		 **/
-		public Type getType() {
-			return type;
+	/**
+	 * Writes the given block straight from disk to the target channel, without copying it onto the heap.
+	 * The block may span several files, in which case each part is transferred in turn.
+	 *
+	 * @param id The id of the piece the block comes from
+	 * @param offset The offset of the block within the piece
+	 * @param length The length of the block
+	 * @param target The channel to write the block to
+	 *
+	 * @throws IOException if the block is not on disk, or could not be written to the target.
+	 **/
+	public void transferBlock(int id, int offset, int length, WritableByteChannel target) throws IOException {
+		if(!canTransfer(id,offset,length)) {
+			throw new IOException("Block " + id + ":" + offset + " is not on disk");
+		}
+		int end = offset + length;
+		for(FileExtent x : info.getPieceExtents(id)) {
+			int start = Math.max(offset,x.getPieceOffset());
+			int stop = Math.min(end,x.getPieceOffset() + x.getLength());
+			if(start < stop) {
+				transferSpan(x.getFile(),x.getFileOffset() + start - x.getPieceOffset(),stop - start,target);
+			}
 		}
 	}
-}
 
+	/**
+	 * Sets the listener told when a piece fails to reach disk during a flush.
+	 * The listener is called on the device thread.
+	 *
+	 * @param listener The listener, or null for none.
+	 **/
+	public void setPieceLossListener(PieceLossListener listener) {
+		this.lossListener = listener;
+	}
 
+	/**
+	 * Request that the FileAccessManager return a bitfield corresponding to the pieces that are stored to file.
+	 *
+	 * @return A FileAccessFuture to obtain results from after the request has been processed.
+	 **/
+	public FileAccessFuture getBitfield() {
+		return FileAccessFutureImpl.completed(0,Type.GET_BITFIELD,true,have.toBitfield());
+	}
+}
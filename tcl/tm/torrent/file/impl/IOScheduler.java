@@ -0,0 +1,364 @@
+package tcl.tm.torrent.file.impl;
+
+import tcl.tm.torrent.file.FileAccessFuture.Type;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The IOScheduler performs the work of every FileAccessManager in the process.
+ *
+ * Requests are grouped by device, with one thread per device. Torrents stored
+ * under the same download directory are assumed to share a device. Each device thread
+ * handles requests for all of its torrents, so a FileAccessManager's state is still
+ * only ever touched by a single thread.
+ *
+ * Requests are split into two lanes. Piece reads, which peers are waiting on,
+ * are served ahead of saves and flushes, which can happen in the background.
+ * Reads are served in elevator order: the device sweeps upwards through
+ * torrents and piece ids, which follow file and offset order on disk, and wraps
+ * around once it reaches the end. A read which has waited longer than DEADLINE
+ * is served next regardless of its position, so no read is starved.
+ * Saves are served in the order they arrive, and are also protected from starvation:
+ * once one has waited longer than DEADLINE, or MAX_READ_STREAK reads have been served
+ * in a row, the write lane gets a turn, including any flushes which are due.
+ * Each device holds at most MAX_PENDING requests; other threads submitting
+ * beyond that wait until the device catches up.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public class IOScheduler {
+
+	private static final IOScheduler shared = new IOScheduler();
+
+	private Map<String,Device> devices;
+
+	private IOScheduler() {
+		devices = new HashMap<String,Device>();
+	}
+
+	/**
+	 * The IOScheduler shared by all torrents in this process.
+	 *
+	 * @return The shared IOScheduler.
+	 **/
+	public static IOScheduler getShared() {
+		return shared;
+	}
+
+	/**
+	 * The device which files in the given directory are stored on.
+	 *
+	 * @param directory The directory a torrent is stored in.
+	 *
+	 * @return The Device handling requests for that directory.
+	 **/
+	synchronized Device getDevice(String directory) {
+		String key = directory;
+		try {
+			key = new File(directory).getCanonicalPath();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		Device d = devices.get(key);
+		if(d == null) {
+			d = new Device(key);
+			devices.put(key,d);
+		}
+		return d;
+	}
+
+	/**
+	 * A single queued request, along with the FileAccessManager it is for.
+	 **/
+	private static class Request {
+
+		private FileAccessManagerImpl fam;
+		private FileAccessFutureImpl f;
+		private long seq;
+		private long submitted;
+
+		private Request(FileAccessManagerImpl fam, FileAccessFutureImpl f, long seq) {
+			this.fam = fam;
+			this.f = f;
+			this.seq = seq;
+			this.submitted = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Orders piece reads by torrent, then by piece, then by arrival.
+	 **/
+	private static class SweepOrder implements Comparator<Request> {
+
+		public int compare(Request a, Request b) {
+			if(a.fam.getOrdinal() != b.fam.getOrdinal()) {
+				return a.fam.getOrdinal() < b.fam.getOrdinal() ? -1 : 1;
+			}
+			if(a.f.id != b.f.id) {
+				return a.f.id < b.f.id ? -1 : 1;
+			}
+			return (a.seq < b.seq) ? -1 : ((a.seq == b.seq) ? 0 : 1);
+		}
+	}
+
+	/**
+	 * The queue and thread for a single device.
+	 * The thread is started when the first request arrives, and exits once
+	 * every FileAccessManager using the device has been closed.
+	 **/
+	static class Device implements Runnable {
+
+		private static final int MAX_PENDING = 512;
+		private static final long DEADLINE = 500;
+		private static final int MAX_READ_STREAK = 32;
+
+		private String name;
+		private Thread thread;
+		private boolean alive;
+
+		private LinkedList<Request> writes;
+		private TreeSet<Request> sweep;
+		private LinkedList<Request> arrivals;
+		private Request head;
+		private Set<FileAccessManagerImpl> clients;
+		private long seq;
+		private int pending;
+		private int readStreak;
+
+		private Device(String name) {
+			this.name = name;
+			this.writes = new LinkedList<Request>();
+			this.sweep = new TreeSet<Request>(new SweepOrder());
+			this.arrivals = new LinkedList<Request>();
+			this.clients = new LinkedHashSet<FileAccessManagerImpl>();
+		}
+
+		/**
+		 * Queues a request for the given FileAccessManager.
+		 * Blocks while the device is full, unless called from the device thread itself.
+		 * Requests for a FileAccessManager which has already finished closing are refused.
+		 *
+		 * @param fam The FileAccessManager the request is for
+		 * @param f The request, or null to queue the closing of the FileAccessManager
+		 *
+		 * @return Whether the request was queued.
+		 **/
+		synchronized boolean submit(FileAccessManagerImpl fam, FileAccessFutureImpl f) {
+			while(pending >= MAX_PENDING && Thread.currentThread() != thread) {
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+			if(fam.isFinished()) {
+				return false;
+			}
+			Request r = new Request(fam,f,seq++);
+			if(f != null && f.type == Type.GET_PIECE) {
+				sweep.add(r);
+				arrivals.add(r);
+			} else {
+				writes.add(r);
+			}
+			pending++;
+			clients.add(fam);
+			if(!alive) {
+				alive = true;
+				thread = new Thread(this,"File Access - " + name);
+				thread.start();
+			}
+			notifyAll();
+			return true;
+		}
+
+		/**
+		 * Queues the closing of the given FileAccessManager.
+		 * Its queued requests are processed first, then its buffered data is written and its files closed.
+		 *
+		 * @param fam The FileAccessManager to close
+		 **/
+		void close(FileAccessManagerImpl fam) {
+			submit(fam,null);
+		}
+
+		/**
+		 * Whether the calling thread is this device's thread.
+		 *
+		 * @return Whether the caller is the device thread.
+		 **/
+		synchronized boolean isDeviceThread() {
+			return Thread.currentThread() == thread;
+		}
+
+		/**
+		 * Processes requests until every FileAccessManager on this device has been closed,
+		 * flushing buffered data whenever a FlushPolicy calls for it.
+		 **/
+		public void run() {
+			while(true) {
+				Request r = null;
+				List<FileAccessManagerImpl> snapshot = null;
+				boolean flushAllowed = false;
+				synchronized(this) {
+					r = next();
+					if(r == null) {
+						if(clients.isEmpty()) {
+							alive = false;
+							return;
+						}
+						long delay = flushDelay();
+						try {
+							if(delay < 0) {
+								wait();
+							} else if(delay > 0) {
+								wait(delay);
+							}
+						} catch(InterruptedException e) {
+							e.printStackTrace();
+						}
+					} else {
+						pending--;
+						notifyAll();
+					}
+					snapshot = new ArrayList<FileAccessManagerImpl>(clients);
+					flushAllowed = arrivals.isEmpty() || readStreak >= MAX_READ_STREAK;
+				}
+				if(r != null) {
+					if(r.f == null) {
+						finish(r.fam);
+					} else {
+						r.fam.evaluate(r.f);
+					}
+				}
+				if(flushAllowed) {
+					boolean flushed = false;
+					for(FileAccessManagerImpl c : snapshot) {
+						flushed |= c.flushIfDue();
+					}
+					if(flushed) {
+						synchronized(this) {
+							readStreak = 0;
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Chooses the next request to process.
+		 * The write lane goes first if it has been starved, or if there are no reads.
+		 * Otherwise any read past its deadline goes next, then the next read in the sweep.
+		 *
+		 * @return The next request, or null if there are none.
+		 **/
+		private Request next() {
+			long now = System.currentTimeMillis();
+			if(!writes.isEmpty() && (arrivals.isEmpty() || readStreak >= MAX_READ_STREAK
+										|| now - writes.getFirst().submitted >= DEADLINE)) {
+				readStreak = 0;
+				return writes.removeFirst();
+			}
+			if(arrivals.isEmpty()) {
+				return null;
+			}
+			readStreak++;
+			Request r = arrivals.getFirst();
+			if(now - r.submitted < DEADLINE) {
+				r = (head == null) ? null : sweep.ceiling(head);
+				if(r == null) {
+					r = sweep.first();
+				}
+			}
+			sweep.remove(r);
+			arrivals.remove(r);
+			head = r;
+			return r;
+		}
+
+		/**
+		 * The time until the next FileAccessManager on this device is due to flush.
+		 *
+		 * @return The delay in milliseconds, or -1 if nothing is buffered.
+		 **/
+		private long flushDelay() {
+			long delay = -1;
+			for(FileAccessManagerImpl c : clients) {
+				long d = c.flushDelay();
+				if(d >= 0 && (delay < 0 || d < delay)) {
+					delay = d;
+				}
+			}
+			return delay;
+		}
+
+		/**
+		 * Processes the remaining reads for the given FileAccessManager, then shuts it down.
+		 * Requests queued after the close, by threads which found the FileAccessManager still running,
+		 * are failed, and so are any which arrive later.
+		 *
+		 * @param fam The FileAccessManager being closed.
+		 **/
+		private void finish(FileAccessManagerImpl fam) {
+			List<Request> remaining = new ArrayList<Request>();
+			synchronized(this) {
+				Iterator<Request> it = sweep.iterator();
+				while(it.hasNext()) {
+					Request r = it.next();
+					if(r.fam == fam) {
+						remaining.add(r);
+						arrivals.remove(r);
+						it.remove();
+						pending--;
+					}
+				}
+				notifyAll();
+			}
+			for(Request r : remaining) {
+				fam.evaluate(r.f);
+			}
+			fam.finish();
+			List<Request> late = new ArrayList<Request>();
+			synchronized(this) {
+				Iterator<Request> it = writes.iterator();
+				while(it.hasNext()) {
+					Request r = it.next();
+					if(r.fam == fam) {
+						late.add(r);
+						it.remove();
+						pending--;
+					}
+				}
+				it = sweep.iterator();
+				while(it.hasNext()) {
+					Request r = it.next();
+					if(r.fam == fam) {
+						late.add(r);
+						arrivals.remove(r);
+						it.remove();
+						pending--;
+					}
+				}
+				clients.remove(fam);
+				notifyAll();
+			}
+			for(Request r : late) {
+				if(r.f != null) {
+					fam.reject(r.f);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package tcl.tm.torrent.file.impl;
+
+import tcl.tm.torrent.info.TorrentInfo;
+import tcl.tm.torrent.file.util.FlushPolicy;
+import tcl.tm.torrent.file.util.StatusLoader;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.util.Set;
+
+/**
+ * MappedFileAccessManagerImpl is a FileAccessManager which accesses its fileset
+ * through memory mapped regions rather than seek / read / write calls.
+ *
+ * Each file is mapped as a series of windows no larger than WINDOW_SIZE,
+ * since a single MappedByteBuffer cannot address more than 2GiB.
+ * Piece spans are copied in and out of these windows with bulk get / put,
+ * leaving the actual disk writes to the operating system's page cache.
+ *
+ * Request handling is inherited from FileAccessManagerImpl, so the same
+ * single thread still performs all reads and writes.
+ *
+ * Torrents use memory mapped access by default when the
+ * tcl.file.mapped system property is set to true.
+ *
+ * @author Wayne Rowcliffe
+ **/
+public class MappedFileAccessManagerImpl extends FileAccessManagerImpl {
+
+	private static final long WINDOW_SIZE = 1L << 30;
+
+	private static final boolean enabled = Boolean.getBoolean("tcl.file.mapped");
+
+	private MappedByteBuffer[][] windows;
+
+	/**
+	 * Whether torrents should access their files through memory mapped regions by default.
+	 *
+	 * @return Whether memory mapped access is enabled.
+	 **/
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Creates a memory mapped FileAccessManager for the given torrent, using files located in the given baseDirectory
+	 *
+	 * @param t The TorrentInfo for this torrent download
+	 * @param s The StatusLoader tracking which pieces have been saved
+	 * @param baseDirectory The location on the filesystem to store files
+	 *
+	 * @throws IllegalArgumentException if the fileset for the given TorrentInfo could not be created or mapped.
+	 **/
+	public MappedFileAccessManagerImpl(TorrentInfo t, StatusLoader s, String baseDirectory) {
+		this(t,s,baseDirectory,FlushPolicy.DEFAULT);
+	}
+
+	/**
+	 * Creates a memory mapped FileAccessManager for the given torrent, using files located in the given baseDirectory,
+	 * which writes buffered pieces back according to the given FlushPolicy.
+	 *
+	 * @param t The TorrentInfo for this torrent download
+	 * @param s The StatusLoader tracking which pieces have been saved
+	 * @param baseDirectory The location on the filesystem to store files
+	 * @param flushPolicy When buffered pieces should be copied into the mapped windows
+	 *
+	 * @throws IllegalArgumentException if the fileset for the given TorrentInfo could not be created or mapped.
+	 **/
+	public MappedFileAccessManagerImpl(TorrentInfo t, StatusLoader s, String baseDirectory, FlushPolicy flushPolicy) {
+		super(t,s,baseDirectory,flushPolicy);
+		windows = new MappedByteBuffer[file.length][];
+		try {
+			for(int i = 0; i < file.length; i++) {
+				windows[i] = mapFile(file[i],info.getFileLength(i));
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+			throw new IllegalArgumentException("Could not map file set");
+		}
+	}
+
+	/**
+	 * Maps the given file in windows of at most WINDOW_SIZE bytes,
+	 * growing the file to its full length first if necessary.
+	 * The file is closed again once mapped, since mappings stay valid without an open handle.
+	 *
+	 * @param fl The file to map
+	 * @param length The length the file should have once complete
+	 *
+	 * @return The windows covering the file, in order.
+	 **/
+	private static MappedByteBuffer[] mapFile(File fl, long length) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(fl,"rw");
+		try {
+			if(f.length() < length) {
+				f.setLength(length);
+			}
+			FileChannel channel = f.getChannel();
+			MappedByteBuffer[] out = new MappedByteBuffer[(int) ((length + WINDOW_SIZE -1) / WINDOW_SIZE)];
+			for(int i = 0; i < out.length; i++) {
+				long position = i * WINDOW_SIZE;
+				out[i] = channel.map(FileChannel.MapMode.READ_WRITE,position,Math.min(WINDOW_SIZE,length - position));
+			}
+			return out;
+		} finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * Returns a view of the window containing position, positioned at position.
+	 * Views are used so that the position of the shared window is never modified.
+	 *
+	 * @param fileId The index of the file within the fileset
+	 * @param position The offset within the file
+	 *
+	 * @return A view of the proper window, positioned at the given offset.
+	 **/
+	private ByteBuffer window(int fileId, long position) {
+		ByteBuffer view = windows[fileId][(int) (position / WINDOW_SIZE)].duplicate();
+		view.position((int) (position % WINDOW_SIZE));
+		return view;
+	}
+
+	/**
+	 * Copies the given file, starting at position, into the remainder of dst.
+	 **/
+	protected void readSpan(int fileId, long position, ByteBuffer dst) throws IOException {
+		while(dst.hasRemaining()) {
+			ByteBuffer view = window(fileId,position);
+			int count = Math.min(dst.remaining(),view.remaining());
+			view.limit(view.position() + count);
+			dst.put(view);
+			position += count;
+		}
+	}
+
+	/**
+	 * Copies the given buffers, one after another, into the given file starting at position.
+	 **/
+	protected void writeSpans(int fileId, long position, ByteBuffer[] data) throws IOException {
+		for(ByteBuffer b : data) {
+			while(b.hasRemaining()) {
+				ByteBuffer view = window(fileId,position);
+				int count = Math.min(b.remaining(),view.remaining());
+				ByteBuffer part = b.duplicate();
+				part.limit(part.position() + count);
+				view.put(part);
+				b.position(b.position() + count);
+				position += count;
+			}
+		}
+	}
+
+	/**
+	 * Writes length bytes of the given file, starting at position, to the target straight from the mapped windows.
+	 **/
+	protected void transferSpan(int fileId, long position, long length, WritableByteChannel target) throws IOException {
+		while(length > 0) {
+			ByteBuffer view = window(fileId,position);
+			int count = (int) Math.min(length,view.remaining());
+			view.limit(view.position() + count);
+			while(view.hasRemaining()) {
+				target.write(view);
+			}
+			position += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Forces the mapped windows of the given files out to the storage device.
+	 **/
+	protected void syncFiles(Set<Integer> fileIds) throws IOException {
+		for(int i : fileIds) {
+			for(MappedByteBuffer w : windows[i]) {
+				w.force();
+			}
+		}
+	}
+
+	/**
+	 * Flushes all mapped windows to disk before closing the fileset.
+	 **/
+	protected void closeFiles() {
+		for(MappedByteBuffer[] fileWindows : windows) {
+			for(MappedByteBuffer w : fileWindows) {
+				w.force();
+			}
+		}
+		super.closeFiles();
+	}
+}
@@ -0,0 +1,178 @@
+package tcl.tm.torrent.file.util;
+
+import java.nio.ByteBuffer;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A pool of direct ByteBuffers, shared by every torrent in the process.
+ *
+ * Buffers are grouped into size classes, so that a buffer released by one user can
+ * be handed to the next user needing a similar size. Sizes up to MAX_FINE_CLASS are
+ * rounded up to a multiple of 4KiB, which keeps a block plus its message header in a
+ * class of its own, and larger sizes are rounded up to a power of two for pieces.
+ * Released buffers are kept for reuse until the pool holds its capacity in bytes;
+ * beyond that they are left for the garbage collector.
+ *
+ * When the tcl.buffers.debug system property is set, the pool records where each
+ * outstanding buffer was acquired, rejects buffers released twice, and can report
+ * buffers which were never released.
+ **/
+public class BufferPool {
+
+	private static final long DEFAULT_CAPACITY = 32L * 1024 * 1024;
+
+	private static final int FINE_CLASS = 4 * 1024;
+	private static final int MAX_FINE_CLASS = 64 * 1024;
+
+	private static final BufferPool shared = new BufferPool(DEFAULT_CAPACITY,Boolean.getBoolean("tcl.buffers.debug"));
+
+	private Map<Integer,LinkedList<ByteBuffer>> free;
+	private long capacity;
+	private long pooled;
+
+	private boolean debug;
+	private Map<ByteBuffer,Throwable> outstanding;
+
+	private long allocations;
+	private long reuses;
+
+	/**
+	 * Creates a BufferPool which keeps at most capacity bytes of released buffers.
+	 *
+	 * @param capacity The most bytes of idle buffers to keep for reuse.
+	 * @param debug Whether to track outstanding buffers to detect leaks.
+	 **/
+	public BufferPool(long capacity, boolean debug) {
+		this.capacity = capacity;
+		this.debug = debug;
+		this.free = new HashMap<Integer,LinkedList<ByteBuffer>>();
+		if(debug) {
+			this.outstanding = new IdentityHashMap<ByteBuffer,Throwable>();
+		}
+	}
+
+	/**
+	 * The BufferPool shared by all torrents in this process.
+	 *
+	 * @return The shared BufferPool.
+	 **/
+	public static BufferPool getShared() {
+		return shared;
+	}
+
+	/**
+	 * The capacity of the buffers in the size class for the given size.
+	 *
+	 * @param size The number of bytes needed.
+	 *
+	 * @return The capacity of buffers able to hold size bytes.
+	 **/
+	static int sizeClass(int size) {
+		if(size <= MAX_FINE_CLASS) {
+			return Math.max(1,(size + FINE_CLASS - 1) / FINE_CLASS) * FINE_CLASS;
+		}
+		int c = Integer.highestOneBit(size);
+		return (c == size) ? c : c << 1;
+	}
+
+	/**
+	 * Takes a buffer able to hold size bytes, reusing a released buffer if one is available.
+	 * The buffer is cleared, with its limit set to size.
+	 *
+	 * @param size The number of bytes needed.
+	 *
+	 * @return A direct buffer with size bytes remaining.
+	 *
+	 * @throws IllegalArgumentException if size is negative.
+	 **/
+	public synchronized ByteBuffer acquire(int size) {
+		if(size < 0) {
+			throw new IllegalArgumentException("Buffer size must not be negative: " + size);
+		}
+		int c = sizeClass(size);
+		LinkedList<ByteBuffer> list = free.get(c);
+		ByteBuffer b = null;
+		if(list != null && !list.isEmpty()) {
+			b = list.removeFirst();
+			pooled -= c;
+			reuses++;
+		} else {
+			b = ByteBuffer.allocateDirect(c);
+			allocations++;
+		}
+		b.clear();
+		b.limit(size);
+		if(debug) {
+			outstanding.put(b,new Throwable("Buffer of " + size + " bytes acquired here"));
+		}
+		return b;
+	}
+
+	/**
+	 * Returns a buffer to the pool once its user is done with it.
+	 * Buffers which did not come from a pool, such as wrapped arrays, are ignored.
+	 *
+	 * @param b The buffer to release.
+	 *
+	 * @throws IllegalStateException in debug mode, if the buffer is not outstanding from this pool.
+	 **/
+	public synchronized void release(ByteBuffer b) {
+		if(b == null || !b.isDirect() || sizeClass(b.capacity()) != b.capacity()) {
+			return;
+		}
+		if(debug && outstanding.remove(b) == null) {
+			throw new IllegalStateException("Buffer released twice, or not acquired from this pool");
+		}
+		if(pooled + b.capacity() <= capacity) {
+			LinkedList<ByteBuffer> list = free.get(b.capacity());
+			if(list == null) {
+				list = new LinkedList<ByteBuffer>();
+				free.put(b.capacity(),list);
+			}
+			list.addFirst(b);
+			pooled += b.capacity();
+		}
+	}
+
+	/**
+	 * The number of buffers acquired but not yet released. Only tracked in debug mode.
+	 *
+	 * @return The number of outstanding buffers, or -1 if the pool is not in debug mode.
+	 **/
+	public synchronized int getOutstanding() {
+		return debug ? outstanding.size() : -1;
+	}
+
+	/**
+	 * Prints where each outstanding buffer was acquired. Only available in debug mode.
+	 **/
+	public synchronized void reportLeaks() {
+		if(debug) {
+			for(Throwable t : outstanding.values()) {
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * The number of buffers which had to be newly allocated.
+	 *
+	 * @return The number of allocations.
+	 **/
+	public synchronized long getAllocations() {
+		return allocations;
+	}
+
+	/**
+	 * The number of acquisitions served by a released buffer.
+	 *
+	 * @return The number of reuses.
+	 **/
+	public synchronized long getReuses() {
+		return reuses;
+	}
+}
@@ -0,0 +1,304 @@
+package tcl.tm.torrent.file.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size set of bits which may be read and written by any number of threads.
+ *
+ * Bits are packed 64 to a word, and each update is applied atomically,
+ * so readers always see a bit as either set or clear, without locking.
+ * Operations over the whole set work a word at a time. They see each word
+ * as it was at some moment, though not the whole set at a single moment.
+ *
+ * ConcurrentBitSets hold piece state throughout, from which pieces are on disk
+ * to which pieces each Peer has, and convert directly to and from the BitTorrent bitfield format.
+ **/
+public class ConcurrentBitSet {
+
+	private AtomicLongArray words;
+	private int length;
+
+	/**
+	 * Creates a ConcurrentBitSet holding length bits, all clear.
+	 *
+	 * @param length The number of bits.
+	 **/
+	public ConcurrentBitSet(int length) {
+		this.length = length;
+		this.words = new AtomicLongArray((length + 63) >>> 6);
+	}
+
+	/**
+	 * Creates a ConcurrentBitSet with the same bits set as the given array.
+	 *
+	 * @param bits The initial value of each bit.
+	 **/
+	public ConcurrentBitSet(boolean[] bits) {
+		this(bits.length);
+		for(int i = 0; i < bits.length; i++) {
+			if(bits[i]) {
+				set(i,true);
+			}
+		}
+	}
+
+	/**
+	 * Creates a ConcurrentBitSet with the same bits set as another.
+	 *
+	 * @param other The set to copy.
+	 **/
+	public ConcurrentBitSet(ConcurrentBitSet other) {
+		this(other.length);
+		for(int i = 0; i < words.length(); i++) {
+			words.set(i,other.words.get(i));
+		}
+	}
+
+	/**
+	 * The number of bits in this set.
+	 *
+	 * @return The number of bits.
+	 **/
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Whether the given bit is set.
+	 *
+	 * @param index The bit to check.
+	 *
+	 * @return Whether the bit is set.
+	 *
+	 * @throws IndexOutOfBoundsException if the index is out of bounds
+	 **/
+	public boolean get(int index) {
+		checkIndex(index);
+		return (words.get(index >>> 6) & (1L << (index & 63))) != 0;
+	}
+
+	/**
+	 * Sets or clears the given bit.
+	 *
+	 * @param index The bit to change.
+	 * @param value Whether the bit should be set.
+	 *
+	 * @throws IndexOutOfBoundsException if the index is out of bounds
+	 **/
+	public void set(int index, boolean value) {
+		checkIndex(index);
+		int word = index >>> 6;
+		long mask = 1L << (index & 63);
+		while(true) {
+			long old = words.get(word);
+			long updated = value ? (old | mask) : (old & ~mask);
+			if(old == updated || words.compareAndSet(word,old,updated)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sets or clears the given bit, reporting whether it changed.
+	 *
+	 * @param index The bit to change.
+	 * @param value Whether the bit should be set.
+	 *
+	 * @return Whether the bit was changed, rather than already having the given value.
+	 *
+	 * @throws IndexOutOfBoundsException if the index is out of bounds
+	 **/
+	public boolean change(int index, boolean value) {
+		checkIndex(index);
+		int word = index >>> 6;
+		long mask = 1L << (index & 63);
+		while(true) {
+			long old = words.get(word);
+			long updated = value ? (old | mask) : (old & ~mask);
+			if(old == updated) {
+				return false;
+			}
+			if(words.compareAndSet(word,old,updated)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Sets every bit.
+	 **/
+	public void setAll() {
+		for(int i = 0; i < words.length(); i++) {
+			words.set(i,lastMask(i));
+		}
+	}
+
+	/**
+	 * Clears every bit.
+	 **/
+	public void clearAll() {
+		for(int i = 0; i < words.length(); i++) {
+			words.set(i,0);
+		}
+	}
+
+	/**
+	 * The first set bit at or after the given index.
+	 *
+	 * @param from The index to start looking from.
+	 *
+	 * @return The index of the set bit, or -1 if there is none.
+	 **/
+	public int nextSetBit(int from) {
+		if(from < 0) {
+			from = 0;
+		}
+		if(from >= length) {
+			return -1;
+		}
+		int word = from >>> 6;
+		long bits = words.get(word) & (-1L << (from & 63));
+		while(true) {
+			if(bits != 0) {
+				return (word << 6) + Long.numberOfTrailingZeros(bits);
+			}
+			if(++word >= words.length()) {
+				return -1;
+			}
+			bits = words.get(word);
+		}
+	}
+
+	/**
+	 * The first bit at or after the given index which is set in both this set and another.
+	 *
+	 * @param other The other set, of the same length.
+	 * @param from The index to start looking from.
+	 *
+	 * @return The index of the common bit, or -1 if there is none.
+	 **/
+	public int nextCommonBit(ConcurrentBitSet other, int from) {
+		if(from < 0) {
+			from = 0;
+		}
+		int n = Math.min(words.length(),other.words.length());
+		int word = from >>> 6;
+		if(from >= length || word >= n) {
+			return -1;
+		}
+		long bits = words.get(word) & other.words.get(word) & (-1L << (from & 63));
+		while(true) {
+			if(bits != 0) {
+				return (word << 6) + Long.numberOfTrailingZeros(bits);
+			}
+			if(++word >= n) {
+				return -1;
+			}
+			bits = words.get(word) & other.words.get(word);
+		}
+	}
+
+	/**
+	 * Whether this set and another have any bit set in common.
+	 *
+	 * @param other The other set, of the same length.
+	 *
+	 * @return Whether any bit is set in both.
+	 **/
+	public boolean intersects(ConcurrentBitSet other) {
+		int n = Math.min(words.length(),other.words.length());
+		for(int i = 0; i < n; i++) {
+			if((words.get(i) & other.words.get(i)) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The number of bits set in this set but not in another.
+	 *
+	 * @param other The other set, of the same length.
+	 *
+	 * @return The number of bits set here and clear in other.
+	 **/
+	public int andNotCardinality(ConcurrentBitSet other) {
+		int count = 0;
+		int n = Math.min(words.length(),other.words.length());
+		for(int i = 0; i < n; i++) {
+			count += Long.bitCount(words.get(i) & ~other.words.get(i));
+		}
+		for(int i = n; i < words.length(); i++) {
+			count += Long.bitCount(words.get(i));
+		}
+		return count;
+	}
+
+	/**
+	 * The number of bits which are set.
+	 *
+	 * @return The number of set bits.
+	 **/
+	public int cardinality() {
+		int count = 0;
+		for(int i = 0; i < words.length(); i++) {
+			count += Long.bitCount(words.get(i));
+		}
+		return count;
+	}
+
+	/**
+	 * The bits of this set as a BitTorrent bitfield, where the high bit of the first byte is bit 0
+	 * and any spare bits at the end are clear.
+	 *
+	 * @return The bitfield.
+	 **/
+	public byte[] toBitfield() {
+		byte[] out = new byte[(length + 7) >>> 3];
+		for(int w = 0; w < words.length(); w++) {
+			long bits = words.get(w);
+			for(int b = 0; b < 8 && (w << 3) + b < out.length; b++) {
+				out[(w << 3) + b] = (byte) (Long.reverse((bits >>> (b << 3)) & 0xffL) >>> 56);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Replaces the bits of this set with a BitTorrent bitfield, where the high bit of the first byte is bit 0.
+	 * Spare bits at the end of the bitfield are ignored, and bits beyond its end are cleared.
+	 *
+	 * @param bitfield The bitfield.
+	 **/
+	public void setBitfield(byte[] bitfield) {
+		for(int w = 0; w < words.length(); w++) {
+			long bits = 0;
+			for(int b = 0; b < 8; b++) {
+				int i = (w << 3) + b;
+				if(i < bitfield.length) {
+					// Reverse the bit order within the byte, so the high bit lands on the lowest index.
+					bits |= (Long.reverse(bitfield[i] & 0xffL) >>> 56) << (b << 3);
+				}
+			}
+			words.set(w,bits & lastMask(w));
+		}
+	}
+
+	/**
+	 * The bits of the given word which fall within the set.
+	 *
+	 * @param word The word index.
+	 *
+	 * @return A mask of the valid bits of the word.
+	 **/
+	private long lastMask(int word) {
+		int bits = length - (word << 6);
+		return (bits >= 64) ? -1L : ((1L << bits) - 1);
+	}
+
+	private void checkIndex(int index) {
+		if(index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("The given index: " + index + " is out of range.");
+		}
+	}
+}
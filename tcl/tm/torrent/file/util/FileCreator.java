@@ -10,44 +10,54 @@ import tcl.tm.torrent.info.TorrentInfo;
 public class FileCreator {
 	
 	/**
-	 * Creates / loads the files of a torrent download and returns an array of RandomAccessFiles corresponding to them.
+	 * Creates the files of a torrent download if they do not already exist, and returns their locations.
+	 * The files are not left open; they are opened as needed through the FileHandlePool.
 	 * 
 	 * @param t The TorrentInfo for this torrent
 	 * @param baseDirectory The directory to create the fileset for this torrent.
 	 * 
-	 * @return An array of RandomAccessFiles corresponding to the created / loaded fileset.
+	 * @return An array of Files corresponding to the created / loaded fileset.
 	 **/
-	public static RandomAccessFile[] createFileSet(TorrentInfo t, String baseDirectory) throws IOException {
+	public static File[] createFileSet(TorrentInfo t, String baseDirectory) throws IOException {
 
-		String name = t.getTorrentName();
-		
 		int numFiles = t.getFileCount();
 		
-		RandomAccessFile[] files = new RandomAccessFile[numFiles];
+		File[] files = new File[numFiles];
 		
 		for(int i = 0; i < numFiles; i++) {
-			String[] path = t.getFilePath(i);
+			File fl = getFile(t,baseDirectory,i);
+			fl.getParentFile().mkdirs();
+			fl.createNewFile();
+			files[i] = fl;
+		}
+		return files;
 
-			StringBuilder out = new StringBuilder();
+	}
 
-			out.append(baseDirectory);
-			out.append(name);
-			out.append("/");
-			
-			for(int j = 0; j < path.length -1; j++) {
-				out.append(path[j]);
-				out.append("/");
-			}
+	/**
+	 * The location of the given file of a torrent download.
+	 * 
+	 * @param t The TorrentInfo for this torrent
+	 * @param baseDirectory The directory holding the fileset for this torrent.
+	 * @param id The id for the file, which is its location in the getFileNames() array.
+	 * 
+	 * @return The location of the file on the filesystem.
+	 **/
+	public static File getFile(TorrentInfo t, String baseDirectory, int id) {
+		String[] path = t.getFilePath(id);
 
-			File fi = new File(out.toString());
-			fi.mkdirs();
+		StringBuilder out = new StringBuilder();
 
-			out.append(path[path.length -1]);
-			File fl = new File(out.toString());	
-			fl.createNewFile();
-			files[i] = new RandomAccessFile(fl,"rws");
+		out.append(baseDirectory);
+		out.append(t.getTorrentName());
+		out.append("/");
+
+		for(int j = 0; j < path.length -1; j++) {
+			out.append(path[j]);
+			out.append("/");
 		}
-		return files;
+		out.append(path[path.length -1]);
 
+		return new File(out.toString());
 	}
 }
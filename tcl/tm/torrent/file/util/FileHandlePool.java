@@ -0,0 +1,178 @@
+package tcl.tm.torrent.file.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.channels.FileChannel;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded pool of open files, shared by every torrent in the process.
+ *
+ * Files are opened lazily the first time they are acquired, and once more than
+ * the pool's capacity are open, the least recently used are closed again.
+ * A file which has been acquired is pinned until it is released, and is never
+ * closed out from under its user, so the pool may briefly exceed its capacity
+ * if every open file is in use. Closing a pinned file waits until it is released.
+ **/
+public class FileHandlePool {
+
+	private static final int DEFAULT_CAPACITY = 256;
+
+	private static final FileHandlePool shared = new FileHandlePool(DEFAULT_CAPACITY);
+
+	private LinkedHashMap<File,Handle> handles;
+	private int capacity;
+
+	private long hits;
+	private long misses;
+
+	/**
+	 * Creates a FileHandlePool which keeps at most capacity files open.
+	 *
+	 * @param capacity The maximum number of unpinned files to keep open.
+	 **/
+	public FileHandlePool(int capacity) {
+		this.capacity = capacity;
+		this.handles = new LinkedHashMap<File,Handle>(16,0.75f,true);
+	}
+
+	/**
+	 * The FileHandlePool shared by all torrents in this process.
+	 *
+	 * @return The shared FileHandlePool.
+	 **/
+	public static FileHandlePool getShared() {
+		return shared;
+	}
+
+	/**
+	 * Opens the given file for reading and writing if it is not already open,
+	 * and pins it until release() is called.
+	 *
+	 * @param f The file to acquire.
+	 *
+	 * @return A channel for the file, valid until the file is released.
+	 **/
+	public synchronized FileChannel acquire(File f) throws IOException {
+		Handle h = handles.get(f);
+		if(h == null) {
+			misses++;
+			h = new Handle(new RandomAccessFile(f,"rw"));
+			handles.put(f,h);
+			// Pinned first, so that eviction cannot close the file just opened.
+			h.pins++;
+			evict();
+		} else {
+			hits++;
+			h.pins++;
+			// Acquired again after a close was asked for, so it is wanted open after all.
+			h.closing = false;
+		}
+		return h.file.getChannel();
+	}
+
+	/**
+	 * Unpins the given file, allowing it to be closed once it is least recently used.
+	 *
+	 * @param f The file to release.
+	 **/
+	public synchronized void release(File f) {
+		Handle h = handles.get(f);
+		if(h != null && h.pins > 0) {
+			h.pins--;
+			if(h.pins == 0 && h.closing) {
+				handles.remove(f);
+				h.close();
+			}
+			evict();
+		}
+	}
+
+	/**
+	 * Closes the given file if it is open. Used when a torrent is closed.
+	 * If the file is pinned, it is closed once the last user releases it.
+	 *
+	 * @param f The file to close.
+	 **/
+	public synchronized void close(File f) {
+		Handle h = handles.get(f);
+		if(h == null) {
+			return;
+		}
+		if(h.pins > 0) {
+			h.closing = true;
+		} else {
+			handles.remove(f);
+			h.close();
+		}
+	}
+
+	/**
+	 * Closes the least recently used unpinned files until the pool is within its capacity.
+	 **/
+	private void evict() {
+		Iterator<Map.Entry<File,Handle>> it = handles.entrySet().iterator();
+		while(handles.size() > capacity && it.hasNext()) {
+			Handle h = it.next().getValue();
+			if(h.pins == 0) {
+				h.close();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * The number of acquisitions which found their file already open.
+	 *
+	 * @return The number of pool hits.
+	 **/
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * The number of acquisitions which had to open their file.
+	 *
+	 * @return The number of pool misses.
+	 **/
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * The number of files currently open.
+	 *
+	 * @return The number of open files.
+	 **/
+	public synchronized int getOpenCount() {
+		return handles.size();
+	}
+
+	/**
+	 * An open file and the number of users which currently have it pinned.
+	 **/
+	private static class Handle {
+
+		private RandomAccessFile file;
+		private int pins;
+		// Whether the file should be closed as soon as it is no longer pinned.
+		private boolean closing;
+
+		private Handle(RandomAccessFile file) {
+			this.file = file;
+		}
+
+		private void close() {
+			try {
+				file.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
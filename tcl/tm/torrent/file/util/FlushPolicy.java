@@ -0,0 +1,78 @@
+package tcl.tm.torrent.file.util;
+
+/**
+ * A FlushPolicy decides when a FileAccessManager writes its buffered pieces to disk,
+ * and whether written data is forced to the storage device afterwards.
+ *
+ * Buffered pieces are always written when the FileAccessManager is closed.
+ * Otherwise they are written once they have waited for the flush interval,
+ * or once the buffered data reaches the flush threshold, whichever comes first.
+ **/
+public class FlushPolicy {
+
+	/**
+	 * Buffers up to 16MiB for at most five seconds, and forces data to disk after each flush.
+	 **/
+	public static final FlushPolicy DEFAULT = new FlushPolicy(5000, 16 * 1024 * 1024, true);
+
+	/**
+	 * Writes and forces every piece as soon as it has been verified.
+	 **/
+	public static final FlushPolicy WRITE_THROUGH = new FlushPolicy(0, 0, true);
+
+	private long interval;
+	private long threshold;
+	private boolean sync;
+
+	/**
+	 * Creates a FlushPolicy
+	 *
+	 * @param interval The longest time, in milliseconds, a piece may stay buffered.
+	 * @param threshold The number of buffered bytes at which buffered pieces are written.
+	 * @param sync Whether written data should be forced to the storage device before pieces are marked as saved.
+	 **/
+	public FlushPolicy(long interval, long threshold, boolean sync) {
+		this.interval = interval;
+		this.threshold = threshold;
+		this.sync = sync;
+	}
+
+	/**
+	 * The longest time, in milliseconds, a piece may stay buffered.
+	 *
+	 * @return The flush interval in milliseconds.
+	 **/
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * The number of buffered bytes at which buffered pieces are written.
+	 *
+	 * @return The flush threshold in bytes.
+	 **/
+	public long getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Whether written data should be forced to the storage device before pieces are marked as saved.
+	 *
+	 * @return Whether flushes are followed by a sync.
+	 **/
+	public boolean isSync() {
+		return sync;
+	}
+
+	/**
+	 * Whether buffered data should be written now.
+	 *
+	 * @param bufferedBytes The number of bytes currently buffered.
+	 * @param oldestAge How long, in milliseconds, the oldest buffered piece has been waiting.
+	 *
+	 * @return Whether the buffered pieces should be flushed.
+	 **/
+	public boolean shouldFlush(long bufferedBytes, long oldestAge) {
+		return bufferedBytes > 0 && (bufferedBytes >= threshold || oldestAge >= interval);
+	}
+}
@@ -0,0 +1,206 @@
+package tcl.tm.torrent.file.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of piece data, shared by every torrent in the process.
+ *
+ * Pieces are keyed by the FileAccessManager that owns them and their piece id.
+ * The cache is limited by the total number of bytes it holds rather than by
+ * its number of entries, and evicts the least recently used pieces first.
+ *
+ * Cached arrays must be treated as read only by everyone who retrieves them.
+ **/
+public class PieceCache {
+
+	private static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+	private static final PieceCache shared = new PieceCache(DEFAULT_CAPACITY);
+
+	private LinkedHashMap<Key,byte[]> pieces;
+	private long capacity;
+	private long size;
+
+	private long hits;
+	private long misses;
+
+	/**
+	 * Creates a PieceCache which holds at most capacity bytes of piece data.
+	 *
+	 * @param capacity The maximum number of bytes to cache.
+	 **/
+	public PieceCache(long capacity) {
+		this.capacity = capacity;
+		this.pieces = new LinkedHashMap<Key,byte[]>(16,0.75f,true);
+	}
+
+	/**
+	 * The PieceCache shared by all torrents in this process.
+	 *
+	 * @return The shared PieceCache.
+	 **/
+	public static PieceCache getShared() {
+		return shared;
+	}
+
+	/**
+	 * Retrieves the given piece if it is cached, marking it as recently used.
+	 *
+	 * @param owner The FileAccessManager the piece belongs to.
+	 * @param pieceId The id of the piece.
+	 *
+	 * @return The data for the piece, or null if it is not cached.
+	 **/
+	public synchronized byte[] get(Object owner, int pieceId) {
+		byte[] data = pieces.get(new Key(owner,pieceId));
+		if(data == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return data;
+	}
+
+	/**
+	 * Whether the given piece is currently cached.
+	 * This does not count as a use of the piece, and does not affect the hit / miss counters.
+	 *
+	 * @param owner The FileAccessManager the piece belongs to.
+	 * @param pieceId The id of the piece.
+	 *
+	 * @return Whether the piece is cached.
+	 **/
+	public synchronized boolean contains(Object owner, int pieceId) {
+		return pieces.containsKey(new Key(owner,pieceId));
+	}
+
+	/**
+	 * The ids of the cached pieces belonging to the given owner, most recently used first.
+	 * This does not count as a use of the pieces.
+	 *
+	 * @param owner The FileAccessManager the pieces belong to.
+	 *
+	 * @return The cached piece ids.
+	 **/
+	public synchronized List<Integer> getPieceIds(Object owner) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for(Key k : pieces.keySet()) {
+			if(k.owner == owner) {
+				ids.add(k.pieceId);
+			}
+		}
+		Collections.reverse(ids);
+		return ids;
+	}
+
+	/**
+	 * Adds the given piece to the cache, evicting the least recently used pieces
+	 * until the cache is back within its capacity.
+	 *
+	 * @param owner The FileAccessManager the piece belongs to.
+	 * @param pieceId The id of the piece.
+	 * @param data The data for the piece. This array must not be modified afterwards.
+	 **/
+	public synchronized void put(Object owner, int pieceId, byte[] data) {
+		if(data == null || data.length > capacity) {
+			return;
+		}
+		byte[] old = pieces.put(new Key(owner,pieceId),data);
+		if(old != null) {
+			size -= old.length;
+		}
+		size += data.length;
+		Iterator<byte[]> it = pieces.values().iterator();
+		while(size > capacity && it.hasNext()) {
+			size -= it.next().length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Removes all pieces belonging to the given owner. Used when a torrent is closed.
+	 *
+	 * @param owner The FileAccessManager whose pieces should be removed.
+	 **/
+	public synchronized void invalidate(Object owner) {
+		Iterator<Map.Entry<Key,byte[]>> it = pieces.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Key,byte[]> e = it.next();
+			if(e.getKey().owner == owner) {
+				size -= e.getValue().length;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes a single piece. Used when the piece could not be written, and is no longer ours to upload.
+	 *
+	 * @param owner The FileAccessManager the piece belongs to.
+	 * @param pieceId The id of the piece.
+	 **/
+	public synchronized void invalidate(Object owner, int pieceId) {
+		byte[] old = pieces.remove(new Key(owner,pieceId));
+		if(old != null) {
+			size -= old.length;
+		}
+	}
+
+	/**
+	 * The number of lookups which found their piece in the cache.
+	 *
+	 * @return The number of cache hits.
+	 **/
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * The number of lookups which did not find their piece in the cache.
+	 *
+	 * @return The number of cache misses.
+	 **/
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * The number of bytes of piece data currently cached.
+	 *
+	 * @return The number of bytes currently cached.
+	 **/
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Identifies a piece by its owner and piece id.
+	 **/
+	private static class Key {
+
+		private Object owner;
+		private int pieceId;
+
+		private Key(Object owner, int pieceId) {
+			this.owner = owner;
+			this.pieceId = pieceId;
+		}
+
+		public boolean equals(Object o) {
+			if(o instanceof Key) {
+				Key k = (Key) o;
+				return (k.owner == this.owner) && (k.pieceId == this.pieceId);
+			}
+			return false;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(owner) * 31 + pieceId;
+		}
+	}
+}
@@ -28,7 +28,20 @@ public class PieceVerifier {
 			e.printStackTrace();
 			return false;
 		}
-		byte[] hash1 = md.digest(data);
+		return matches(md.digest(data),hash);
+	}
+
+	/**
+	 * Checks whether an already computed SHA 1 hash is equivalent to the hash String provided
+	 * 
+	 * @param hash1 The computed SHA 1 hash
+	 * @param hash The hash which hash1 should equal
+	 * 
+	 * @return Whether hash1 is the same hash as was provided
+	 **/
+	public static boolean matches(byte[] hash1, String hash) {
+		
+		if(hash1 == null) {return false;}
 		
 		// Bytes are signed, chars are unsigned.
 		// We need to convert the bytes to chars to get values
@@ -0,0 +1,293 @@
+package tcl.tm.torrent.file.util;
+
+import tcl.tm.torrent.info.TorrentInfo;
+import tcl.tm.torrent.info.util.FileExtent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.HashMap;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Rechecker verifies the data already on disk for a torrent, and records
+ * which pieces are valid in the torrent's StatusLoader.
+ *
+ * Several reader threads claim small runs of consecutive pieces in order,
+ * so that each file is read front to back. Each piece read is handed to a pool of
+ * hashing threads belonging to the recheck, which leaves the readers free to keep the
+ * disk busy. When the hashers fall behind, the readers hash pieces themselves rather
+ * than reading further ahead. The recheck has its own hashers so that it never holds up
+ * the pieces being downloaded by other torrents.
+ * Reads may be capped to a number of bytes per second so that a recheck
+ * does not starve other torrents of disk bandwidth.
+ *
+ * The recheck must run before the FileAccessManager for the torrent is created,
+ * since the FileAccessManager loads its status when it is constructed.
+ **/
+public class Rechecker {
+
+	/**
+	 * The number of reader threads used by default.
+	 **/
+	public static final int DEFAULT_READERS = 2;
+
+	/**
+	 * The most bytes read per second by default, taken from the tcl.recheck.rate property.
+	 * 0, the default when the property is not set, means no limit.
+	 **/
+	public static final long DEFAULT_RATE_LIMIT = Long.getLong("tcl.recheck.rate",0);
+
+	// The number of consecutive pieces a reader claims at once.
+	private static final int RUN_LENGTH = 16;
+	// The number of threads hashing the pieces read.
+	private static final int HASHERS = Runtime.getRuntime().availableProcessors();
+
+	private TorrentInfo info;
+	private String baseDirectory;
+	private StatusLoader status;
+	private int readers;
+	private long rateLimit;
+
+	private AtomicInteger nextPiece;
+	private AtomicInteger checked;
+	private boolean[] valid;
+	private CountDownLatch remaining;
+	private ThreadPoolExecutor hashers;
+	private volatile boolean cancelled;
+
+	private long started;
+	private long bytesRead;
+
+	/**
+	 * Creates a Rechecker for the given torrent.
+	 *
+	 * @param info The TorrentInfo for this torrent
+	 * @param baseDirectory The directory holding the fileset for this torrent
+	 * @param status The StatusLoader to record the results in
+	 * @param readers The number of threads reading from disk
+	 * @param rateLimit The most bytes to read per second, or 0 for no limit
+	 **/
+	public Rechecker(TorrentInfo info, String baseDirectory, StatusLoader status, int readers, long rateLimit) {
+		this.info = info;
+		this.baseDirectory = baseDirectory;
+		this.status = status;
+		this.readers = Math.max(1,readers);
+		this.rateLimit = rateLimit;
+		this.nextPiece = new AtomicInteger(0);
+		this.checked = new AtomicInteger(0);
+		this.valid = new boolean[info.getPieceCount()];
+		this.remaining = new CountDownLatch(valid.length);
+	}
+
+	/**
+	 * Checks every piece of the torrent, blocking until all have been checked.
+	 * Unless the recheck is cancelled, the results then replace the torrent's status.
+	 *
+	 * @return Whether the recheck completed and its results were saved.
+	 **/
+	public boolean recheck() {
+		started = System.currentTimeMillis();
+		hashers = new ThreadPoolExecutor(HASHERS, HASHERS,
+										0, TimeUnit.MILLISECONDS,
+										new ArrayBlockingQueue<Runnable>(HASHERS * 4),
+										new HasherThreadFactory(),
+										new ThreadPoolExecutor.CallerRunsPolicy());
+		Thread[] threads = new Thread[readers];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Reader(),"Recheck Reader " + i + " - " + info.getTorrentName());
+			threads[i].start();
+		}
+		try {
+			for(Thread t : threads) {
+				t.join();
+			}
+			if(!cancelled) {
+				remaining.await();
+			}
+		} catch(InterruptedException e) {
+			e.printStackTrace();
+			cancelled = true;
+		} finally {
+			hashers.shutdown();
+		}
+		if(cancelled) {
+			return false;
+		}
+		for(int i = 0; i < valid.length; i++) {
+			status.setStatus(i,valid[i]);
+		}
+		// Saved partial pieces describe data which has not been checked, so they are dropped.
+		status.setPartialPieces(new HashMap<Integer,boolean[]>());
+		return status.flush();
+	}
+
+	/**
+	 * Stops the recheck as soon as possible. The torrent's status is left unchanged.
+	 **/
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * The number of pieces which have been checked so far.
+	 *
+	 * @return The number of pieces checked.
+	 **/
+	public int getPiecesChecked() {
+		return checked.get();
+	}
+
+	/**
+	 * Blocks the calling reader until reading the given number of bytes
+	 * would keep the recheck within its rate limit.
+	 *
+	 * @param bytes The number of bytes about to be read.
+	 **/
+	private void throttle(int bytes) throws InterruptedException {
+		if(rateLimit <= 0) {
+			return;
+		}
+		long wait = 0;
+		synchronized(this) {
+			bytesRead += bytes;
+			wait = bytesRead * 1000 / rateLimit - (System.currentTimeMillis() - started);
+		}
+		if(wait > 0) {
+			Thread.sleep(wait);
+		}
+	}
+
+	/**
+	 * Reads pieces of the torrent in runs, handing each to the hashers.
+	 * Each reader keeps its own handles to the files, opened read only as they are needed.
+	 **/
+	private class Reader implements Runnable {
+
+		private RandomAccessFile[] files = new RandomAccessFile[info.getFileCount()];
+
+		public void run() {
+			try {
+				int start = 0;
+				while(!cancelled && (start = nextPiece.getAndAdd(RUN_LENGTH)) < valid.length) {
+					int end = Math.min(start + RUN_LENGTH,valid.length);
+					for(int id = start; id < end && !cancelled; id++) {
+						byte[] data = read(id);
+						if(data == null) {
+							record(id,false);
+						} else {
+							hashers.execute(new Check(id,data));
+						}
+					}
+				}
+			} catch(InterruptedException e) {
+				cancelled = true;
+			} finally {
+				for(RandomAccessFile f : files) {
+					try {
+						if(f != null) {
+							f.close();
+						}
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Reads the given piece from disk.
+		 *
+		 * @param id The piece to read.
+		 *
+		 * @return The data for the piece, or null if any of its files are missing or too short.
+		 **/
+		private byte[] read(int id) throws InterruptedException {
+			byte[] b = (id + 1 == info.getPieceCount()) ? new byte[info.getFinalPieceLength()]
+														: new byte[info.getPieceLength()];
+			throttle(b.length);
+			try {
+				for(FileExtent x : info.getPieceExtents(id)) {
+					RandomAccessFile f = open(x.getFile());
+					if(f == null || f.length() < x.getFileOffset() + x.getLength()) {
+						return null;
+					}
+					f.seek(x.getFileOffset());
+					f.readFully(b,x.getPieceOffset(),x.getLength());
+				}
+			} catch(IOException e) {
+				return null;
+			}
+			return b;
+		}
+
+		/**
+		 * Opens the given file for reading, if it exists.
+		 *
+		 * @param fileId The id of the file
+		 *
+		 * @return A read only handle to the file, or null if it does not exist.
+		 **/
+		private RandomAccessFile open(int fileId) throws IOException {
+			if(files[fileId] == null) {
+				File f = FileCreator.getFile(info,baseDirectory,fileId);
+				if(!f.isFile()) {
+					return null;
+				}
+				files[fileId] = new RandomAccessFile(f,"r");
+			}
+			return files[fileId];
+		}
+	}
+
+	/**
+	 * Records the result of checking the given piece.
+	 *
+	 * @param id The piece which was checked.
+	 * @param ok Whether the piece's data was valid.
+	 **/
+	private void record(int id, boolean ok) {
+		valid[id] = ok;
+		checked.incrementAndGet();
+		remaining.countDown();
+	}
+
+	/**
+	 * Creates the daemon threads hashing pieces for this recheck.
+	 **/
+	private class HasherThreadFactory implements ThreadFactory {
+
+		private int count = 0;
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r,"Recheck Hasher " + count++ + " - " + info.getTorrentName());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Hashes a piece read from disk against its expected hash.
+	 **/
+	private class Check implements Runnable {
+
+		private int id;
+		private byte[] data;
+
+		private Check(int id, byte[] data) {
+			this.id = id;
+			this.data = data;
+		}
+
+		public void run() {
+			record(id,PieceVerifier.verify(data,info.getPieceHash(id)));
+		}
+	}
+}
@@ -2,10 +2,18 @@ package tcl.tm.torrent.file.util;
 
 import java.io.Closeable;
 
+import java.util.Map;
+
 /**
  * StatusLoader saves the status of the torrent download to the filesystem
  * This allows for a torrent to be resumed at a later time should the download be
  * stopped for whatever reason.
+ *
+ * Status changes may be held in memory until flush() is called,
+ * so callers should flush after each batch of changes, and close() flushes as well.
+ *
+ * The blocks already on disk for partially downloaded pieces may also be saved,
+ * so that they need not be downloaded again after a restart.
  **/
 public interface StatusLoader extends Closeable {
 	
@@ -26,7 +34,27 @@ public interface StatusLoader extends Closeable {
 	 * @return Whether or not the status was successfully set.
 	 **/
 	public boolean setStatus(int piece, boolean status);
+
+	/**
+	 * Writes any status changes made since the last flush to the filesystem.
+	 * 
+	 * @return Whether or not the status was successfully written.
+	 **/
+	public boolean flush();
+
+	/**
+	 * Retrieves the blocks which were on disk for partially downloaded pieces, as last saved.
+	 * 
+	 * @return A map from piece id to which of its blocks are on disk, empty if none were saved.
+	 **/
+	public Map<Integer,boolean[]> getPartialPieces();
+	
+	/**
+	 * Saves which blocks are on disk for partially downloaded pieces, replacing whatever was saved before.
+	 * 
+	 * @param partial A map from piece id to which of its blocks are on disk.
+	 * 
+	 * @return Whether or not the partial pieces were successfully written.
+	 **/
+	public boolean setPartialPieces(Map<Integer,boolean[]> partial);
 }
-		
-			
-		
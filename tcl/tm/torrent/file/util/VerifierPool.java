@@ -0,0 +1,70 @@
+package tcl.tm.torrent.file.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A process wide pool of threads used to verify pieces before they are saved.
+ *
+ * The pool has one thread per available processor and a bounded backlog.
+ * When the backlog is full, the submitting thread runs the verification itself,
+ * which throttles peers that are returning pieces faster than they can be hashed.
+ *
+ * Device threads must never hash a piece themselves, so their work goes to a second
+ * set of threads with an unbounded backlog instead. That backlog is still limited in
+ * practice by the number of requests a device may have queued.
+ **/
+public class VerifierPool {
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static final ThreadFactory threads = new VerifierThreadFactory();
+
+	private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS,
+													60, TimeUnit.SECONDS,
+													new ArrayBlockingQueue<Runnable>(THREADS * 4),
+													threads,
+													new ThreadPoolExecutor.CallerRunsPolicy());
+
+	private static final ThreadPoolExecutor unbounded = new ThreadPoolExecutor(THREADS, THREADS,
+													60, TimeUnit.SECONDS,
+													new LinkedBlockingQueue<Runnable>(),
+													threads);
+
+	/**
+	 * Runs the given verification task on the pool.
+	 *
+	 * @param task The task to run.
+	 **/
+	public static void execute(Runnable task) {
+		pool.execute(task);
+	}
+
+	/**
+	 * Runs the given verification task on the pool, without ever running it on the calling thread.
+	 * Used by threads which must not be held up, such as a device's thread.
+	 *
+	 * @param task The task to run.
+	 **/
+	public static void queue(Runnable task) {
+		unbounded.execute(task);
+	}
+
+	/**
+	 * Creates the daemon threads used by the pool, so that pending
+	 * verifications never keep the client from shutting down.
+	 **/
+	private static class VerifierThreadFactory implements ThreadFactory {
+
+		private int count = 0;
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r,"Piece Verifier " + count++);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -3,20 +3,72 @@ package tcl.tm.torrent.file.util.impl;
 import tcl.tm.torrent.info.TorrentInfo;
 import tcl.tm.torrent.file.util.StatusLoader;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.RandomAccessFile;
 import java.io.File;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
 /**
  * StatusLoader saves the status of the torrent download to the filesystem
  * This allows for a torrent to be resumed at a later time should the download be
  * stopped for whatever reason.
+ *
+ * The status is kept as a bitmap, one bit per piece, in a memory mapped file
+ * holding two slots. Each slot has a header with a version, a generation count
+ * and a checksum. Changes are made in memory, and each flush writes the whole
+ * bitmap into the slot not holding the current state, with the next generation.
+ * Loading picks the valid slot with the highest generation, so a crash part way
+ * through a flush leaves the previous state intact.
+ *
+ * Status files from older versions, which stored one byte per piece,
+ * are read once and rewritten in the new format.
+ *
+ * Partially downloaded pieces are saved to a side file, named after the status file
+ * with PARTIAL_SUFFIX appended. It holds a block bitmap for each piece, followed by a
+ * checksum, and is replaced as a whole by writing a new file and renaming it over the old one.
  **/
 public class StatusLoaderImpl implements StatusLoader {
-	
+
+	private static final int MAGIC = 0x54525354;
+	private static final int VERSION = 1;
+
+	// Header layout: magic, version, piece count, checksum, generation.
+	private static final int CHECKSUM_OFFSET = 12;
+	private static final int GENERATION_OFFSET = 16;
+	private static final int HEADER_LENGTH = 24;
+
+	/**
+	 * Appended to the name of the status file to name the file holding partially downloaded pieces.
+	 **/
+	public static final String PARTIAL_SUFFIX = ".partial";
+
 	private RandomAccessFile file;
+	private File partialFile;
+	private MappedByteBuffer map;
 	private int pieceCount;
-	
+	private int slotLength;
+
+	private byte[] bits;
+	private long generation;
+	private int currentSlot;
+	private boolean dirty;
+
 	/**
 	 * Creates a StatusLoader object, and if necessary, creates a file
 	 * to track the progress of the torrent download.
@@ -31,85 +83,286 @@ public class StatusLoaderImpl implements StatusLoader {
 		try{
 			File f = new File(baseDirectory + "." + info.getEscapedInfoHash());
 			f.createNewFile();
-			
-			file = new RandomAccessFile(f,"rwd");
+			partialFile = new File(f.getPath() + PARTIAL_SUFFIX);
+
+			file = new RandomAccessFile(f,"rw");
 			pieceCount = info.getPieceCount();
-			
-			file.seek(0);
-			
-			if(file.length() != pieceCount) {
-				byte[] b = new byte[pieceCount];
-				for(int i = 0; i < b.length; i++) {
-					b[i] = (byte) 0;
-				}
-				file.write(b);
+			slotLength = HEADER_LENGTH + (pieceCount + 7) / 8;
+			bits = new byte[slotLength - HEADER_LENGTH];
+
+			boolean legacy = readLegacy();
+
+			if(file.length() != 2 * slotLength) {
+				file.setLength(2 * slotLength);
+			}
+			map = file.getChannel().map(FileChannel.MapMode.READ_WRITE,0,2 * slotLength);
+
+			if(legacy || !readSlots()) {
+				// Nothing valid on disk, so start from the legacy status or from scratch.
+				generation = 0;
+				currentSlot = 1;
+				dirty = true;
+				flush();
 			}
 		} catch(IOException io) {
 			io.printStackTrace();
 			throw new IllegalArgumentException("Unable to load status");
 		}
 	}
-	
+
+	/**
+	 * Reads a status file in the old one byte per piece format, if that is what is on disk.
+	 *
+	 * @return Whether a legacy status was read.
+	 **/
+	private boolean readLegacy() throws IOException {
+		if(file.length() != pieceCount) {
+			return false;
+		}
+		byte[] b = new byte[pieceCount];
+		file.seek(0);
+		file.readFully(b);
+		// Legacy files only hold zeros and ones, so can never begin with the magic number.
+		if(pieceCount >= 4 && ByteBuffer.wrap(b).getInt(0) == MAGIC) {
+			return false;
+		}
+		for(int i = 0; i < b.length; i++) {
+			if(b[i] == 1) {
+				setBit(i,true);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Loads the bitmap from whichever slot is valid and has the highest generation.
+	 *
+	 * @return Whether either slot held a valid status.
+	 **/
+	private boolean readSlots() {
+		int best = -1;
+		long bestGeneration = -1;
+		for(int slot = 0; slot < 2; slot++) {
+			int base = slot * slotLength;
+			if(map.getInt(base) != MAGIC || map.getInt(base + 4) != VERSION || map.getInt(base + 8) != pieceCount) {
+				continue;
+			}
+			byte[] b = new byte[slotLength];
+			ByteBuffer view = map.duplicate();
+			view.position(base);
+			view.get(b);
+			if(map.getInt(base + CHECKSUM_OFFSET) != checksum(b)) {
+				continue;
+			}
+			long g = map.getLong(base + GENERATION_OFFSET);
+			if(g > bestGeneration) {
+				best = slot;
+				bestGeneration = g;
+				System.arraycopy(b,HEADER_LENGTH,bits,0,bits.length);
+			}
+		}
+		if(best < 0) {
+			return false;
+		}
+		currentSlot = best;
+		generation = bestGeneration;
+		return true;
+	}
+
+	/**
+	 * The checksum of a slot, covering the generation and the bitmap.
+	 *
+	 * @param slot The contents of the slot
+	 *
+	 * @return The checksum for the slot.
+	 **/
+	private static int checksum(byte[] slot) {
+		CRC32 crc = new CRC32();
+		crc.update(slot,GENERATION_OFFSET,slot.length - GENERATION_OFFSET);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Sets the bit for the given piece in the in memory bitmap.
+	 *
+	 * @param piece The piece to set the bit for.
+	 * @param status The value of the bit.
+	 **/
+	private void setBit(int piece, boolean status) {
+		if(status) {
+			bits[piece >> 3] |= (byte) (0x80 >>> (piece & 7));
+		} else {
+			bits[piece >> 3] &= (byte) ~(0x80 >>> (piece & 7));
+		}
+	}
+
 	/**
 	 * Retrieves the status for this torrent, meaning a boolean array indicating
 	 * which pieces have been successfully dowloaded.
 	 * 
 	 * @return The status of this torrent.
 	 **/
-	public boolean[] getStatus() {
-		
+	public synchronized boolean[] getStatus() {
 		boolean[] pieces = new boolean[pieceCount];
-		
-		try{
-			byte[] b = new byte[pieces.length];
-			
-			file.seek(0);
-			
-			if(file.length() == pieceCount) {
-				file.readFully(b);
-				for(int i = 0; i < pieces.length; i++) {
-					pieces[i] = (b[i] == 1) ? true : false;
-				}
-			}
-		} catch(IOException io) {
-			io.printStackTrace();
+		for(int i = 0; i < pieces.length; i++) {
+			pieces[i] = (bits[i >> 3] & (0x80 >>> (i & 7))) != 0;
 		}
-		
 		return pieces;
 	}
-	
+
 	/**
 	 * Sets the status of the given piece in this torrent.
+	 * The change is not written to the filesystem until the next flush.
 	 * 
 	 * @param piece The piece to set the status for.
 	 * @param status The status to set this piece to.
 	 * 
 	 * @return Whether or not the status was successfully set.
 	 **/
-	public boolean setStatus(int piece, boolean status) {
-		
-		try{
-			file.seek(piece);
-			
-			file.write(status ? 1 : 0);
-			
+	public synchronized boolean setStatus(int piece, boolean status) {
+		if(piece < 0 || piece >= pieceCount) {
+			return false;
+		}
+		setBit(piece,status);
+		dirty = true;
+		return true;
+	}
+
+	/**
+	 * Writes the bitmap into the slot not holding the current status, with the next generation,
+	 * and forces it to disk. Only then does that slot become the current one.
+	 * 
+	 * @return Whether or not the status was successfully written.
+	 **/
+	public synchronized boolean flush() {
+		if(!dirty) {
 			return true;
+		}
+		byte[] b = new byte[slotLength];
+		ByteBuffer header = ByteBuffer.wrap(b);
+		header.putInt(0,MAGIC);
+		header.putInt(4,VERSION);
+		header.putInt(8,pieceCount);
+		header.putLong(GENERATION_OFFSET,generation +1);
+		System.arraycopy(bits,0,b,HEADER_LENGTH,bits.length);
+		header.putInt(CHECKSUM_OFFSET,checksum(b));
+
+		int slot = 1 - currentSlot;
+		ByteBuffer view = map.duplicate();
+		view.position(slot * slotLength);
+		view.put(b);
+		map.force();
+
+		generation++;
+		currentSlot = slot;
+		dirty = false;
+		return true;
+	}
+
+	/**
+	 * Reads the partially downloaded pieces from the side file.
+	 * A missing, truncated, or corrupt file is treated as holding no partial pieces.
+	 *
+	 * @return A map from piece id to which of its blocks are on disk.
+	 **/
+	public synchronized Map<Integer,boolean[]> getPartialPieces() {
+		Map<Integer,boolean[]> partial = new HashMap<Integer,boolean[]>();
+		if(!partialFile.isFile()) {
+			return partial;
+		}
+		try {
+			CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(partialFile)),new CRC32());
+			DataInputStream in = new DataInputStream(checked);
+			try {
+				if(in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != pieceCount) {
+					return partial;
+				}
+				int count = in.readInt();
+				for(int i = 0; i < count; i++) {
+					int piece = in.readInt();
+					boolean[] blocks = new boolean[in.readInt()];
+					byte[] packed = new byte[(blocks.length + 7) / 8];
+					in.readFully(packed);
+					for(int j = 0; j < blocks.length; j++) {
+						blocks[j] = ((packed[j >> 3] >> (7 - (j & 7))) & 1) == 1;
+					}
+					if(piece >= 0 && piece < pieceCount) {
+						partial.put(piece,blocks);
+					}
+				}
+				long expected = checked.getChecksum().getValue();
+				if(in.readLong() != expected) {
+					partial.clear();
+				}
+			} finally {
+				in.close();
+			}
 		} catch(IOException io) {
 			io.printStackTrace();
+			partial.clear();
 		}
-		
-		return false;
+		return partial;
 	}
 
 	/**
-	 * Closes this status loader
+	 * Writes the partially downloaded pieces to a new side file, forces it to disk, then renames it over the old one.
+	 * If there are no partial pieces, the side file is removed instead.
+	 *
+	 * @param partial A map from piece id to which of its blocks are on disk.
+	 *
+	 * @return Whether or not the partial pieces were successfully written.
 	 **/
-	public void close() throws IOException {
-		synchronized(file) {
-			file.close();
+	public synchronized boolean setPartialPieces(Map<Integer,boolean[]> partial) {
+		if(partial.isEmpty()) {
+			return !partialFile.exists() || partialFile.delete();
+		}
+		File temp = new File(partialFile.getPath() + ".tmp");
+		try {
+			FileOutputStream fileOut = new FileOutputStream(temp);
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut),new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(pieceCount);
+				out.writeInt(partial.size());
+				for(Map.Entry<Integer,boolean[]> e : partial.entrySet()) {
+					boolean[] blocks = e.getValue();
+					byte[] packed = new byte[(blocks.length + 7) / 8];
+					for(int j = 0; j < blocks.length; j++) {
+						if(blocks[j]) {
+							packed[j >> 3] |= (byte) (0x80 >>> (j & 7));
+						}
+					}
+					out.writeInt(e.getKey());
+					out.writeInt(blocks.length);
+					out.write(packed);
+				}
+				out.writeLong(checked.getChecksum().getValue());
+				// The new file must be on disk before it replaces the old one.
+				out.flush();
+				fileOut.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch(IOException io) {
+			io.printStackTrace();
+			temp.delete();
+			return false;
+		}
+		if(temp.renameTo(partialFile)) {
+			return true;
 		}
+		// Some platforms will not rename over an existing file.
+		partialFile.delete();
+		return temp.renameTo(partialFile);
+	}
+
+	/**
+	 * Flushes and closes this status loader
+	 **/
+	public synchronized void close() throws IOException {
+		flush();
+		file.close();
 	}
 }
-		
-			
-		
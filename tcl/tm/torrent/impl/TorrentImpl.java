@@ -9,6 +9,8 @@ import tcl.tm.torrent.communication.CommunicationManager;
 import tcl.tm.torrent.communication.impl.CommunicationManagerImpl;
 import tcl.tm.torrent.file.FileAccessManager;
 import tcl.tm.torrent.file.impl.FileAccessManagerImpl;
+import tcl.tm.torrent.file.impl.MappedFileAccessManagerImpl;
+import tcl.tm.torrent.file.util.Rechecker;
 import tcl.tm.torrent.file.util.StatusLoader;
 import tcl.tm.torrent.file.util.impl.StatusLoaderImpl;
 import tcl.tm.torrent.info.InformationManager;
@@ -24,15 +26,23 @@ import tcl.tm.torrent.info.impl.InformationManagerImpl;
  *
  * Torrents also need the ability to add new Peers which are connected via the TorrentManager's ConnectionManager.
  *
+ * A Torrent may be started with a recheck, in which case the data already on disk is verified
+ * on a separate thread, and file access and communication only begin once the recheck is complete.
+ *
  * @author Wayne Rowcliffe
  * @author Anthony Milosch
  **/
 public class TorrentImpl implements Torrent {
 
 	private InformationManager im;
-	private FileAccessManager fam;
+	private volatile FileAccessManager fam;
 	private StatusLoader sl;
-	private CommunicationManager cm;
+	private volatile CommunicationManager cm;
+	private volatile Rechecker rechecker;
+	private String filePath;
+	private String baseDirectory;
+	private boolean memoryMapped;
+	private boolean closed;
 	private String directoryFolder;
 	private String statusLocation;
 
@@ -45,30 +55,112 @@ public class TorrentImpl implements Torrent {
 	 * be held.
 	 */
 	public TorrentImpl(String filePath, String baseDirectory) {
+		this(filePath,baseDirectory,false);
+	}
+
+	/**
+	 * Creates a Torrent for the given .torrent file, choosing how its files are accessed.
+	 *
+	 * @param filePath The filepath to the .torrent file
+	 * @param baseDirectory The base Directory of where the torrent information will
+	 * be held.
+	 * @param memoryMapped Whether the torrent's files should be accessed through memory mapped
+	 * regions rather than individual reads and writes.
+	 */
+	public TorrentImpl(String filePath, String baseDirectory, boolean memoryMapped) {
+		this(filePath,baseDirectory,memoryMapped,false);
+	}
+
+	/**
+	 * Creates a Torrent for the given .torrent file, optionally verifying the data already on disk first.
+	 *
+	 * @param filePath The filepath to the .torrent file
+	 * @param baseDirectory The base Directory of where the torrent information will
+	 * be held.
+	 * @param memoryMapped Whether the torrent's files should be accessed through memory mapped
+	 * regions rather than individual reads and writes.
+	 * @param recheck Whether the data on disk should be verified, replacing the saved status,
+	 * before any transfers begin.
+	 */
+	public TorrentImpl(String filePath, String baseDirectory, boolean memoryMapped, boolean recheck) {
+		this(filePath,baseDirectory,memoryMapped,recheck,Rechecker.DEFAULT_RATE_LIMIT);
+	}
+
+	/**
+	 * Creates a Torrent for the given .torrent file, optionally verifying the data already on disk first
+	 * while reading no more than the given number of bytes per second.
+	 *
+	 * @param filePath The filepath to the .torrent file
+	 * @param baseDirectory The base Directory of where the torrent information will
+	 * be held.
+	 * @param memoryMapped Whether the torrent's files should be accessed through memory mapped
+	 * regions rather than individual reads and writes.
+	 * @param recheck Whether the data on disk should be verified, replacing the saved status,
+	 * before any transfers begin.
+	 * @param recheckRate The most bytes per second the recheck may read, or 0 for no limit.
+	 */
+	public TorrentImpl(String filePath, String baseDirectory, boolean memoryMapped, boolean recheck, long recheckRate) {
+		this.filePath = filePath;
+		this.baseDirectory = baseDirectory;
+		this.memoryMapped = memoryMapped;
 		im = new InformationManagerImpl(filePath, this);
 		sl = new StatusLoaderImpl(im.getTorrentInfo(),baseDirectory);
-		fam = new FileAccessManagerImpl(im.getTorrentInfo(),sl,baseDirectory);
-		new Thread((FileAccessManagerImpl) fam,"File Access Manager - " + filePath).start();
-		im.getAnnounceInfo().startTracker();
-		cm = new CommunicationManagerImpl(this);
 		directoryFolder = baseDirectory + im.getTorrentInfo().getTorrentName();
 		statusLocation = baseDirectory + "." + im.getTorrentInfo().getEscapedInfoHash();
+		if(recheck) {
+			rechecker = new Rechecker(im.getTorrentInfo(),baseDirectory,sl,Rechecker.DEFAULT_READERS,recheckRate);
+			new Thread(new Runnable() {
+				public void run() {
+					if(rechecker.recheck()) {
+						startTransfers();
+					}
+				}
+			},"Recheck - " + filePath).start();
+		} else {
+			startTransfers();
+		}
+	}
 
+	/**
+	 * Starts file access, the tracker, and communication with peers,
+	 * unless the Torrent has already been closed.
+	 **/
+	private synchronized void startTransfers() {
+		if(closed) {
+			return;
+		}
+		if(memoryMapped) {
+			fam = new MappedFileAccessManagerImpl(im.getTorrentInfo(),sl,baseDirectory);
+		} else {
+			fam = new FileAccessManagerImpl(im.getTorrentInfo(),sl,baseDirectory);
+		}
+		im.getAnnounceInfo().startTracker();
+		cm = new CommunicationManagerImpl(this);
+		rechecker = null;
 	}
 
 	/**
 	 * Closes all subsections of the Torrent, cleaning up any loose ends, closing any connections, and killing additional threads.
 	 **/
-	public void close() {
+	public synchronized void close() {
+		closed = true;
+		if(rechecker != null) {
+			System.out.println("Cancelling Recheck");
+			rechecker.cancel();
+		}
 		try {
-			System.out.println("Closing Communication Manager");
-			cm.close();
+			if(cm != null) {
+				System.out.println("Closing Communication Manager");
+				cm.close();
+			}
 		} catch(IOException e) {
 			e.printStackTrace();
 		}
 		try {
-			System.out.println("Closing File Access Manager");
-			fam.close();
+			if(fam != null) {
+				System.out.println("Closing File Access Manager");
+				fam.close();
+			}
 		} catch(IOException e) {
 			e.printStackTrace();
 		}
@@ -93,7 +185,36 @@ public class TorrentImpl implements Torrent {
 	 * @param peer The Socket representing the connection to an interested peer.
 	 **/
 	public void addPeer(Socket peer, byte[] reserved) {
-		cm.addPeer(peer, reserved);
+		CommunicationManager c = cm;
+		if(c != null) {
+			c.addPeer(peer, reserved);
+		} else {
+			// Still checking, so there is nothing to offer this peer yet.
+			try {
+				peer.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Whether this Torrent is verifying the data already on disk before it starts transferring.
+	 *
+	 * @return true if a recheck is in progress, false otherwise
+	 **/
+	public boolean isChecking() {
+		return rechecker != null;
+	}
+
+	/**
+	 * The number of pieces verified so far by the current recheck.
+	 *
+	 * @return The number of pieces checked, or 0 if no recheck is in progress.
+	 **/
+	public int getNumPiecesChecked() {
+		Rechecker r = rechecker;
+		return (r == null) ? 0 : r.getPiecesChecked();
 	}
 
 	/**
@@ -146,6 +267,7 @@ public class TorrentImpl implements Torrent {
 
 		File status = new File(statusLocation);
 		success &= status.delete();
+		new File(statusLocation + StatusLoaderImpl.PARTIAL_SUFFIX).delete();
 		return success;
 	}
 
@@ -169,6 +291,7 @@ public class TorrentImpl implements Torrent {
 		}
 		File status = new File(statusLocation);
 		success &= status.delete();
+		new File(statusLocation + StatusLoaderImpl.PARTIAL_SUFFIX).delete();
 		return success;
 	}
 
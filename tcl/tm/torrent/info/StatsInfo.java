@@ -119,5 +119,19 @@ public interface StatsInfo
 	 * @return The number of bytes that still need to be downlaoded.
 	 */
 	public long getNumBytesLeft();
+
+	/**
+	 * This will return whether the torrent is rechecking the data already on disk.
+	 * 
+	 * @return true if a recheck is in progress, false otherwise.
+	 */
+	public boolean isChecking();
+
+	/**
+	 * This will return the number of pieces verified so far by a recheck.
+	 * 
+	 * @return The number of pieces checked, or 0 if no recheck is in progress.
+	 */
+	public int getNumPiecesChecked();
 	
 }
@@ -1,5 +1,7 @@
 package tcl.tm.torrent.info;
 
+import tcl.tm.torrent.info.util.FileExtent;
+
 import java.util.Date;
 
 /**
@@ -212,4 +214,15 @@ public interface TorrentInfo {
 	 **/
 	public long[] getPieceEndLocation(int id);
 
+	/**
+	 * The sections of each file which together make up this piece
+	 *
+	 * @param id The id of this piece, which is its location in the getPieceHashes array
+	 *
+	 * @return The extents of the piece, in the order they appear within the piece
+	 * 
+	 * @throws IndexOutOfBoundsException if the id parameter is out of bounds
+	 **/
+	public FileExtent[] getPieceExtents(int id);
+
 }
@@ -4,6 +4,10 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 
 import tcl.tm.torrent.Torrent;
+import tcl.tm.torrent.communication.CommunicationManager;
+import tcl.tm.torrent.file.FileAccessFuture;
+import tcl.tm.torrent.file.FileAccessListener;
+import tcl.tm.torrent.file.FileAccessManager;
 import tcl.tm.torrent.info.StatsInfo;
 import tcl.tm.torrent.info.InformationManager;
 
@@ -19,6 +23,8 @@ public class StatsInfoImpl implements StatsInfo {
 
 	private InformationManager im;
 	private Torrent torrent;
+	private volatile int piecesDownloaded;
+	private boolean refreshing;
 	
 	/**
 	 * Constructor for the StatsInforImplementation
@@ -31,7 +37,8 @@ public class StatsInfoImpl implements StatsInfo {
 	}
 
 	public int getSpeed() {
-		return torrent.getCommunicationManager().getConnectionSpeed();
+		CommunicationManager cm = torrent.getCommunicationManager();
+		return (cm == null) ? 0 : cm.getConnectionSpeed();
 	}
 
 	public long getETA() {
@@ -74,16 +81,52 @@ public class StatsInfoImpl implements StatsInfo {
 	}
 
 	public int getNumPeers() {
-		return torrent.getCommunicationManager().getNumPeers();
+		CommunicationManager cm = torrent.getCommunicationManager();
+		return (cm == null) ? 0 : cm.getNumPeers();
 	}
 
 	public int getNumPieces() {
 		return im.getTorrentInfo().getPieceCount();
 	}
 
+	/**
+	 * Returns the number of pieces downloaded as of the last bitfield received from the FileAccessManager,
+	 * and requests a fresh bitfield if one is not already on its way, so that callers never wait on file access.
+	 */
 	public int getNumPiecesDownloaded() {
+		FileAccessManager fam = torrent.getFileAccessManager();
+		if(fam == null) {
+			return 0;
+		}
+		boolean refresh = false;
+		synchronized(this) {
+			if(!refreshing) {
+				refreshing = true;
+				refresh = true;
+			}
+		}
+		if(refresh) {
+			fam.getBitfield().addListener(new FileAccessListener() {
+				public void requestComplete(FileAccessFuture f) {
+					piecesDownloaded = countPieces(f.getData());
+					synchronized(StatsInfoImpl.this) {
+						refreshing = false;
+					}
+				}
+			});
+		}
+		return piecesDownloaded;
+	}
+
+	/**
+	 * Counts the pieces marked in the given bitfield.
+	 * 
+	 * @param state The bitfield to count, or null.
+	 * 
+	 * @return The number of pieces marked.
+	 */
+	private int countPieces(byte[] state) {
 		int count = 0;
-		byte[] state = torrent.getFileAccessManager().getBitfield().getData();
 		if(state != null) {
 			for(int i = 0; i < state.length; i++) {
 				for(int j = 0; j < 8; j++) {
@@ -116,5 +159,13 @@ public class StatsInfoImpl implements StatsInfo {
 		}
 		return retVal;
 	}
+
+	public boolean isChecking() {
+		return torrent.isChecking();
+	}
+
+	public int getNumPiecesChecked() {
+		return torrent.getNumPiecesChecked();
+	}
 	
 }
@@ -1,8 +1,9 @@
 package tcl.tm.torrent.info.impl;
 
 import tcl.tm.torrent.info.TorrentInfo;
-import tcl.tm.torrent.info.util.PieceLocator;
 import tcl.tm.torrent.info.util.Bencode;
+import tcl.tm.torrent.info.util.ExtentTable;
+import tcl.tm.torrent.info.util.FileExtent;
 
 import java.util.Date;
 import java.util.Map;
@@ -21,6 +22,9 @@ import java.util.List;
  * if the information is not available.
  * 
  * An IndexOutOfBoundsException should be thrown if an id parameter is out of bounds.
+ *
+ * File offsets are loaded once into an ExtentTable, so locating a piece
+ * within the fileset is a binary search rather than a scan of every file.
  * @author Wayne Rowcliffe
  * @author Tony Milosch
  **/
@@ -29,6 +33,7 @@ public class TorrentInfoImpl implements TorrentInfo {
 	private Map<String,Object> torrent;
 	private Map<String,Object> info;
 	private List<Object> files;
+	private ExtentTable extents;
 	
 	/**
 	 * Creates a new TorrentInfoImpl using the .torrent file at the given filepath
@@ -45,6 +50,13 @@ public class TorrentInfoImpl implements TorrentInfo {
 		}
 		info = (Map<String,Object>) torrent.get("info");
 		files = (List<Object>) info.get("files");
+
+		long[] lengths = new long[files.size()];
+		for(int i = 0; i < lengths.length; i++) {
+			Map<String,Object> file = (Map<String,Object>) files.get(i);
+			lengths[i] = (Long) file.get("length");
+		}
+		extents = new ExtentTable(lengths);
 	}
 	
 	/**
@@ -241,8 +253,7 @@ public class TorrentInfoImpl implements TorrentInfo {
 		if(id < 0 || id >= getFileCount()) {
 			throw new IndexOutOfBoundsException("The given file id: " + id + " is out of range.");
 		}
-		Map<String,Object> file = (Map<String,Object>) files.get(id);
-		return (Long) file.get("length");
+		return extents.getLength(id);
 	}
 	
 	/**
@@ -259,8 +270,7 @@ public class TorrentInfoImpl implements TorrentInfo {
 		if(id < 0 || id >= getFileCount()) {
 			throw new IndexOutOfBoundsException("The given file id: " + id + " is out of range.");
 		}
-		Map<String,Object> file = (Map<String,Object>) files.get(id);
-		return (Long) file.get("start_byte");	
+		return extents.getStartByte(id);
 	}
 
 	/**
@@ -298,9 +308,8 @@ public class TorrentInfoImpl implements TorrentInfo {
 	 * @return The number of bytes in the final piece of this torrent
 	 **/
 	public int getFinalPieceLength() {
-		long size = getPieceLength() * (getPieceCount() -1);
-		long total = getFileLength(files.size()-1) + getFileStartByte(files.size() -1);
-		return (int) (total - size);	
+		long size = (long) getPieceLength() * (getPieceCount() -1);
+		return (int) (extents.getTotalLength() - size);
 	}
 
 	/**
@@ -337,7 +346,9 @@ public class TorrentInfoImpl implements TorrentInfo {
 		if(id < 0 || id >= getPieceCount()) {
 			throw new IndexOutOfBoundsException("The given piece id: " + id + " is out of range.");
 		}
-		return PieceLocator.getPieceStartLocation(this,id);
+		long start = (long) id * getPieceLength();
+		int file = extents.findFile(start);
+		return new long[] {file, start - extents.getStartByte(file)};
 	}
 
 	/**
@@ -353,6 +364,35 @@ public class TorrentInfoImpl implements TorrentInfo {
 		if(id < 0 || id >= getPieceCount()) {
 			throw new IndexOutOfBoundsException("The given piece id: " + id + " is out of range.");
 		}
-		return PieceLocator.getPieceEndLocation(this,id);
+		long end = (long) id * getPieceLength() + getPieceLength(id) -1;
+		int file = extents.findFile(end);
+		return new long[] {file, end - extents.getStartByte(file)};
+	}
+
+	/**
+	 * The sections of each file which together make up this piece
+	 *
+	 * @param id The id of this piece, which is its location in the getPieceHashes array
+	 *
+	 * @return The extents of the piece, in the order they appear within the piece
+	 * 
+	 * @throws IndexOutOfBoundsException if the id parameter is out of bounds
+	 **/
+	public FileExtent[] getPieceExtents(int id) {
+		if(id < 0 || id >= getPieceCount()) {
+			throw new IndexOutOfBoundsException("The given piece id: " + id + " is out of range.");
+		}
+		return extents.getExtents((long) id * getPieceLength(),getPieceLength(id));
+	}
+
+	/**
+	 * The length of the given piece, accounting for the shorter final piece.
+	 *
+	 * @param id The id of the piece
+	 *
+	 * @return The length of the piece in bytes
+	 **/
+	private int getPieceLength(int id) {
+		return (id +1 < getPieceCount()) ? getPieceLength() : getFinalPieceLength();
 	}
 }
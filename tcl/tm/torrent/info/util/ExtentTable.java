@@ -0,0 +1,118 @@
+package tcl.tm.torrent.info.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A table of where each file of a torrent starts, if all files were strung together.
+ *
+ * The table is built once from the file lengths, and then maps any byte range of
+ * the torrent onto the files which hold it with a binary search, rather than
+ * scanning every file. Zero length files never appear in the results.
+ **/
+public class ExtentTable {
+
+	private long[] offsets;
+
+	/**
+	 * Creates an ExtentTable for files of the given lengths, in torrent order.
+	 *
+	 * @param lengths The length of each file in bytes
+	 **/
+	public ExtentTable(long[] lengths) {
+		offsets = new long[lengths.length +1];
+		for(int i = 0; i < lengths.length; i++) {
+			offsets[i+1] = offsets[i] + lengths[i];
+		}
+	}
+
+	/**
+	 * The total number of bytes covered by the table
+	 *
+	 * @return The combined length of all files
+	 **/
+	public long getTotalLength() {
+		return offsets[offsets.length -1];
+	}
+
+	/**
+	 * The byte where, if all files were strung together, the given file would start
+	 *
+	 * @param file The id of the file
+	 *
+	 * @return The byte where the file starts overall in the torrent
+	 **/
+	public long getStartByte(int file) {
+		return offsets[file];
+	}
+
+	/**
+	 * The length of the given file
+	 *
+	 * @param file The id of the file
+	 *
+	 * @return The length of the file in bytes
+	 **/
+	public long getLength(int file) {
+		return offsets[file+1] - offsets[file];
+	}
+
+	/**
+	 * Finds the file which holds the given byte of the torrent.
+	 *
+	 * @param position The byte within the torrent
+	 *
+	 * @return The id of the non-empty file containing that byte
+	 *
+	 * @throws IndexOutOfBoundsException if the position is outside of the torrent
+	 **/
+	public int findFile(long position) {
+		if(position < 0 || position >= getTotalLength()) {
+			throw new IndexOutOfBoundsException("The given position: " + position + " is out of range.");
+		}
+		// Find the last file starting at or before position.
+		// Any empty files share their start with the following file, so are skipped over.
+		int low = 0;
+		int high = offsets.length -2;
+		while(low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if(offsets[mid] <= position) {
+				low = mid;
+			} else {
+				high = mid -1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Maps the given byte range of the torrent onto the files which hold it.
+	 *
+	 * @param start The first byte of the range within the torrent
+	 * @param length The number of bytes in the range
+	 *
+	 * @return The extents making up the range, in order.
+	 *
+	 * @throws IndexOutOfBoundsException if the range is outside of the torrent
+	 **/
+	public FileExtent[] getExtents(long start, int length) {
+		List<FileExtent> extents = new ArrayList<FileExtent>();
+		if(length > 0) {
+			int file = findFile(start);
+			if(start + length > getTotalLength()) {
+				throw new IndexOutOfBoundsException("The given range: " + start + " + " + length + " is out of range.");
+			}
+			int done = 0;
+			while(done < length) {
+				long position = start + done;
+				int count = (int) Math.min(length - done, offsets[file+1] - position);
+				if(count > 0) {
+					extents.add(new FileExtent(file,position - offsets[file],done,count));
+					done += count;
+				}
+				file++;
+			}
+		}
+		return extents.toArray(new FileExtent[extents.size()]);
+	}
+}
@@ -0,0 +1,63 @@
+package tcl.tm.torrent.info.util;
+
+/**
+ * A contiguous section of a piece which is stored within a single file.
+ **/
+public class FileExtent {
+
+	private int file;
+	private long fileOffset;
+	private int pieceOffset;
+	private int length;
+
+	/**
+	 * Creates a FileExtent
+	 *
+	 * @param file The id of the file, which is its location in the getFileNames() array.
+	 * @param fileOffset The offset within the file where the extent starts
+	 * @param pieceOffset The offset within the piece where the extent starts
+	 * @param length The length of the extent in bytes
+	 **/
+	public FileExtent(int file, long fileOffset, int pieceOffset, int length) {
+		this.file = file;
+		this.fileOffset = fileOffset;
+		this.pieceOffset = pieceOffset;
+		this.length = length;
+	}
+
+	/**
+	 * The file this extent is stored in
+	 *
+	 * @return The id of the file, which is its location in the getFileNames() array.
+	 **/
+	public int getFile() {
+		return file;
+	}
+
+	/**
+	 * Where this extent starts within its file
+	 *
+	 * @return The offset within the file where the extent starts
+	 **/
+	public long getFileOffset() {
+		return fileOffset;
+	}
+
+	/**
+	 * Where this extent starts within its piece
+	 *
+	 * @return The offset within the piece where the extent starts
+	 **/
+	public int getPieceOffset() {
+		return pieceOffset;
+	}
+
+	/**
+	 * The length of this extent
+	 *
+	 * @return The length of the extent in bytes
+	 **/
+	public int getLength() {
+		return length;
+	}
+}
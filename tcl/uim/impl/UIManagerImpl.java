@@ -62,7 +62,6 @@ public class UIManagerImpl implements UIManager
 			synchronized(lock) {
 				try {
 					lock.wait(420000);
-					System.gc();
 				} catch(InterruptedException e) {
 					e.printStackTrace();
 				}